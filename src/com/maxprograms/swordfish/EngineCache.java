@@ -0,0 +1,368 @@
+/*******************************************************************************
+ * Copyright (c) 2007-2026 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+
+package com.maxprograms.swordfish;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.URISyntaxException;
+import java.sql.SQLException;
+import java.text.MessageFormat;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.maxprograms.swordfish.tm.ITmEngine;
+
+/**
+ * Engines of memories or glossaries shared by all requests. Engines are
+ * counted by open and close; an engine that nobody holds stays open until it
+ * has been idle for the time set in the "engineIdleTimeout" preference (in
+ * seconds) or until the heap runs low, so that requests that open a memory for
+ * a single segment find it ready.
+ */
+public class EngineCache {
+
+	private static Logger logger = System.getLogger(EngineCache.class.getName());
+
+	public static final long DEFAULT_IDLE_TIMEOUT = 300;
+
+	private static final long SWEEP_INTERVAL = 30;
+
+	// share of the maximum heap above which idle engines are closed early
+	private static final double MEMORY_PRESSURE = 0.85;
+
+	public interface Factory {
+		ITmEngine create(String id) throws IOException, SQLException, URISyntaxException;
+	}
+
+	private static class Entry {
+		// completed by the thread that creates the engine, outside the cache lock
+		CompletableFuture<ITmEngine> engine = new CompletableFuture<>();
+		int count;
+		long released;
+		boolean retired;
+	}
+
+	private String name;
+	private Factory factory;
+	private Map<String, Entry> entries;
+	private ScheduledExecutorService sweeper;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	public EngineCache(String name, Factory factory) {
+		this.name = name;
+		this.factory = factory;
+		entries = new Hashtable<>();
+	}
+
+	/**
+	 * Opens the engine of a memory, creating it if it is not in the cache.
+	 * Every call must be paired with a call to {@link #close(String)}.
+	 */
+	public void open(String id) throws IOException, SQLException, URISyntaxException {
+		acquire(id, true);
+	}
+
+	/**
+	 * Returns the engine of a memory. An engine that was not open is created
+	 * and left idle in the cache.
+	 */
+	public ITmEngine get(String id) throws IOException, SQLException, URISyntaxException {
+		return acquire(id, false);
+	}
+
+	public synchronized boolean contains(String id) {
+		return entries.containsKey(id);
+	}
+
+	/**
+	 * Finds or reserves the entry of a memory while holding the cache lock and
+	 * creates the engine after releasing it, so that a memory that is slow to
+	 * open does not hold up requests for the others. Requests for a memory that
+	 * is being opened wait for the same engine.
+	 */
+	private ITmEngine acquire(String id, boolean open) throws IOException, SQLException, URISyntaxException {
+		Entry entry;
+		boolean create = false;
+		synchronized (this) {
+			entry = entries.get(id);
+			if (entry == null) {
+				misses++;
+				entry = new Entry();
+				entry.released = System.currentTimeMillis();
+				entries.put(id, entry);
+				create = true;
+				startSweeper();
+			} else {
+				hits++;
+			}
+			if (open) {
+				entry.count++;
+			}
+		}
+		if (create) {
+			try {
+				entry.engine.complete(factory.create(id));
+			} catch (IOException | SQLException | URISyntaxException | RuntimeException e) {
+				synchronized (this) {
+					if (entries.get(id) == entry) {
+						entries.remove(id);
+					}
+				}
+				entry.engine.completeExceptionally(e);
+			}
+		}
+		return await(entry.engine);
+	}
+
+	private static ITmEngine await(CompletableFuture<ITmEngine> future)
+			throws IOException, SQLException, URISyntaxException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException ioe) {
+				throw ioe;
+			}
+			if (cause instanceof SQLException sqle) {
+				throw sqle;
+			}
+			if (cause instanceof URISyntaxException use) {
+				throw use;
+			}
+			if (cause instanceof RuntimeException re) {
+				throw re;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Releases an engine opened with {@link #open(String)}. The engine stays in
+	 * the cache until it has been idle for too long, unless it was evicted while
+	 * in use; then the last release closes it.
+	 */
+	public void close(String id) {
+		Entry retired = null;
+		synchronized (this) {
+			Entry entry = entries.get(id);
+			if (entry != null && entry.count > 0) {
+				entry.count--;
+				if (entry.count == 0) {
+					entry.released = System.currentTimeMillis();
+					if (entry.retired) {
+						entries.remove(id);
+						retired = entry;
+					}
+				}
+			}
+		}
+		if (retired != null) {
+			release(retired);
+		}
+	}
+
+	/**
+	 * Closes the engine of a memory that is about to be deleted or replaced. An
+	 * engine that is in use is closed when the last user releases it.
+	 */
+	public void evict(String id) throws IOException, SQLException, URISyntaxException {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(id);
+			if (entry == null) {
+				return;
+			}
+			if (entry.count > 0) {
+				entry.retired = true;
+				return;
+			}
+			entries.remove(id);
+		}
+		ITmEngine engine = getEngine(entry);
+		if (engine != null) {
+			engine.close();
+		}
+	}
+
+	public void closeAll() throws IOException, SQLException, URISyntaxException {
+		List<Entry> list;
+		synchronized (this) {
+			if (sweeper != null) {
+				sweeper.shutdownNow();
+				sweeper = null;
+			}
+			list = new Vector<>(entries.values());
+			entries.clear();
+		}
+		Iterator<Entry> it = list.iterator();
+		while (it.hasNext()) {
+			ITmEngine engine = getEngine(it.next());
+			if (engine != null) {
+				engine.close();
+			}
+		}
+	}
+
+	/**
+	 * Engine of an entry once it is created, or null if it could not be.
+	 */
+	private static ITmEngine getEngine(Entry entry) {
+		try {
+			return await(entry.engine);
+		} catch (IOException | SQLException | URISyntaxException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Opens the engine of a memory in the background and leaves it idle in the
+	 * cache, so that the first search does not wait for it.
+	 */
+	public void prewarm(String id) {
+		Thread.ofVirtual().name(name + "-prewarm").start(() -> {
+			try {
+				get(id);
+			} catch (IOException | SQLException | URISyntaxException e) {
+				MessageFormat mf = new MessageFormat(Messages.getString("EngineCache.0"));
+				logger.log(Level.WARNING, mf.format(new String[] { id }), e);
+			}
+		});
+	}
+
+	/**
+	 * Returns the engines in the cache, in use or idle. Engines still being
+	 * opened are not included.
+	 */
+	public synchronized Map<String, ITmEngine> getEngines() {
+		Map<String, ITmEngine> result = new Hashtable<>();
+		Set<String> keys = entries.keySet();
+		Iterator<String> it = keys.iterator();
+		while (it.hasNext()) {
+			String key = it.next();
+			ITmEngine engine = entries.get(key).engine.getNow(null);
+			if (engine != null) {
+				result.put(key, engine);
+			}
+		}
+		return result;
+	}
+
+	public synchronized JSONObject getStatistics() {
+		int idle = 0;
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().count == 0) {
+				idle++;
+			}
+		}
+		JSONObject result = new JSONObject();
+		result.put("engines", entries.size());
+		result.put("idle", idle);
+		result.put("hits", hits);
+		result.put("misses", misses);
+		result.put("evictions", evictions);
+		return result;
+	}
+
+	private void startSweeper() {
+		if (sweeper == null) {
+			sweeper = Executors.newSingleThreadScheduledExecutor(
+					Thread.ofPlatform().name(name + "-cache").daemon().factory());
+			sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Closes the idle engines that have not been used within the timeout and,
+	 * when the heap is almost full, the older half of the remaining idle ones.
+	 */
+	void sweep() {
+		List<Entry> expired = new Vector<>();
+		synchronized (this) {
+			List<String> idle = new Vector<>();
+			long limit = System.currentTimeMillis() - getIdleTimeout() * 1000l;
+			Set<String> keys = entries.keySet();
+			Iterator<String> it = keys.iterator();
+			while (it.hasNext()) {
+				String key = it.next();
+				Entry entry = entries.get(key);
+				if (entry.count == 0 && entry.engine.isDone()) {
+					if (entry.released <= limit) {
+						expired.add(entry);
+						it.remove();
+					} else {
+						idle.add(key);
+					}
+				}
+			}
+			if (!idle.isEmpty() && isMemoryLow()) {
+				Collections.sort(idle, Comparator.comparingLong(key -> entries.get(key).released));
+				int count = (idle.size() + 1) / 2;
+				for (int i = 0; i < count; i++) {
+					expired.add(entries.remove(idle.get(i)));
+				}
+			}
+			evictions += expired.size();
+		}
+		for (int i = 0; i < expired.size(); i++) {
+			release(expired.get(i));
+		}
+	}
+
+	private static void release(Entry entry) {
+		ITmEngine engine = getEngine(entry);
+		if (engine == null) {
+			return;
+		}
+		try {
+			engine.close();
+		} catch (IOException | SQLException | URISyntaxException e) {
+			logger.log(Level.WARNING, e.getMessage(), e);
+		}
+	}
+
+	private static long getIdleTimeout() {
+		try {
+			JSONObject json = TmsServer.getPreferences();
+			return json.has("engineIdleTimeout") ? json.getLong("engineIdleTimeout") : DEFAULT_IDLE_TIMEOUT;
+		} catch (IOException | JSONException e) {
+			return DEFAULT_IDLE_TIMEOUT;
+		}
+	}
+
+	private static boolean isMemoryLow() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		return used > runtime.maxMemory() * MEMORY_PRESSURE;
+	}
+}
@@ -58,8 +58,7 @@ public class GlossariesHandler implements HttpHandler {
 
 	private static Logger logger = System.getLogger(GlossariesHandler.class.getName());
 
-	private static Map<String, ITmEngine> engines;
-	private static Map<String, Integer> openCount = new Hashtable<>();
+	private static EngineCache engines = new EngineCache("glossaries", GlossariesHandler::createEngine);
 	private static Map<String, JSONObject> openTasks = new Hashtable<>();
 
 	@Override
@@ -167,7 +166,6 @@ public class GlossariesHandler implements HttpHandler {
 
 	private static Map<String, Memory> getGlossaries() throws IOException {
 		Map<String, Memory> glossaries = new Hashtable<>();
-		engines = new Hashtable<>();
 		File home = new File(getWorkFolder());
 		File list = new File(home, "glossaries.json");
 		if (!list.exists()) {
@@ -233,7 +231,7 @@ public class GlossariesHandler implements HttpHandler {
 					JSONArray array = json.getJSONArray("glossaries");
 					for (int i = 0; i < array.length(); i++) {
 						Memory mem = glossaries.get(array.getString(i));
-						closeGlossary(mem.getId());
+						engines.evict(mem.getId());
 						if (mem.getType().equals(Memory.LOCAL)) {
 							deleteGlossaryFolder(mem.getId());
 						}
@@ -318,50 +316,45 @@ public class GlossariesHandler implements HttpHandler {
 		return result;
 	}
 
-	public static synchronized void openGlossary(String id) throws IOException, SQLException, URISyntaxException {
-		Map<String, Memory> glossaries = getGlossaries();
-		openGlossary(glossaries.get(id));
+	public static void openGlossary(String id) throws IOException, SQLException, URISyntaxException {
+		engines.open(id);
+	}
+
+	public static void openGlossary(Memory memory) throws IOException, SQLException, URISyntaxException {
+		engines.open(memory.getId());
 	}
 
-	public static synchronized void openGlossary(Memory memory) throws IOException, SQLException, URISyntaxException {
-		if (!engines.containsKey(memory.getId())) {
-			ITmEngine engine = memory.getType().equals(Memory.LOCAL)
-					? new SqliteDatabase(memory.getId(), getWorkFolder())
-					: new RemoteDatabase(memory.getServer(), memory.getUser(), memory.getPassword(), memory.getId());
-			engines.put(memory.getId(), engine);
-			openCount.put(memory.getId(), 0);
+	/**
+	 * Opens the engine of a glossary in the background so that it is ready when
+	 * the first segment of a project is searched.
+	 */
+	public static void prewarm(String id) throws IOException {
+		if (getGlossaries().containsKey(id)) {
+			engines.prewarm(id);
 		}
-		int count = openCount.get(memory.getId());
-		openCount.put(memory.getId(), count + 1);
 	}
 
-	public static ITmEngine getEngine(String id) throws IOException, SQLException, URISyntaxException {
-		if (!engines.containsKey(id)) {
-			openGlossary(id);
+	private static ITmEngine createEngine(String id) throws IOException, SQLException, URISyntaxException {
+		Memory memory = getGlossaries().get(id);
+		if (memory.getType().equals(Memory.LOCAL)) {
+			SqliteDatabase database = new SqliteDatabase(memory.getId(), getWorkFolder());
+			// term lookups need every entry, not only the best matches kept for memories
+			database.setMaxMatches(0);
+			return database;
 		}
+		return new RemoteDatabase(memory.getServer(), memory.getUser(), memory.getPassword(), memory.getId());
+	}
+
+	public static ITmEngine getEngine(String id) throws IOException, SQLException, URISyntaxException {
 		return engines.get(id);
 	}
 
-	public static synchronized void closeGlossary(String id) throws IOException, SQLException, URISyntaxException {
-		if (engines != null && engines.containsKey(id)) {
-			int count = openCount.get(id);
-			if (count > 1) {
-				openCount.put(id, count - 1);
-				return;
-			}
-			engines.get(id).close();
-			engines.remove(id);
-			openCount.remove(id);
-		}
+	public static void closeGlossary(String id) {
+		engines.close(id);
 	}
 
-	public static synchronized void closeAll() throws IOException, SQLException, URISyntaxException {
-		Set<String> keys = engines.keySet();
-		Iterator<String> it = keys.iterator();
-		while (it.hasNext()) {
-			engines.get(it.next()).close();
-		}
-		engines.clear();
+	public static void closeAll() throws IOException, SQLException, URISyntaxException {
+		engines.closeAll();
 	}
 
 	private JSONObject importGlossary(String request) {
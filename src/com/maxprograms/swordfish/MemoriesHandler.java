@@ -48,7 +48,10 @@ import com.maxprograms.languages.Language;
 import com.maxprograms.languages.LanguageUtils;
 import com.maxprograms.swordfish.models.Memory;
 import com.maxprograms.swordfish.tm.ITmEngine;
+import com.maxprograms.swordfish.tm.PackWriter;
+import com.maxprograms.swordfish.tm.PackedDatabase;
 import com.maxprograms.swordfish.tm.RemoteDatabase;
+import com.maxprograms.swordfish.tm.ShardedDatabase;
 import com.maxprograms.swordfish.tm.SqliteDatabase;
 import com.maxprograms.swordfish.xliff.XliffUtils;
 import com.maxprograms.xml.Element;
@@ -61,10 +64,11 @@ public class MemoriesHandler implements HttpHandler {
 
 	private static Logger logger = System.getLogger(MemoriesHandler.class.getName());
 
-	private static Map<String, ITmEngine> engines;
-	private static Map<String, Integer> openCount = new Hashtable<>();
+	private static EngineCache engines = new EngineCache("memories", MemoriesHandler::openEngine);
 	private static Map<String, JSONObject> openTasks = new Hashtable<>();
-	private static Map<String, SqliteDatabase> localEngines = new Hashtable<>();
+	private static Map<String, ITmEngine> localEngines = new Hashtable<>();
+	private static Map<String, ITmEngine> indexEngines = new Hashtable<>();
+	private static Map<String, MemoryWriter> writers = new Hashtable<>();
 
 	@Override
 	public void handle(HttpExchange exchange) {
@@ -112,6 +116,12 @@ public class MemoriesHandler implements HttpHandler {
 				response = getProcessStatus(request);
 			} else if ("/memories/getLanguages".equals(url)) {
 				response = getLanguages(request);
+			} else if ("/memories/rebuildIndex".equals(url)) {
+				response = rebuildIndex(request);
+			} else if ("/memories/cacheStatistics".equals(url)) {
+				response = getCacheStatistics(request);
+			} else if ("/memories/pack".equals(url)) {
+				response = packMemory(request);
 			} else {
 				MessageFormat mf = new MessageFormat(Messages.getString("MemoriesHandler.1"));
 				response.put(Constants.REASON, mf.format(new String[] { url }));
@@ -148,9 +158,18 @@ public class MemoriesHandler implements HttpHandler {
 				JSONArray array = new JSONArray();
 				Set<String> langs = engine.getAllLanguages();
 				array.put(langs);
+				Map<String, Integer> counts = null;
+				if (engine instanceof SqliteDatabase database) {
+					counts = database.getLanguageCounts();
+				} else if (engine instanceof ShardedDatabase database) {
+					counts = database.getLanguageCounts();
+				}
 				close(memory);
 				JSONObject completed = new JSONObject();
 				completed.put("languages", array);
+				if (counts != null) {
+					completed.put("counts", new JSONObject(counts));
+				}
 				completed.put(Constants.PROGRESS, Constants.COMPLETED);
 				openTasks.put(process, completed);
 			} catch (IOException | SQLException | URISyntaxException e) {
@@ -174,10 +193,20 @@ public class MemoriesHandler implements HttpHandler {
 		String process = json.getString("process");
 		if (openTasks.containsKey(process)) {
 			JSONObject status = openTasks.get(process);
-			if (localEngines.containsKey(process)) {
-				SqliteDatabase engine = localEngines.get(process);
+			ITmEngine importing = localEngines.get(process);
+			if (importing instanceof SqliteDatabase engine) {
+				status.put("imported", engine.getCount());
+			} else if (importing instanceof ShardedDatabase engine) {
 				status.put("imported", engine.getCount());
 			}
+			ITmEngine indexing = indexEngines.get(process);
+			if (indexing instanceof SqliteDatabase engine) {
+				status.put("indexed", engine.getRebuildCount());
+				status.put("total", engine.getRebuildTotal());
+			} else if (indexing instanceof ShardedDatabase engine) {
+				status.put("indexed", engine.getRebuildCount());
+				status.put("total", engine.getRebuildTotal());
+			}
 			return status;
 		}
 		JSONObject error = new JSONObject();
@@ -260,17 +289,23 @@ public class MemoriesHandler implements HttpHandler {
 		new Thread(() -> {
 			try {
 				open(memory);
-				boolean isLocal = false;
 				ITmEngine engine = getEngine(memory);
-				if (engine.getType().equals(SqliteDatabase.class.getName())) {
-					localEngines.put(process, (SqliteDatabase) engine);
-					isLocal = true;
+				boolean isLocal = engine instanceof SqliteDatabase || engine instanceof ShardedDatabase;
+				if (isLocal) {
+					localEngines.put(process, engine);
 				}
 				String project = json.has("project") ? json.getString("project") : "";
 				String client = json.has("client") ? json.getString("client") : "";
 				String subject = json.has("subject") ? json.getString("subject") : "";
 				try {
-					int imported = engine.storeTMX(tmx.getAbsolutePath(), project, client, subject);
+					int imported;
+					if (engine instanceof SqliteDatabase database) {
+						imported = database.storeTMX(tmx.getAbsolutePath(), project, client, subject, true);
+					} else if (engine instanceof ShardedDatabase database) {
+						imported = database.storeTMX(tmx.getAbsolutePath(), project, client, subject, true);
+					} else {
+						imported = engine.storeTMX(tmx.getAbsolutePath(), project, client, subject);
+					}
 					JSONObject completed = new JSONObject();
 					if (isLocal) {
 						completed.put("imported", imported);
@@ -285,9 +320,7 @@ public class MemoriesHandler implements HttpHandler {
 					openTasks.put(process, error);
 					logger.log(Level.ERROR, e.getMessage(), e);
 				}
-				if (engine.getType().equals(SqliteDatabase.class.getName())) {
-					localEngines.remove(process);
-				}
+				localEngines.remove(process);
 				close(memory);
 			} catch (IOException | SQLException | URISyntaxException e) {
 				logger.log(Level.ERROR, e.getMessage(), e);
@@ -300,6 +333,157 @@ public class MemoriesHandler implements HttpHandler {
 		return result;
 	}
 
+	private static JSONObject rebuildIndex(String request) {
+		JSONObject result = new JSONObject();
+		final JSONObject json = new JSONObject(request);
+		if (!json.has("memory")) {
+			result.put(Constants.REASON, Messages.getString("MemoriesHandler.2"));
+			return result;
+		}
+		final String process = "" + System.currentTimeMillis();
+		JSONObject obj = new JSONObject();
+		obj.put(Constants.PROGRESS, Constants.PROCESSING);
+		openTasks.put(process, obj);
+		new Thread(() -> {
+			try {
+				String memory = json.getString("memory");
+				open(memory);
+				ITmEngine engine = getEngine(memory);
+				if (!(engine instanceof SqliteDatabase || engine instanceof ShardedDatabase)) {
+					close(memory);
+					throw new IOException(Messages.getString("MemoriesHandler.15"));
+				}
+				indexEngines.put(process, engine);
+				Set<String> langs = new TreeSet<>();
+				if (json.has("language")) {
+					langs.add(json.getString("language"));
+				} else {
+					langs.addAll(engine.getAllLanguages());
+				}
+				try {
+					Iterator<String> it = langs.iterator();
+					while (it.hasNext()) {
+						String lang = it.next();
+						if (engine instanceof ShardedDatabase database) {
+							database.rebuildIndex(lang);
+						} else {
+							((SqliteDatabase) engine).rebuildIndex(lang);
+						}
+					}
+				} finally {
+					indexEngines.remove(process);
+					close(memory);
+				}
+				JSONObject completed = new JSONObject();
+				completed.put(Constants.PROGRESS, Constants.COMPLETED);
+				openTasks.put(process, completed);
+			} catch (IOException | SQLException | URISyntaxException e) {
+				logger.log(Level.ERROR, e.getMessage(), e);
+				JSONObject error = new JSONObject();
+				error.put(Constants.REASON, e.getMessage());
+				openTasks.put(process, error);
+			}
+		}).start();
+		result.put("process", process);
+		return result;
+	}
+
+	/**
+	 * Creates a read-only memory with the contents of a local one, stored in a
+	 * memory pack.
+	 */
+	private static JSONObject packMemory(String request) {
+		JSONObject result = new JSONObject();
+		final JSONObject json = new JSONObject(request);
+		if (!json.has("memory")) {
+			result.put(Constants.REASON, Messages.getString("MemoriesHandler.2"));
+			return result;
+		}
+		if (!json.has("name")) {
+			result.put(Constants.REASON, Messages.getString("MemoriesHandler.16"));
+			return result;
+		}
+		final String process = "" + System.currentTimeMillis();
+		JSONObject obj = new JSONObject();
+		obj.put(Constants.PROGRESS, Constants.PROCESSING);
+		openTasks.put(process, obj);
+		new Thread(() -> {
+			try {
+				String memory = json.getString("memory");
+				Memory source = getMemories().get(memory);
+				open(memory);
+				ITmEngine engine = getEngine(memory);
+				JSONObject packed = source.toJSON();
+				packed.put("id", "" + System.currentTimeMillis());
+				packed.put("name", json.getString("name"));
+				packed.put("creationDate", System.currentTimeMillis());
+				packed.put("type", Memory.PACKED);
+				packed.remove("shards");
+				packed.remove("snapshot");
+				File folder = new File(getWorkFolder(), packed.getString("id"));
+				PackWriter writer = new PackWriter(new File(folder, PackedDatabase.PACK));
+				try {
+					if (engine instanceof SqliteDatabase database) {
+						database.exportPack(writer);
+					} else if (engine instanceof ShardedDatabase database) {
+						database.exportPack(writer);
+					} else {
+						throw new IOException(Messages.getString("MemoriesHandler.17"));
+					}
+					writer.finish();
+				} catch (IOException | SQLException e) {
+					writer.abort();
+					TmsServer.deleteFolder(folder);
+					throw e;
+				} finally {
+					close(memory);
+				}
+				addMemory(new Memory(packed));
+				JSONObject completed = new JSONObject();
+				completed.put("memory", packed.getString("id"));
+				completed.put(Constants.PROGRESS, Constants.COMPLETED);
+				openTasks.put(process, completed);
+			} catch (IOException | SQLException | URISyntaxException e) {
+				logger.log(Level.ERROR, e.getMessage(), e);
+				JSONObject error = new JSONObject();
+				error.put(Constants.REASON, e.getMessage());
+				openTasks.put(process, error);
+			}
+		}).start();
+		result.put("process", process);
+		return result;
+	}
+
+	// not synchronized: opening an engine inside the cache calls getMemories()
+	private static JSONObject getCacheStatistics(String request) {
+		JSONObject result = new JSONObject();
+		JSONObject json = new JSONObject(request);
+		JSONObject statistics = new JSONObject();
+		Map<String, ITmEngine> open = engines.getEngines();
+		Set<String> keys = open.keySet();
+		Iterator<String> it = keys.iterator();
+		while (it.hasNext()) {
+			String key = it.next();
+			if (!json.has("memory") || key.equals(json.getString("memory"))) {
+				statistics.put(key, open.get(key).getCacheStatistics());
+			}
+		}
+		result.put("statistics", statistics);
+		result.put("engines", engines.getStatistics());
+		JSONObject queues = new JSONObject();
+		Map<String, MemoryWriter> current;
+		synchronized (writers) {
+			current = new Hashtable<>(writers);
+		}
+		Iterator<String> mt = current.keySet().iterator();
+		while (mt.hasNext()) {
+			String key = mt.next();
+			queues.put(key, current.get(key).getDepth());
+		}
+		result.put("writeQueues", queues);
+		return result;
+	}
+
 	private static JSONObject exportMemory(String request) {
 		JSONObject result = new JSONObject();
 		final JSONObject json = new JSONObject(request);
@@ -365,11 +549,10 @@ public class MemoriesHandler implements HttpHandler {
 					JSONArray array = json.getJSONArray("memories");
 					for (int i = 0; i < array.length(); i++) {
 						String id = array.getString(i);
-						Memory memory = memories.get(id);
-						close(id);
-						if (memory.getType().equals(Memory.LOCAL)) {
-							deleteMemoryFolder(id);
-						}
+						closeWriter(id);
+						engines.evict(id);
+						// the folder of a remote memory holds its disk cache
+						deleteMemoryFolder(id);
 						memories.remove(id);
 					}
 					saveMemoriesList(memories);
@@ -445,7 +628,10 @@ public class MemoriesHandler implements HttpHandler {
 			json.put("creationDate", System.currentTimeMillis());
 		}
 		Memory mem = new Memory(json);
-		ITmEngine engine = new SqliteDatabase(mem.getId(), getWorkFolder());
+		ITmEngine engine = createEngine(mem);
+		if (engine instanceof ShardedDatabase sharded) {
+			mem.setShards(sharded.getShardCount());
+		}
 		engine.close();
 		Map<String, Memory> memories = getMemories();
 		memories.put(mem.getId(), mem);
@@ -458,7 +644,6 @@ public class MemoriesHandler implements HttpHandler {
 
 	private static synchronized Map<String, Memory> getMemories() throws IOException {
 		Map<String, Memory> memories = new Hashtable<>();
-		engines = new Hashtable<>();
 		File home = new File(getWorkFolder());
 		File list = new File(home, "memories.json");
 		if (!list.exists()) {
@@ -499,45 +684,151 @@ public class MemoriesHandler implements HttpHandler {
 		return home.getAbsolutePath();
 	}
 
-	public static synchronized void open(String id) throws IOException, SQLException, URISyntaxException {
-		if (!engines.containsKey(id)) {
-			Map<String, Memory> memories = getMemories();
-			Memory memory = memories.get(id);
-			ITmEngine engine = memory.getType().equals(Memory.LOCAL) ? new SqliteDatabase(id, getWorkFolder())
-					: new RemoteDatabase(memory.getServer(), memory.getUser(), memory.getPassword(), id);
-			engines.put(id, engine);
-			openCount.put(id, 0);
+	public static void open(String id) throws IOException, SQLException, URISyntaxException {
+		engines.open(id);
+	}
+
+	/**
+	 * Opens the engine of a memory in the background so that it is ready when
+	 * the first segment of a project is searched.
+	 */
+	public static void prewarm(String id) throws IOException {
+		if (getMemories().containsKey(id)) {
+			engines.prewarm(id);
 		}
-		int count = openCount.get(id);
-		openCount.put(id, count + 1);
 	}
 
-	public static synchronized void close(String id) throws IOException, SQLException, URISyntaxException {
-		if (engines != null && engines.containsKey(id)) {
-			int count = openCount.get(id);
-			if (count > 1) {
-				openCount.put(id, count - 1);
-				return;
+	private static ITmEngine openEngine(String id) throws IOException, SQLException, URISyntaxException {
+		Memory memory = getMemories().get(id);
+		ITmEngine engine = createEngine(memory);
+		if (memory.isSnapshot()) {
+			enableSnapshot(engine);
+		}
+		return engine;
+	}
+
+	private static ITmEngine createEngine(Memory memory) throws IOException, SQLException, URISyntaxException {
+		String id = memory.getId();
+		if (Memory.SHARDED.equals(memory.getType())) {
+			return new ShardedDatabase(id, getWorkFolder(), memory.getShards());
+		}
+		if (Memory.PACKED.equals(memory.getType())) {
+			return new PackedDatabase(id, new File(new File(getWorkFolder(), id), PackedDatabase.PACK));
+		}
+		if (Memory.REMOTE.equals(memory.getType())) {
+			return new RemoteDatabase(memory.getServer(), memory.getUser(), memory.getPassword(), id);
+		}
+		return new SqliteDatabase(id, getWorkFolder());
+	}
+
+	private static void enableSnapshot(ITmEngine engine) throws IOException, SQLException, URISyntaxException {
+		try {
+			if (engine instanceof SqliteDatabase sqlite) {
+				sqlite.enableSnapshot();
+			} else if (engine instanceof ShardedDatabase sharded) {
+				sharded.enableSnapshot();
 			}
-			engines.get(id).close();
-			engines.remove(id);
-			openCount.remove(id);
+		} catch (IOException | SQLException | URISyntaxException e) {
+			engine.close();
+			throw e;
 		}
 	}
 
-	public static synchronized void closeAll() throws IOException, SQLException, URISyntaxException {
-		Set<String> keys = engines.keySet();
+	public static void close(String id) {
+		engines.close(id);
+	}
+
+	public static void closeAll() throws IOException, SQLException, URISyntaxException {
+		List<String> keys;
+		synchronized (writers) {
+			keys = new Vector<>(writers.keySet());
+		}
 		Iterator<String> it = keys.iterator();
 		while (it.hasNext()) {
-			engines.get(it.next()).close();
+			closeWriter(it.next());
 		}
-		engines.clear();
+		engines.closeAll();
 	}
 
-	public static ITmEngine getEngine(String id) throws IOException, SQLException, URISyntaxException {
-		if (!engines.containsKey(id)) {
-			open(id);
+	/**
+	 * Stores a TU in the background. TUs added to the same memory are stored
+	 * in the order they were added.
+	 */
+	public static void storeTu(String id, Element tu) {
+		while (true) {
+			MemoryWriter writer;
+			synchronized (writers) {
+				writer = writers.get(id);
+				if (writer == null) {
+					writer = new MemoryWriter(id);
+					writers.put(id, writer);
+				}
+			}
+			if (writer.add(tu)) {
+				return;
+			}
+			// the writer is closing: let it finish before a new one starts, so
+			// that TUs are still stored one group at a time and in order
+			try {
+				writer.close();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			synchronized (writers) {
+				if (writers.get(id) == writer) {
+					writers.remove(id);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits until the TUs added with {@link #storeTu(String, Element)} are
+	 * stored in all memories. TUs that could not be stored are logged.
+	 */
+	public static void flushWrites() {
+		List<MemoryWriter> list;
+		synchronized (writers) {
+			list = new Vector<>(writers.values());
 		}
+		try {
+			for (int i = 0; i < list.size(); i++) {
+				try {
+					list.get(i).flush();
+				} catch (IOException e) {
+					logger.log(Level.ERROR, e.getMessage());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stores the queued TUs of a memory and stops its writer. The writer stays
+	 * registered until it has finished, so that storeTu does not start a new one
+	 * for the same memory in the meantime.
+	 */
+	private static void closeWriter(String id) {
+		MemoryWriter writer;
+		synchronized (writers) {
+			writer = writers.get(id);
+		}
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			synchronized (writers) {
+				if (writers.get(id) == writer) {
+					writers.remove(id);
+				}
+			}
+		}
+	}
+
+	public static ITmEngine getEngine(String id) throws IOException, SQLException, URISyntaxException {
 		return engines.get(id);
 	}
 
@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright (c) 2007-2026 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+
+package com.maxprograms.swordfish;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.URISyntaxException;
+import java.sql.SQLException;
+import java.text.MessageFormat;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.maxprograms.swordfish.tm.ITmEngine;
+import com.maxprograms.xml.Element;
+
+/**
+ * Stores TUs in a memory in the background. A single writer thread takes the
+ * TUs in the order they were added, so later versions of a TU always replace
+ * earlier ones, and stores them in groups with one commit per group. A group
+ * is written when it reaches {@link #GROUP_SIZE} TUs or when no TU has arrived
+ * for {@link #GROUP_DELAY} milliseconds.
+ * <p>
+ * A group that fails is stored again, up to {@link #RETRIES} times with a
+ * growing delay; storing a TU again replaces it. If it still fails, its TUs are
+ * stored one at a time so that only the ones that cannot be stored are lost.
+ */
+public class MemoryWriter {
+
+	private static Logger logger = System.getLogger(MemoryWriter.class.getName());
+
+	public static final int GROUP_SIZE = 200;
+	public static final long GROUP_DELAY = 250;
+	public static final int RETRIES = 3;
+
+	// marks the end of the input
+	private static final Element END = new Element("end");
+
+	private String memory;
+	private BlockingQueue<Element> queue;
+	private Thread writer;
+	private long added;
+	private long written;
+	private long failed;
+	private long reported;
+	private boolean closed;
+
+	public MemoryWriter(String memory) {
+		this.memory = memory;
+		queue = new LinkedBlockingQueue<>();
+		writer = new Thread(this::write, "memoryWriter-" + memory);
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queues a TU. Returns false, without queuing it, when the writer has been
+	 * closed.
+	 */
+	public synchronized boolean add(Element tu) {
+		if (closed) {
+			return false;
+		}
+		added++;
+		queue.add(tu);
+		return true;
+	}
+
+	/**
+	 * Number of TUs added and not yet committed or given up.
+	 */
+	public synchronized int getDepth() {
+		return (int) (added - written - failed);
+	}
+
+	/**
+	 * Waits until the TUs added before the call are committed. Throws an
+	 * exception if TUs added since the previous flush could not be stored.
+	 */
+	public synchronized void flush() throws InterruptedException, IOException {
+		long target = added;
+		while (written + failed < target && writer.isAlive()) {
+			wait(GROUP_DELAY);
+		}
+		if (failed > reported) {
+			MessageFormat mf = new MessageFormat(Messages.getString("MemoryWriter.0"));
+			String count = "" + (failed - reported);
+			reported = failed;
+			throw new IOException(mf.format(new String[] { count, memory }));
+		}
+	}
+
+	/**
+	 * Stores the pending TUs and stops the writer thread.
+	 */
+	public void close() throws InterruptedException {
+		synchronized (this) {
+			if (!closed) {
+				closed = true;
+				queue.add(END);
+			}
+		}
+		writer.join();
+	}
+
+	private void write() {
+		List<Element> group = new Vector<>();
+		boolean finished = false;
+		try {
+			while (!finished) {
+				Element tu = queue.take();
+				while (tu != null) {
+					if (tu == END) {
+						finished = true;
+						break;
+					}
+					group.add(tu);
+					if (group.size() == GROUP_SIZE) {
+						break;
+					}
+					tu = queue.poll(GROUP_DELAY, TimeUnit.MILLISECONDS);
+				}
+				if (!group.isEmpty()) {
+					int stored = store(group);
+					synchronized (this) {
+						written += stored;
+						failed += group.size() - stored;
+						notifyAll();
+					}
+					group.clear();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stores the group and returns the number of TUs committed.
+	 */
+	private int store(List<Element> group) throws InterruptedException {
+		for (int attempt = 0; attempt < RETRIES; attempt++) {
+			if (attempt > 0) {
+				Thread.sleep(GROUP_DELAY << attempt);
+			}
+			try {
+				commit(group);
+				return group.size();
+			} catch (IOException | SQLException | URISyntaxException e) {
+				MessageFormat mf = new MessageFormat(Messages.getString("MemoryWriter.1"));
+				logger.log(Level.WARNING, mf.format(new String[] { "" + group.size(), memory }), e);
+			}
+		}
+		int stored = 0;
+		for (int i = 0; i < group.size(); i++) {
+			try {
+				commit(group.subList(i, i + 1));
+				stored++;
+			} catch (IOException | SQLException | URISyntaxException e) {
+				MessageFormat mf = new MessageFormat(Messages.getString("MemoryWriter.0"));
+				logger.log(Level.ERROR, mf.format(new String[] { "1", memory }), e);
+			}
+		}
+		return stored;
+	}
+
+	private void commit(List<Element> tus) throws IOException, SQLException, URISyntaxException {
+		MemoriesHandler.open(memory);
+		try {
+			ITmEngine engine = MemoriesHandler.getEngine(memory);
+			for (int i = 0; i < tus.size(); i++) {
+				engine.storeTu(tus.get(i));
+			}
+			engine.commit();
+		} finally {
+			MemoriesHandler.close(memory);
+		}
+	}
+}
@@ -776,6 +776,7 @@ public class ProjectsHandler implements HttpHandler {
 				XliffStore store = new XliffStore(prj.getXliff(), prj.getSourceLang().getCode(),
 						prj.getTargetLang().getCode());
 				projectStores.put(project, store);
+				prewarmEngines(prj);
 			} catch (SAXException | IOException | ParserConfigurationException | URISyntaxException | SQLException e) {
 				logger.log(Level.ERROR, Messages.getString("ProjectsHandler.3"), e);
 				result.put(Constants.REASON, e.getMessage());
@@ -815,6 +816,21 @@ public class ProjectsHandler implements HttpHandler {
 		return result;
 	}
 
+	/**
+	 * Opens the default memory and glossary of a project in the background, so
+	 * that matches for the first segment do not wait for them.
+	 */
+	private static void prewarmEngines(Project prj) throws IOException {
+		String memory = prj.getMemory();
+		if (memory != null && !memory.isEmpty() && !Constants.NONE.equals(memory)) {
+			MemoriesHandler.prewarm(memory);
+		}
+		String glossary = prj.getGlossary();
+		if (glossary != null && !glossary.isEmpty() && !Constants.NONE.equals(glossary)) {
+			GlossariesHandler.prewarm(glossary);
+		}
+	}
+
 	private JSONObject getSegmentsCount(String request) {
 		JSONObject result = new JSONObject();
 		JSONObject json = new JSONObject(request);
@@ -1274,7 +1290,8 @@ public class ProjectsHandler implements HttpHandler {
 		try {
 			JSONObject json = new JSONObject(request);
 			String project = json.getString("project");
-			String memory = json.getString("memory");
+			JSONArray memories = json.has("memories") ? json.getJSONArray("memories")
+					: new JSONArray().put(json.getString("memory"));
 			int penalization = json.has("penalization") ? json.getInt("penalization") : 0;
 			if (!projectStores.containsKey(project)) {
 				Map<String, Project> projects = getProjects();
@@ -1292,7 +1309,7 @@ public class ProjectsHandler implements HttpHandler {
 			Thread.ofVirtual().start(() -> {
 				try {
 					obj.put("translated",
-							projectStores.get(project).tmTranslateAll(memory, penalization, processes, id));
+							projectStores.get(project).tmTranslateAll(memories, penalization, processes, id));
 					obj.put(Constants.PROGRESS, Constants.COMPLETED);
 					processes.put(id, obj);
 				} catch (JSONException | IOException | SQLException | SAXException | ParserConfigurationException
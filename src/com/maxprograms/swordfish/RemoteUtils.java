@@ -12,17 +12,22 @@
 
 package com.maxprograms.swordfish;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
 import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.time.Duration;
 import java.util.Base64;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -30,10 +35,54 @@ import org.json.JSONObject;
 
 public class RemoteUtils {
 
+    private static final long CONNECT_TIMEOUT = 30;
+
+    private static HttpClient client;
+
     private RemoteUtils() {
         // empty for security
     }
 
+    /**
+     * Returns the client shared by all requests to remote servers. It keeps
+     * connections open between requests and sends concurrent requests over a
+     * single HTTP/2 connection when the server supports it.
+     */
+    public static synchronized HttpClient getClient() {
+        if (client == null) {
+            client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2)
+                    .followRedirects(HttpClient.Redirect.NORMAL)
+                    .connectTimeout(Duration.ofSeconds(CONNECT_TIMEOUT)).build();
+        }
+        return client;
+    }
+
+    /**
+     * Returns the body of a response as text, uncompressed if the server sent
+     * it with gzip encoding.
+     */
+    public static String getText(HttpResponse<byte[]> response) throws IOException {
+        if (response.statusCode() >= 400) {
+            MessageFormat mf = new MessageFormat(Messages.getString("RemoteUtils.0"));
+            throw new IOException(mf.format(new String[] { "" + response.statusCode(), response.uri().toString() }));
+        }
+        byte[] body = response.body();
+        if ("gzip".equalsIgnoreCase(response.headers().firstValue("Content-Encoding").orElse(""))) {
+            try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(body))) {
+                body = input.readAllBytes();
+            }
+        }
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    public static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try (GZIPOutputStream zip = new GZIPOutputStream(out)) {
+            zip.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
     public static JSONObject remoteDatabases(String request) throws JSONException, URISyntaxException {
         JSONObject result = new JSONObject();
         JSONObject json = new JSONObject(request);
@@ -49,23 +98,12 @@ public class RemoteUtils {
     }
 
     public static JSONArray getRemoteMemories(String server, String ticket) throws IOException, URISyntaxException {
-        URL serverUrl = new URI(server + "/memories").toURL();
-        HttpsURLConnection connection = (HttpsURLConnection) serverUrl.openConnection();
-        connection.setRequestMethod("GET");
-        connection.setRequestProperty("Session", ticket);
-        connection.setRequestProperty("Accept", "application/json");
-        connection.setRequestProperty("Content-Type", "application/json");
-        connection.connect();
-        StringBuilder sb = new StringBuilder();
-        try (InputStream stream = connection.getInputStream()) {
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    sb.append(line);
-                }
-            }
-        }
-        JSONObject result = new JSONObject(sb.toString());
+        HttpRequest request = HttpRequest.newBuilder(new URI(server + "/memories")).GET()
+                .header("Session", ticket)
+                .header("Accept", "application/json")
+                .header("Content-Type", "application/json")
+                .header("Accept-Encoding", "gzip").build();
+        JSONObject result = new JSONObject(getText(send(request)));
         if (result.getString(Constants.STATUS).equals(Constants.OK)) {
             return result.getJSONArray("memories");
         }
@@ -76,29 +114,26 @@ public class RemoteUtils {
         if (server.endsWith("/")) {
             server = server.substring(0, server.length() - 1);
         }
-        URL serverUrl = new URI(server + "/remote").toURL();
-        HttpsURLConnection connection = (HttpsURLConnection) serverUrl.openConnection();
-        connection.setRequestMethod("GET");
-        connection.setRequestProperty("Accept", "application/json");
-        connection.setRequestProperty("Content-Type", "application/json");
-        connection.setRequestProperty("Authorization", "BASIC " + toBase64(user + ":" + password));
-        connection.connect();
-        StringBuilder sb = new StringBuilder();
-        try (InputStream stream = connection.getInputStream()) {
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    sb.append(line);
-                }
-            }
-        }
-        JSONObject result = new JSONObject(sb.toString());
+        HttpRequest request = HttpRequest.newBuilder(new URI(server + "/remote")).GET()
+                .header("Accept", "application/json")
+                .header("Content-Type", "application/json")
+                .header("Accept-Encoding", "gzip")
+                .header("Authorization", "BASIC " + toBase64(user + ":" + password)).build();
+        JSONObject result = new JSONObject(getText(send(request)));
         if (result.getString(Constants.STATUS).equals(Constants.OK)) {
             return result.getString("ticket");
         }
         throw new IOException(result.getString(Constants.REASON));
     }
 
+    private static HttpResponse<byte[]> send(HttpRequest request) throws IOException {
+        try {
+            return getClient().send(request, BodyHandlers.ofByteArray());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
     public static String toBase64(String string) {
         return Base64.getEncoder().encodeToString(string.getBytes(StandardCharsets.UTF_8));
     }
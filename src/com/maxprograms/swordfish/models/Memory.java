@@ -23,6 +23,8 @@ public class Memory implements Comparable<Memory> {
 
 	public static final String LOCAL = "Local";
 	public static final String REMOTE = "RemoteTM";
+	public static final String SHARDED = "Sharded";
+	public static final String PACKED = "Packed";
 
 	private String id;
 	private String name;
@@ -34,6 +36,8 @@ public class Memory implements Comparable<Memory> {
 	private String server;
 	private String user;
 	private String password;
+	private int shards;
+	private boolean snapshot;
 
 	public Memory(JSONObject json) {
 		id = json.getString("id");
@@ -46,6 +50,8 @@ public class Memory implements Comparable<Memory> {
 		server = json.has("server") ? json.getString("server") : "";
 		user = json.has("user") ? json.getString("user") : "";
 		password = json.has("password") ? RemoteUtils.fromBase64(json.getString("password")) : "";
+		shards = json.has("shards") ? json.getInt("shards") : 0;
+		snapshot = json.has("snapshot") && json.getBoolean("snapshot");
 	}
 
 	public JSONObject toJSON() {
@@ -62,6 +68,12 @@ public class Memory implements Comparable<Memory> {
 		json.put("server", server);
 		json.put("user", user);
 		json.put("password", RemoteUtils.toBase64(password));
+		if (SHARDED.equals(type)) {
+			json.put("shards", shards);
+		}
+		if (snapshot) {
+			json.put("snapshot", true);
+		}
 		return json;
 	}
 
@@ -151,6 +163,26 @@ public class Memory implements Comparable<Memory> {
 		this.password = password;
 	}
 
+	public int getShards() {
+		return shards;
+	}
+
+	public void setShards(int shards) {
+		this.shards = shards;
+	}
+
+	/**
+	 * Whether translation searches are answered from a copy of the memory kept
+	 * in RAM. Ignored for remote memories.
+	 */
+	public boolean isSnapshot() {
+		return snapshot;
+	}
+
+	public void setSnapshot(boolean snapshot) {
+		this.snapshot = snapshot;
+	}
+
 	@Override
 	public int compareTo(Memory o) {
 		return name.compareTo(o.name);
@@ -0,0 +1,362 @@
+/*******************************************************************************
+ * Copyright (c) 2007-2026 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+
+package com.maxprograms.swordfish.tm;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.maxprograms.languages.LanguageUtils;
+import com.maxprograms.xml.Element;
+
+/**
+ * Stores TUs parsed from a TMX file. The parser thread hands TUs over to worker
+ * threads, chosen by tuid so that repeated TUs keep their order, which prepare
+ * the rows to insert. A single writer thread inserts them in JDBC batches and
+ * commits in large transactions. When a fuzzy index is given the writer
+ * updates it for every row it stores; otherwise callers must rebuild the index
+ * for the languages returned by {@link #getLanguages()}, which is faster when
+ * the memory was empty. The language counts of the catalog are not updated.
+ * <p>
+ * Rows stored before a failure or an {@link #abort()} are kept, and indexed
+ * when the index is updated row by row.
+ */
+class BulkImporter {
+
+	private static Logger logger = System.getLogger(BulkImporter.class.getName());
+
+	private static final int QUEUE_SIZE = 1000;
+	private static final int BATCH_SIZE = 1000;
+	private static final int COMMIT_SIZE = 50000;
+
+	// marks the end of the input in every queue
+	private static final Element END = new Element("end");
+	private static final Prepared DONE = new Prepared(null, null, null);
+
+	private SqliteDatabase database;
+	private Connection conn;
+	private TuDatabase tuDb;
+	private Catalog catalog;
+	private FuzzyIndex fuzzyIndex;
+	private String creationId;
+	private List<BlockingQueue<Element>> inputs;
+	private BlockingQueue<Prepared> output;
+	private List<Thread> workers;
+	private Thread writer;
+	private Set<String> languages;
+	private volatile Exception failure;
+
+	private static class Row {
+		String lang;
+		String seg;
+		String puretext;
+		long texthash;
+		long lowerhash;
+		int[] ngrams;
+
+		Row(String lang, String seg, String puretext, boolean index) {
+			this.lang = lang;
+			this.seg = seg;
+			this.puretext = puretext;
+			if (puretext != null) {
+				texthash = SqliteDatabase.textHash(puretext, true);
+				lowerhash = SqliteDatabase.textHash(puretext, false);
+				if (index) {
+					ngrams = NGrams.getNGrams(puretext);
+				}
+			}
+		}
+	}
+
+	private static class Prepared {
+		String tuid;
+		Element tu;
+		List<Row> rows;
+
+		Prepared(String tuid, Element tu, List<Row> rows) {
+			this.tuid = tuid;
+			this.tu = tu;
+			this.rows = rows;
+		}
+	}
+
+	/**
+	 * @param fuzzyIndex the index to update as rows are stored, or null to leave
+	 *                   it for a rebuild
+	 */
+	BulkImporter(SqliteDatabase database, Connection conn, TuDatabase tuDb, Catalog catalog, FuzzyIndex fuzzyIndex,
+			String creationId, int threads) {
+		this.database = database;
+		this.conn = conn;
+		this.tuDb = tuDb;
+		this.catalog = catalog;
+		this.fuzzyIndex = fuzzyIndex;
+		this.creationId = creationId;
+		languages = new TreeSet<>();
+		output = new ArrayBlockingQueue<>(QUEUE_SIZE * threads);
+		inputs = new Vector<>();
+		workers = new Vector<>();
+		for (int i = 0; i < threads; i++) {
+			BlockingQueue<Element> input = new ArrayBlockingQueue<>(QUEUE_SIZE);
+			inputs.add(input);
+			Thread worker = new Thread(() -> prepare(input), "bulkImport-" + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+		}
+		writer = new Thread(this::write, "bulkImport-writer");
+		writer.setDaemon(true);
+	}
+
+	void start() {
+		for (int i = 0; i < workers.size(); i++) {
+			workers.get(i).start();
+		}
+		writer.start();
+	}
+
+	void add(Element tu) throws IOException {
+		checkFailure();
+		String tuid = tu.getAttributeValue("tuid");
+		put(inputs.get(Math.floorMod(tuid.hashCode(), inputs.size())), tu);
+	}
+
+	/**
+	 * Waits until all TUs are stored and commits them.
+	 */
+	void finish() throws IOException {
+		for (int i = 0; i < inputs.size(); i++) {
+			put(inputs.get(i), END);
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Stops all threads, discarding the TUs not yet stored.
+	 */
+	void abort() {
+		if (failure == null) {
+			failure = new IOException("Import cancelled");
+		}
+		try {
+			for (int i = 0; i < workers.size(); i++) {
+				workers.get(i).interrupt();
+				workers.get(i).join();
+			}
+			writer.interrupt();
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Languages of the stored segments.
+	 */
+	Set<String> getLanguages() {
+		return languages;
+	}
+
+	private <T> void put(BlockingQueue<T> queue, T value) throws IOException {
+		try {
+			while (!queue.offer(value, 1, TimeUnit.SECONDS)) {
+				checkFailure();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			if (failure instanceof IOException ioe) {
+				throw ioe;
+			}
+			throw new IOException(failure.getMessage(), failure);
+		}
+	}
+
+	private void prepare(BlockingQueue<Element> input) {
+		try {
+			Element tu = input.take();
+			while (tu != END) {
+				String tuid = tu.getAttributeValue("tuid");
+				boolean replaced = database.prepareTu(tu);
+				if (replaced) {
+					tu.setAttribute("changedate", TMUtils.creationDate());
+					tu.setAttribute("changeid", creationId);
+				}
+				List<Row> rows = new Vector<>();
+				Set<String> tuLangs = new TreeSet<>();
+				List<Element> tuvs = tu.getChildren("tuv");
+				Iterator<Element> it = tuvs.iterator();
+				while (it.hasNext()) {
+					Element tuv = it.next();
+					String lang = LanguageUtils.normalizeCode(tuv.getAttributeValue("xml:lang"));
+					if (lang != null && !tuLangs.contains(lang)) {
+						Element seg = tuv.getChild("seg");
+						String puretext = TMUtils.extractText(seg);
+						if (puretext.isEmpty()) {
+							// an empty segment removes the stored one, as in storeTu
+							rows.add(new Row(lang, null, null, false));
+							continue;
+						}
+						rows.add(new Row(lang, seg.toString(), puretext, fuzzyIndex != null));
+						tuLangs.add(lang);
+					}
+				}
+				put(output, new Prepared(tuid, tu, rows));
+				tu = input.take();
+			}
+			put(output, DONE);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			fail(e);
+		}
+	}
+
+	private void write() {
+		int finished = 0;
+		int count = 0;
+		int pending = 0;
+		// texts of the rows added to the current batch, by tuid and language
+		Map<String, String> batched = new HashMap<>();
+		try (PreparedStatement insert = conn.prepareStatement(
+				"INSERT OR REPLACE INTO tuv (tuid, lang, seg, puretext, textlength, texthash, lowerhash) VALUES (?,?,?,?,?,?,?)");
+				PreparedStatement delete = conn.prepareStatement("DELETE FROM tuv WHERE tuid=? AND lang=?");
+				PreparedStatement select = conn.prepareStatement("SELECT puretext FROM tuv WHERE tuid=? AND lang=?")) {
+			try {
+				while (finished < workers.size()) {
+					Prepared prepared = output.take();
+					if (prepared == DONE) {
+						finished++;
+						continue;
+					}
+					Iterator<Row> it = prepared.rows.iterator();
+					while (it.hasNext()) {
+						Row row = it.next();
+						if (fuzzyIndex != null) {
+							unindex(select, batched, prepared.tuid, row.lang);
+						}
+						if (row.seg == null) {
+							// deletes must not overtake inserts of earlier versions of the TU
+							insert.executeBatch();
+							batched.clear();
+							count = 0;
+							delete.setString(1, prepared.tuid);
+							delete.setString(2, row.lang);
+							delete.execute();
+							languages.add(row.lang);
+							continue;
+						}
+						insert.setString(1, prepared.tuid);
+						insert.setString(2, row.lang);
+						insert.setString(3, row.seg);
+						insert.setString(4, row.puretext);
+						insert.setInt(5, row.puretext.length());
+						insert.setLong(6, row.texthash);
+						insert.setLong(7, row.lowerhash);
+						insert.addBatch();
+						batched.put(prepared.tuid + '\t' + row.lang, row.puretext);
+						languages.add(row.lang);
+						if (fuzzyIndex != null) {
+							fuzzyIndex.add(row.lang, prepared.tuid, row.puretext.trim().length(), row.ngrams);
+						}
+						if (++count == BATCH_SIZE) {
+							insert.executeBatch();
+							batched.clear();
+							count = 0;
+						}
+					}
+					// workers may run ahead of the writer, only here is the stored TU current
+					catalog.replace(tuDb.getTu(prepared.tuid), prepared.tu);
+					tuDb.store(prepared.tuid, prepared.tu);
+					if (++pending == COMMIT_SIZE) {
+						insert.executeBatch();
+						batched.clear();
+						count = 0;
+						conn.commit();
+						tuDb.commit();
+						if (fuzzyIndex != null) {
+							fuzzyIndex.commit();
+						}
+						pending = 0;
+					}
+				}
+			} finally {
+				// rows already indexed and recorded in the TU database must be stored too
+				insert.executeBatch();
+			}
+			conn.commit();
+			tuDb.commit();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (SQLException | IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Removes from the fuzzy index the text stored for a TU in a language, if
+	 * any, looking first at the rows not yet inserted.
+	 */
+	private void unindex(PreparedStatement select, Map<String, String> batched, String tuid, String lang)
+			throws SQLException, IOException {
+		String key = tuid + '\t' + lang;
+		String old = batched.get(key);
+		if (old == null && !batched.containsKey(key)) {
+			select.setString(1, tuid);
+			select.setString(2, lang);
+			try (ResultSet rs = select.executeQuery()) {
+				if (rs.next()) {
+					old = rs.getString(1);
+				}
+			}
+		}
+		if (old != null) {
+			fuzzyIndex.remove(lang, tuid, NGrams.getNGrams(old));
+		}
+	}
+
+	private void fail(Exception e) {
+		if (failure == null) {
+			logger.log(Level.ERROR, e.getMessage(), e);
+			failure = e;
+		}
+		for (int i = 0; i < workers.size(); i++) {
+			workers.get(i).interrupt();
+		}
+		writer.interrupt();
+	}
+}
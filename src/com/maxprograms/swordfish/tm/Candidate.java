@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright (c) 2007-2026 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+
+package com.maxprograms.swordfish.tm;
+
+/**
+ * A TU that shares n-grams with a search string.
+ */
+class Candidate {
+
+	private String tuid;
+	private int hits;
+	private int length;
+
+	Candidate(String tuid, int hits, int length) {
+		this.tuid = tuid;
+		this.hits = hits;
+		this.length = length;
+	}
+
+	public String getTuid() {
+		return tuid;
+	}
+
+	public int getHits() {
+		return hits;
+	}
+
+	/**
+	 * Length of the indexed text after trimming, or -1 when the index does not know it.
+	 */
+	public int getLength() {
+		return length;
+	}
+}
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (c) 2007-2026 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+
+package com.maxprograms.swordfish.tm;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.maxprograms.xml.Element;
+
+/**
+ * Languages, clients, projects and subjects of a memory with the number of
+ * TUs that use each of them, stored in the catalog table. Counts are updated
+ * in memory as TUs are stored or removed and written with the next commit;
+ * values no longer used by any TU are dropped.
+ */
+class Catalog {
+
+	static final String LANGUAGE = "lang";
+	static final String CUSTOMER = "customer";
+	static final String PROJECT = "project";
+	static final String SUBJECT = "subject";
+
+	private Map<String, Map<String, Integer>> counts;
+	// values changed since the last save, by kind
+	private Map<String, Set<String>> dirty;
+
+	Catalog() {
+		counts = new HashMap<>();
+		dirty = new HashMap<>();
+	}
+
+	static void createTable(Connection conn) throws SQLException {
+		String sql = """
+				CREATE TABLE catalog (
+				kind VARCHAR(16) NOT NULL,
+				value TEXT NOT NULL,
+				count INTEGER NOT NULL,
+				PRIMARY KEY(kind, value)
+				);""";
+		try (Statement stmt = conn.createStatement()) {
+			stmt.execute(sql);
+		}
+	}
+
+	synchronized void load(Connection conn) throws SQLException {
+		counts.clear();
+		dirty.clear();
+		try (Statement stmt = conn.createStatement()) {
+			try (ResultSet rs = stmt.executeQuery("SELECT kind, value, count FROM catalog")) {
+				while (rs.next()) {
+					getCounts(rs.getString(1), true).put(rs.getString(2), rs.getInt(3));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the changed counts. The caller commits the transaction.
+	 */
+	synchronized void save(Connection conn) throws SQLException {
+		if (dirty.isEmpty()) {
+			return;
+		}
+		try (PreparedStatement update = conn
+				.prepareStatement("INSERT OR REPLACE INTO catalog (kind, value, count) VALUES (?,?,?)");
+				PreparedStatement delete = conn.prepareStatement("DELETE FROM catalog WHERE kind=? AND value=?")) {
+			Iterator<String> it = dirty.keySet().iterator();
+			while (it.hasNext()) {
+				String kind = it.next();
+				Map<String, Integer> values = getCounts(kind, true);
+				Iterator<String> vt = dirty.get(kind).iterator();
+				while (vt.hasNext()) {
+					String value = vt.next();
+					Integer count = values.get(value);
+					if (count == null) {
+						delete.setString(1, kind);
+						delete.setString(2, value);
+						delete.addBatch();
+					} else {
+						update.setString(1, kind);
+						update.setString(2, value);
+						update.setInt(3, count);
+						update.addBatch();
+					}
+				}
+			}
+			update.executeBatch();
+			delete.executeBatch();
+		}
+		dirty.clear();
+	}
+
+	synchronized void add(String kind, String value, int delta) {
+		Map<String, Integer> values = getCounts(kind, true);
+		int count = values.getOrDefault(value, 0) + delta;
+		if (count > 0) {
+			values.put(value, count);
+		} else {
+			values.remove(value);
+		}
+		dirty.computeIfAbsent(kind, k -> new HashSet<>()).add(value);
+	}
+
+	synchronized void set(String kind, String value, int count) {
+		add(kind, value, count - getCounts(kind, true).getOrDefault(value, 0));
+	}
+
+	/**
+	 * Moves the client, project and subject counts from the stored version of a
+	 * TU to the one replacing it. Either of them can be null.
+	 */
+	synchronized void replace(Element oldTu, Element tu) {
+		if (oldTu != null) {
+			addProperties(oldTu, -1);
+		}
+		if (tu != null) {
+			addProperties(tu, 1);
+		}
+	}
+
+	private void addProperties(Element tu, int delta) {
+		List<Element> properties = tu.getChildren("prop");
+		Iterator<Element> it = properties.iterator();
+		while (it.hasNext()) {
+			Element prop = it.next();
+			String type = prop.getAttributeValue("type");
+			if (CUSTOMER.equals(type) || PROJECT.equals(type) || SUBJECT.equals(type)) {
+				add(type, prop.getText(), delta);
+			}
+		}
+	}
+
+	synchronized Set<String> getValues(String kind) {
+		Set<String> result = Collections.synchronizedSortedSet(new TreeSet<>());
+		result.addAll(getCounts(kind, false).keySet());
+		return result;
+	}
+
+	/**
+	 * Number of TUs that use each value of a kind.
+	 */
+	synchronized Map<String, Integer> getCounts(String kind) {
+		return new TreeMap<>(getCounts(kind, false));
+	}
+
+	private Map<String, Integer> getCounts(String kind, boolean create) {
+		Map<String, Integer> values = counts.get(kind);
+		if (values == null) {
+			if (!create) {
+				return Collections.emptyMap();
+			}
+			values = new HashMap<>();
+			counts.put(kind, values);
+		}
+		return values;
+	}
+}
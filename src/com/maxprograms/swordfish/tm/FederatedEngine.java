@@ -0,0 +1,467 @@
+/*******************************************************************************
+ * Copyright (c) 2007-2026 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+
+package com.maxprograms.swordfish.tm;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.URISyntaxException;
+import java.sql.SQLException;
+import java.text.MessageFormat;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.xml.sax.SAXException;
+
+import com.maxprograms.xml.Element;
+
+/**
+ * Searches several memories at once. Every search is sent to all member
+ * engines concurrently; the similarity of each match is reduced by the penalty
+ * of the engine that found it and the results are merged into a single list of
+ * the best matches. An engine that fails or does not answer within its timeout
+ * is left out of the result.
+ * <p>
+ * Member engines are opened and closed by the caller. Changes are written to
+ * the first engine added.
+ */
+public class FederatedEngine implements ITmEngine {
+
+	private static Logger logger = System.getLogger(FederatedEngine.class.getName());
+
+	public static final long DEFAULT_TIMEOUT = 30000;
+	public static final long DEFAULT_BATCH_TIMEOUT = 300000;
+	public static final int DEFAULT_MAX_MATCHES = 10;
+
+	private String name;
+	private int maxMatches;
+	private boolean partitioned;
+	private List<Member> members;
+	private ExecutorService executor;
+
+	private static class Member {
+		ITmEngine engine;
+		int penalty;
+		long timeout;
+		long batchTimeout;
+
+		Member(ITmEngine engine, int penalty, long timeout, long batchTimeout) {
+			this.engine = engine;
+			this.penalty = penalty;
+			this.timeout = timeout;
+			this.batchTimeout = batchTimeout;
+		}
+	}
+
+	public FederatedEngine(String name, int maxMatches) {
+		this(name, maxMatches, false);
+	}
+
+	/**
+	 * @param partitioned true when the engines hold separate parts of one memory:
+	 *                    every engine must answer and equal translations are
+	 *                    not merged
+	 */
+	protected FederatedEngine(String name, int maxMatches, boolean partitioned) {
+		this.name = name;
+		this.maxMatches = maxMatches;
+		this.partitioned = partitioned;
+		members = new Vector<>();
+		executor = Executors.newVirtualThreadPerTaskExecutor();
+	}
+
+	/**
+	 * @param engine  the engine to search
+	 * @param penalty points subtracted from the similarity of its matches
+	 * @param timeout milliseconds to wait for each search, or 0 to wait until it
+	 *                ends
+	 */
+	public void addEngine(ITmEngine engine, int penalty, long timeout) {
+		addEngine(engine, penalty, timeout, timeout);
+	}
+
+	/**
+	 * @param engine       the engine to search
+	 * @param penalty      points subtracted from the similarity of its matches
+	 * @param timeout      milliseconds to wait for each search, or 0 to wait until
+	 *                     it ends
+	 * @param batchTimeout milliseconds to wait for each batch translation,
+	 *                     whatever the number of segments, or 0 to wait until it
+	 *                     ends
+	 */
+	public void addEngine(ITmEngine engine, int penalty, long timeout, long batchTimeout) {
+		members.add(new Member(engine, penalty, timeout, batchTimeout));
+	}
+
+	@Override
+	public String getType() {
+		return FederatedEngine.class.getName();
+	}
+
+	/**
+	 * Stops pending searches. Member engines remain open.
+	 */
+	@Override
+	public void close() throws IOException, SQLException, URISyntaxException {
+		executor.shutdownNow();
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public int storeTMX(String tmxFile, String project, String customer, String subject)
+			throws SAXException, IOException, ParserConfigurationException, SQLException, URISyntaxException {
+		return getPrimary().storeTMX(tmxFile, project, customer, subject);
+	}
+
+	@Override
+	public void exportMemory(String tmxfile, Set<String> langs, String srcLang)
+			throws IOException, SAXException, ParserConfigurationException, SQLException, URISyntaxException {
+		getPrimary().exportMemory(tmxfile, langs, srcLang);
+	}
+
+	@Override
+	public Set<String> getAllClients() throws SQLException, IOException, URISyntaxException {
+		Set<String> result = new TreeSet<>();
+		for (int i = 0; i < members.size(); i++) {
+			result.addAll(members.get(i).engine.getAllClients());
+		}
+		return result;
+	}
+
+	@Override
+	public Set<String> getAllLanguages() throws SQLException, IOException, URISyntaxException {
+		Set<String> result = new TreeSet<>();
+		for (int i = 0; i < members.size(); i++) {
+			result.addAll(members.get(i).engine.getAllLanguages());
+		}
+		return result;
+	}
+
+	@Override
+	public Set<String> getAllProjects() throws SQLException, IOException, URISyntaxException {
+		Set<String> result = new TreeSet<>();
+		for (int i = 0; i < members.size(); i++) {
+			result.addAll(members.get(i).engine.getAllProjects());
+		}
+		return result;
+	}
+
+	@Override
+	public Set<String> getAllSubjects() throws SQLException, IOException, URISyntaxException {
+		Set<String> result = new TreeSet<>();
+		for (int i = 0; i < members.size(); i++) {
+			result.addAll(members.get(i).engine.getAllSubjects());
+		}
+		return result;
+	}
+
+	@Override
+	public List<Match> searchTranslation(String searchStr, String srcLang, String tgtLang, int similarity,
+			boolean caseSensitive)
+			throws IOException, SAXException, ParserConfigurationException, SQLException, URISyntaxException {
+		List<List<Match>> results = invokeAll(
+				engine -> engine.searchTranslation(searchStr, srcLang, tgtLang, similarity, caseSensitive));
+		List<Match> matches = new Vector<>();
+		for (int i = 0; i < results.size(); i++) {
+			List<Match> list = results.get(i);
+			if (list != null) {
+				penalize(list, members.get(i).penalty);
+				matches.addAll(list);
+			}
+		}
+		return merge(matches);
+	}
+
+	@Override
+	public List<Element> searchAll(String searchStr, String srcLang, int similarity, boolean caseSensitive)
+			throws IOException, SAXException, ParserConfigurationException, SQLException, URISyntaxException {
+		List<List<Element>> results = invokeAll(
+				engine -> engine.searchAll(searchStr, srcLang, similarity, caseSensitive));
+		List<Element> result = new Vector<>();
+		for (int i = 0; i < results.size(); i++) {
+			if (results.get(i) != null) {
+				result.addAll(results.get(i));
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public List<Element> concordanceSearch(String searchStr, String srcLang, int limit, boolean isRegexp,
+			boolean caseSensitive)
+			throws IOException, SAXException, ParserConfigurationException, SQLException, URISyntaxException {
+		List<List<Element>> results = invokeAll(
+				engine -> engine.concordanceSearch(searchStr, srcLang, limit, isRegexp, caseSensitive));
+		List<Element> result = new Vector<>();
+		for (int i = 0; i < results.size() && result.size() < limit; i++) {
+			List<Element> list = results.get(i);
+			if (list != null) {
+				result.addAll(list.subList(0, Math.min(list.size(), limit - result.size())));
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public void storeTu(Element tu) throws IOException, SQLException, URISyntaxException {
+		getPrimary().storeTu(tu);
+	}
+
+	@Override
+	public void commit() throws SQLException, IOException, URISyntaxException {
+		getPrimary().commit();
+	}
+
+	/**
+	 * Returns the TU from the first engine that has it. Local memories return an
+	 * empty {@code <tu>} for unknown ids, which is returned only when no engine
+	 * has the TU.
+	 */
+	@Override
+	public Element getTu(String tuid)
+			throws IOException, SAXException, ParserConfigurationException, SQLException, URISyntaxException {
+		Element empty = null;
+		for (int i = 0; i < members.size(); i++) {
+			Element tu = members.get(i).engine.getTu(tuid);
+			if (tu == null) {
+				continue;
+			}
+			if (!tu.getChildren("tuv").isEmpty()) {
+				return tu;
+			}
+			if (empty == null) {
+				empty = tu;
+			}
+		}
+		return empty;
+	}
+
+	@Override
+	public void removeTu(String tuid)
+			throws IOException, SAXException, ParserConfigurationException, SQLException, URISyntaxException {
+		getPrimary().removeTu(tuid);
+	}
+
+	@Override
+	public void deleteDatabase() throws IOException, SQLException, URISyntaxException {
+		MessageFormat mf = new MessageFormat(Messages.getString("FederatedEngine.0"));
+		throw new IOException(mf.format(new String[] { name }));
+	}
+
+	/**
+	 * Translates the segments with every member engine and keeps the best
+	 * matches of each segment. Each engine has its batch timeout for the whole
+	 * batch. Segments that no engine answered are returned with no matches.
+	 */
+	@Override
+	public JSONArray batchTranslate(JSONObject params)
+			throws IOException, SAXException, ParserConfigurationException, SQLException, URISyntaxException {
+		JSONArray segments = params.getJSONArray("segments");
+		String text = params.toString();
+		List<JSONArray> results = invokeAll(engine -> engine.batchTranslate(new JSONObject(text)), true);
+		Map<String, List<Match>> translated = new Hashtable<>();
+		for (int i = 0; i < results.size(); i++) {
+			JSONArray array = results.get(i);
+			if (array == null) {
+				continue;
+			}
+			int penalty = members.get(i).penalty;
+			for (int j = 0; j < array.length(); j++) {
+				JSONObject json = array.getJSONObject(j);
+				List<Match> list = translated.computeIfAbsent(getKey(json), k -> new Vector<>());
+				JSONArray matches = json.getJSONArray("matches");
+				for (int k = 0; k < matches.length(); k++) {
+					Match match = new Match(matches.getJSONObject(k));
+					match.setSimilarity(match.getSimilarity() - penalty);
+					list.add(match);
+				}
+			}
+		}
+		JSONArray result = new JSONArray();
+		for (int i = 0; i < segments.length(); i++) {
+			JSONObject json = new JSONObject(segments.getJSONObject(i).toString());
+			List<Match> list = translated.get(getKey(json));
+			JSONArray array = new JSONArray();
+			List<Match> matches = list == null ? new Vector<>() : merge(list);
+			for (int j = 0; j < matches.size(); j++) {
+				array.put(matches.get(j).toJSON());
+			}
+			json.put("matches", array);
+			result.put(json);
+		}
+		return result;
+	}
+
+	@Override
+	public JSONObject getCacheStatistics() {
+		JSONObject result = new JSONObject();
+		for (int i = 0; i < members.size(); i++) {
+			ITmEngine engine = members.get(i).engine;
+			result.put(engine.getName(), engine.getCacheStatistics());
+		}
+		return result;
+	}
+
+	private ITmEngine getPrimary() throws IOException {
+		if (members.isEmpty()) {
+			MessageFormat mf = new MessageFormat(Messages.getString("FederatedEngine.1"));
+			throw new IOException(mf.format(new String[] { name }));
+		}
+		return members.get(0).engine;
+	}
+
+	protected interface Search<T> {
+		T run(ITmEngine engine)
+				throws IOException, SAXException, ParserConfigurationException, SQLException, URISyntaxException;
+	}
+
+	/**
+	 * Runs the search on all members at once and returns their results in the
+	 * order of the members, with null for the engines that failed or timed out.
+	 * The first failure is thrown only when no engine answered, or always for
+	 * partitioned engines.
+	 */
+	protected <T> List<T> invokeAll(Search<T> search)
+			throws IOException, SAXException, ParserConfigurationException, SQLException, URISyntaxException {
+		return invokeAll(search, false);
+	}
+
+	/**
+	 * Same as {@link #invokeAll(Search)}, waiting for each engine up to its batch
+	 * timeout instead of its search timeout when {@code batch} is true.
+	 */
+	protected <T> List<T> invokeAll(Search<T> search, boolean batch)
+			throws IOException, SAXException, ParserConfigurationException, SQLException, URISyntaxException {
+		List<Future<T>> futures = new Vector<>();
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < members.size(); i++) {
+			ITmEngine engine = members.get(i).engine;
+			Callable<T> task = () -> search.run(engine);
+			futures.add(executor.submit(task));
+		}
+		List<T> results = new Vector<>();
+		Throwable failure = null;
+		boolean answered = false;
+		for (int i = 0; i < futures.size(); i++) {
+			Member member = members.get(i);
+			Future<T> future = futures.get(i);
+			T result = null;
+			try {
+				long timeout = batch ? member.batchTimeout : member.timeout;
+				if (timeout > 0) {
+					long remaining = start + timeout - System.currentTimeMillis();
+					result = future.get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+				} else {
+					result = future.get();
+				}
+				answered = true;
+			} catch (TimeoutException e) {
+				future.cancel(true);
+				MessageFormat mf = new MessageFormat(Messages.getString("FederatedEngine.2"));
+				logger.log(Level.WARNING, mf.format(new String[] { member.engine.getName() }));
+			} catch (InterruptedException e) {
+				for (int j = i; j < futures.size(); j++) {
+					futures.get(j).cancel(true);
+				}
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				logger.log(Level.WARNING, member.engine.getName() + ": " + e.getCause().getMessage(), e.getCause());
+				if (failure == null) {
+					failure = e.getCause();
+				}
+			}
+			results.add(result);
+		}
+		if (failure != null && (!answered || partitioned)) {
+			rethrow(failure);
+		}
+		return results;
+	}
+
+	private static void rethrow(Throwable cause)
+			throws IOException, SAXException, ParserConfigurationException, SQLException, URISyntaxException {
+		if (cause instanceof IOException ioe) {
+			throw ioe;
+		}
+		if (cause instanceof SQLException sqle) {
+			throw sqle;
+		}
+		if (cause instanceof SAXException saxe) {
+			throw saxe;
+		}
+		if (cause instanceof ParserConfigurationException pce) {
+			throw pce;
+		}
+		if (cause instanceof URISyntaxException use) {
+			throw use;
+		}
+		throw new IOException(cause);
+	}
+
+	private static void penalize(List<Match> matches, int penalty) {
+		if (penalty == 0) {
+			return;
+		}
+		Iterator<Match> it = matches.iterator();
+		while (it.hasNext()) {
+			Match match = it.next();
+			match.setSimilarity(match.getSimilarity() - penalty);
+		}
+	}
+
+	/**
+	 * Sorts the matches and keeps the best {@code maxMatches}. Unless the engines
+	 * are partitioned, a translation found in several memories is listed once.
+	 */
+	private List<Match> merge(List<Match> matches) {
+		Collections.sort(matches);
+		List<Match> result = new Vector<>();
+		Set<String> seen = new HashSet<>();
+		Iterator<Match> it = matches.iterator();
+		while (it.hasNext() && result.size() < maxMatches) {
+			Match match = it.next();
+			if (partitioned || seen.add(match.getSource().toString() + match.getTarget().toString())) {
+				result.add(match);
+			}
+		}
+		return result;
+	}
+
+	private static String getKey(JSONObject segment) {
+		return segment.optString("file") + '\u0000' + segment.optString("unit") + '\u0000'
+				+ segment.optString("segment") + '\u0000' + segment.optString("pure");
+	}
+}
@@ -14,69 +14,519 @@ package com.maxprograms.swordfish.tm;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.file.Files;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.mapdb.Atomic;
+import org.mapdb.BTreeMap;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 import org.mapdb.Fun;
+import org.mapdb.HTreeMap;
 
+/**
+ * N-gram index for fuzzy searches. Each language keeps its own file where TU
+ * ids are mapped to dense int ids and, for every n-gram hash, the ids that
+ * contain it are stored as compressed posting lists (see {@link PostingList}).
+ * The trimmed text length of every entry is kept to bound similarity scores.
+ * Indexes written by older versions in {@code index_<lang>} files are converted
+ * the first time the language is opened. The conversion is written to a
+ * separate file that only replaces the old index once complete, so it starts
+ * again if it was interrupted.
+ */
 public class FuzzyIndex {
 
-	private Map<String, NavigableSet<Fun.Tuple2<Integer, String>>> maps;
-	private Map<String, DB> databases;
+	private static Logger logger = System.getLogger(FuzzyIndex.class.getName());
+
+	private static final String PREFIX = "fuzzy_";
+	private static final String OLD_PREFIX = "index_";
+	private static final int MIGRATION_COMMIT = 100000;
+
+	private static final String REBUILD_SUFFIX = ".rebuild";
+	private static final String MIGRATE_SUFFIX = ".migrate";
+
+	// files written by MapDB for each index, the main one last
+	private static final String[] FILE_SUFFIXES = { ".p", ".t", "" };
+
+	private Map<String, LangIndex> maps;
+	private Map<String, List<Change>> changes;
+	private ReentrantReadWriteLock lock;
 	private File folder;
 
+	static class LangIndex {
+		DB db;
+		BTreeMap<Long, byte[]> postings;
+		HTreeMap<String, Integer> ids;
+		HTreeMap<Integer, Fun.Tuple2<String, Integer>> entries;
+		Atomic.Integer nextId;
+
+		LangIndex(DB db) {
+			this.db = db;
+			postings = db.getTreeMap("postings");
+			ids = db.getHashMap("ids");
+			entries = db.getHashMap("entries");
+			nextId = db.getAtomicInteger("nextId");
+		}
+	}
+
 	public FuzzyIndex(File folder) {
 		this.folder = folder;
-		databases = new Hashtable<>();
 		maps = new Hashtable<>();
+		changes = new Hashtable<>();
+		lock = new ReentrantReadWriteLock();
 	}
 
-	NavigableSet<Fun.Tuple2<Integer, String>> getIndex(String lang) throws IOException {
+	synchronized LangIndex getIndex(String lang) throws IOException {
 		if (!maps.containsKey(lang)) {
-			DB mapdb = null;
+			File file = new File(folder, PREFIX + lang);
+			File old = new File(folder, OLD_PREFIX + lang);
+			if (old.exists()) {
+				if (!file.exists()) {
+					migrate(lang, old, file);
+				}
+				deleteFiles(old);
+			}
+			LangIndex index = null;
 			try {
-				mapdb = DBMaker.newFileDB(new File(folder, "index_" + lang)).closeOnJvmShutdown().make();
+				index = new LangIndex(DBMaker.newFileDB(file).closeOnJvmShutdown().make());
 			} catch (Error ioe) {
 				throw new IOException(ioe.getMessage());
 			}
-			NavigableSet<Fun.Tuple2<Integer, String>> multiMap = mapdb.getTreeSet(lang);
-			databases.put(lang, mapdb);
-			maps.put(lang, multiMap);
+			maps.put(lang, index);
 		}
 		return maps.get(lang);
 	}
 
+	private static class Change {
+		String tuid;
+		int length;
+		int[] ngrams;
+		boolean removed;
+
+		Change(String tuid, int length, int[] ngrams, boolean removed) {
+			this.tuid = tuid;
+			this.length = length;
+			this.ngrams = ngrams;
+			this.removed = removed;
+		}
+	}
+
+	/**
+	 * Indexes the n-grams of a TU. The length is that of the trimmed text.
+	 */
+	public void add(String lang, String tuid, int length, int[] ngrams) throws IOException {
+		lock.readLock().lock();
+		try {
+			LangIndex index = getIndex(lang);
+			synchronized (index) {
+				insert(index, tuid, length, ngrams);
+				List<Change> log = changes.get(lang);
+				if (log != null) {
+					log.add(new Change(tuid, length, ngrams, false));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes a TU from the index. The n-grams must be those of the text that was
+	 * indexed; the TU stops being a candidate even if some of them differ.
+	 */
+	public void remove(String lang, String tuid, int[] ngrams) throws IOException {
+		lock.readLock().lock();
+		try {
+			LangIndex index = getIndex(lang);
+			synchronized (index) {
+				delete(index, tuid, ngrams);
+				List<Change> log = changes.get(lang);
+				if (log != null) {
+					log.add(new Change(tuid, -1, ngrams, true));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private static void insert(LangIndex index, String tuid, int length, int[] ngrams) {
+		Integer id = index.ids.get(tuid);
+		if (id == null) {
+			id = index.nextId.getAndIncrement();
+			index.ids.put(tuid, id);
+		}
+		index.entries.put(id, Fun.t2(tuid, length));
+		int block = PostingList.block(id);
+		int low = PostingList.low(id);
+		for (int i = 0; i < ngrams.length; i++) {
+			long key = PostingList.key(ngrams[i], block);
+			byte[] container = index.postings.get(key);
+			byte[] updated = PostingList.add(container, low);
+			if (updated != container) {
+				index.postings.put(key, updated);
+			}
+		}
+	}
+
+	private static void delete(LangIndex index, String tuid, int[] ngrams) {
+		Integer id = index.ids.get(tuid);
+		if (id == null) {
+			return;
+		}
+		// the id is kept so that a new version of the TU reuses it
+		index.entries.remove(id);
+		int block = PostingList.block(id);
+		int low = PostingList.low(id);
+		for (int i = 0; i < ngrams.length; i++) {
+			long key = PostingList.key(ngrams[i], block);
+			byte[] container = index.postings.get(key);
+			byte[] updated = PostingList.remove(container, low);
+			if (updated == null) {
+				if (container != null) {
+					index.postings.remove(key);
+				}
+			} else if (updated != container) {
+				index.postings.put(key, updated);
+			}
+		}
+	}
+
+	/**
+	 * Collects the TUs that share between {@code min} and {@code max} n-grams with
+	 * the search text. Entries whose trimmed text is longer than {@code maxLength}
+	 * are skipped, as their untrimmed text is necessarily longer too.
+	 */
+	public List<Candidate> getCandidates(String lang, int[] ngrams, int min, int max, int maxLength)
+			throws IOException {
+		lock.readLock().lock();
+		try {
+			return getCandidates(getIndex(lang), ngrams, min, max, maxLength);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private static List<Candidate> getCandidates(LangIndex index, int[] ngrams, int min, int max, int maxLength) {
+		IntCounter counter = new IntCounter(256);
+		for (int i = 0; i < ngrams.length; i++) {
+			Map<Long, byte[]> blocks = index.postings.subMap(PostingList.firstKey(ngrams[i]), true,
+					PostingList.lastKey(ngrams[i]), true);
+			Iterator<Map.Entry<Long, byte[]>> it = blocks.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Long, byte[]> entry = it.next();
+				PostingList.forEach(entry.getValue(), PostingList.blockOf(entry.getKey()), counter::increment);
+			}
+		}
+		List<Candidate> result = new Vector<>();
+		for (int slot = 0; slot < counter.capacity(); slot++) {
+			int id = counter.keyAt(slot);
+			if (id == -1) {
+				continue;
+			}
+			int count = counter.countAt(slot);
+			if (count < min || count > max) {
+				continue;
+			}
+			Fun.Tuple2<String, Integer> entry = index.entries.get(id);
+			if (entry == null) {
+				continue;
+			}
+			int length = entry.b;
+			if (length > maxLength) {
+				continue;
+			}
+			result.add(new Candidate(entry.a, count, length));
+		}
+		return result;
+	}
+
+	/**
+	 * Converts an index written by an older version into {@code target}. The new
+	 * index is built in a separate file and moved into place when complete; a
+	 * conversion left unfinished is discarded and started again.
+	 */
+	private void migrate(String lang, File old, File target) throws IOException {
+		logger.log(Level.INFO, "Converting fuzzy index " + old.getAbsolutePath());
+		long start = System.currentTimeMillis();
+		File file = new File(folder, PREFIX + lang + MIGRATE_SUFFIX);
+		deleteFiles(file);
+		DB oldDb = null;
+		LangIndex index = null;
+		try {
+			oldDb = DBMaker.newFileDB(old).make();
+			index = new LangIndex(DBMaker.newFileDB(file).make());
+		} catch (Error ioe) {
+			if (oldDb != null) {
+				oldDb.close();
+			}
+			throw new IOException(ioe.getMessage());
+		}
+		NavigableSet<Fun.Tuple2<Integer, String>> set = oldDb.getTreeSet(lang);
+		int[] ids = new int[1024];
+		int count = 0;
+		int current = 0;
+		int pending = 0;
+		Iterator<Fun.Tuple2<Integer, String>> it = set.iterator();
+		while (it.hasNext()) {
+			Fun.Tuple2<Integer, String> tuple = it.next();
+			if (count > 0 && tuple.a.intValue() != current) {
+				writeBlocks(index.postings, current, ids, count);
+				count = 0;
+			}
+			current = tuple.a;
+			Integer id = index.ids.get(tuple.b);
+			if (id == null) {
+				id = index.nextId.getAndIncrement();
+				index.ids.put(tuple.b, id);
+				index.entries.put(id, Fun.t2(tuple.b, -1));
+			}
+			if (count == ids.length) {
+				ids = Arrays.copyOf(ids, count * 2);
+			}
+			ids[count++] = id;
+			if (++pending == MIGRATION_COMMIT) {
+				index.db.commit();
+				pending = 0;
+			}
+		}
+		if (count > 0) {
+			writeBlocks(index.postings, current, ids, count);
+		}
+		index.db.commit();
+		index.db.close();
+		oldDb.close();
+		moveFiles(file, target);
+		logger.log(Level.INFO, "Fuzzy index converted in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Stores the ids of one n-gram in as many blocks as needed. The array is
+	 * sorted in place; existing blocks for the n-gram are replaced.
+	 */
+	static void writeBlocks(BTreeMap<Long, byte[]> postings, int gram, int[] ids, int count) {
+		Arrays.sort(ids, 0, count);
+		int[] lows = new int[Math.min(count, PostingList.BLOCK_MASK + 1)];
+		int i = 0;
+		while (i < count) {
+			int block = PostingList.block(ids[i]);
+			int size = 0;
+			while (i < count && PostingList.block(ids[i]) == block) {
+				int low = PostingList.low(ids[i]);
+				if (size == 0 || lows[size - 1] != low) {
+					lows[size++] = low;
+				}
+				i++;
+			}
+			postings.put(PostingList.key(gram, block), PostingList.encode(lows, size));
+		}
+	}
+
+	/**
+	 * Writes a new index for a language next to the one in use. TUs must be added
+	 * once each; their ids are assigned in order and every block of postings is
+	 * written when the next one starts, so memory use stays bounded.
+	 */
+	class Builder {
+
+		private String lang;
+		private File file;
+		private LangIndex index;
+		private int block;
+		private Map<Integer, int[]> grams;
+		private Map<Integer, Integer> counts;
+		private int pending;
+
+		Builder(String lang) throws IOException {
+			this.lang = lang;
+			file = new File(folder, PREFIX + lang + REBUILD_SUFFIX);
+			deleteFiles(file);
+			try {
+				index = new LangIndex(DBMaker.newFileDB(file).closeOnJvmShutdown().make());
+			} catch (Error ioe) {
+				throw new IOException(ioe.getMessage());
+			}
+			grams = new HashMap<>();
+			counts = new HashMap<>();
+		}
+
+		void add(String tuid, int length, int[] ngrams) {
+			if (index.ids.containsKey(tuid)) {
+				return;
+			}
+			int id = index.nextId.getAndIncrement();
+			index.ids.put(tuid, id);
+			index.entries.put(id, Fun.t2(tuid, length));
+			if (PostingList.block(id) != block) {
+				flush();
+				block = PostingList.block(id);
+			}
+			int low = PostingList.low(id);
+			for (int i = 0; i < ngrams.length; i++) {
+				Integer gram = ngrams[i];
+				int[] lows = grams.get(gram);
+				int count = lows == null ? 0 : counts.get(gram);
+				if (lows == null) {
+					lows = new int[4];
+					grams.put(gram, lows);
+				} else if (count == lows.length) {
+					lows = Arrays.copyOf(lows, count * 2);
+					grams.put(gram, lows);
+				}
+				lows[count] = low;
+				counts.put(gram, count + 1);
+			}
+			if (++pending == MIGRATION_COMMIT) {
+				flush();
+				index.db.commit();
+				pending = 0;
+			}
+		}
+
+		private void flush() {
+			Iterator<Integer> it = grams.keySet().iterator();
+			while (it.hasNext()) {
+				Integer gram = it.next();
+				long key = PostingList.key(gram, block);
+				int[] lows = grams.get(gram);
+				int count = counts.get(gram);
+				byte[] container = index.postings.get(key);
+				if (container != null) {
+					// block already partly written by a previous flush
+					int[] stored = PostingList.decode(container);
+					int[] merged = Arrays.copyOf(stored, stored.length + count);
+					System.arraycopy(lows, 0, merged, stored.length, count);
+					lows = merged;
+					count = merged.length;
+				}
+				index.postings.put(key, PostingList.encode(lows, count));
+			}
+			grams.clear();
+			counts.clear();
+		}
+
+		/**
+		 * Applies the changes made to the live index since the rebuild started and
+		 * replaces it with the new one.
+		 */
+		void finish() throws IOException {
+			flush();
+			lock.writeLock().lock();
+			try {
+				List<Change> log = changes.remove(lang);
+				if (log != null) {
+					Iterator<Change> it = log.iterator();
+					while (it.hasNext()) {
+						Change change = it.next();
+						if (change.removed) {
+							delete(index, change.tuid, change.ngrams);
+						} else {
+							insert(index, change.tuid, change.length, change.ngrams);
+						}
+					}
+				}
+				index.db.commit();
+				index.db.close();
+				synchronized (FuzzyIndex.this) {
+					File current = new File(folder, PREFIX + lang);
+					LangIndex old = maps.remove(lang);
+					if (old != null) {
+						old.db.close();
+					}
+					moveFiles(file, current);
+					getIndex(lang);
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		void cancel() throws IOException {
+			changes.remove(lang);
+			index.db.close();
+			deleteFiles(file);
+		}
+	}
+
+	/**
+	 * Starts rebuilding the index of a language. Changes made through
+	 * {@link #add(String, String, int, int[])} and
+	 * {@link #remove(String, String, int[])} from now on are recorded and applied
+	 * to the new index when the builder finishes.
+	 */
+	Builder startRebuild(String lang) throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (changes.containsKey(lang)) {
+				MessageFormat mf = new MessageFormat(Messages.getString("FuzzyIndex.0"));
+				throw new IOException(mf.format(new String[] { lang }));
+			}
+			Builder builder = new Builder(lang);
+			changes.put(lang, new Vector<>());
+			return builder;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void deleteFiles(File file) throws IOException {
+		String[] suffixes = { "", ".p", ".t" };
+		for (int i = 0; i < suffixes.length; i++) {
+			Files.deleteIfExists(new File(folder, file.getName() + suffixes[i]).toPath());
+		}
+	}
+
+	/**
+	 * Replaces the files of an index with those of another one. The main file is
+	 * moved last, so the index only exists once all its files are in place.
+	 */
+	private void moveFiles(File from, File to) throws IOException {
+		deleteFiles(to);
+		for (int i = 0; i < FILE_SUFFIXES.length; i++) {
+			File built = new File(folder, from.getName() + FILE_SUFFIXES[i]);
+			if (built.exists()) {
+				Files.move(built.toPath(), new File(folder, to.getName() + FILE_SUFFIXES[i]).toPath());
+			}
+		}
+	}
+
 	public synchronized void commit() {
-		Set<String> set = databases.keySet();
+		Set<String> set = maps.keySet();
 		Iterator<String> keys = set.iterator();
 		while (keys.hasNext()) {
 			String key = keys.next();
-			databases.get(key).commit();
+			maps.get(key).db.commit();
 		}
 	}
 
 	public void rollback() {
-		Set<String> set = databases.keySet();
+		Set<String> set = maps.keySet();
 		Iterator<String> keys = set.iterator();
 		while (keys.hasNext()) {
 			String key = keys.next();
-			databases.get(key).rollback();
+			maps.get(key).db.rollback();
 		}
 	}
 
 	public synchronized void close() {
-		Set<String> set = databases.keySet();
+		Set<String> set = maps.keySet();
 		Iterator<String> keys = set.iterator();
 		while (keys.hasNext()) {
-			DB db = databases.get(keys.next());
+			DB db = maps.get(keys.next()).db;
 			db.close();
 		}
-		databases.clear();
 		maps.clear();
 	}
 }
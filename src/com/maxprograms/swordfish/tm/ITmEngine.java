@@ -25,9 +25,10 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.xml.sax.SAXException;
 
+import com.maxprograms.swordfish.tmx.TuSink;
 import com.maxprograms.xml.Element;
 
-public interface ITmEngine {
+public interface ITmEngine extends TuSink {
 
 	public abstract String getType();
 
@@ -59,8 +60,10 @@ public interface ITmEngine {
 	public abstract List<Element> concordanceSearch(String searchStr, String srcLang, int limit, boolean isRegexp,
 			boolean caseSensitive) throws IOException, SAXException, ParserConfigurationException, SQLException, URISyntaxException;
 
+	@Override
 	public abstract void storeTu(Element tu) throws IOException, SQLException, URISyntaxException;
 
+	@Override
 	public abstract void commit() throws SQLException, IOException, URISyntaxException;
 
 	public abstract Element getTu(String tuid)
@@ -73,4 +76,6 @@ public interface ITmEngine {
 
 	public abstract JSONArray batchTranslate(JSONObject params)
 			throws IOException, SAXException, ParserConfigurationException, SQLException, URISyntaxException;
+
+	public abstract JSONObject getCacheStatistics();
 }
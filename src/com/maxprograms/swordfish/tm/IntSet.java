@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2007-2026 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+
+package com.maxprograms.swordfish.tm;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing set of int values that can be cleared and reused.
+ */
+final class IntSet {
+
+	// 0 marks empty slots; its presence is tracked apart
+	private int[] keys;
+	private boolean hasZero;
+	private int size;
+	private int mask;
+
+	IntSet(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(16, expected * 2) - 1) << 1;
+		keys = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	void add(int key) {
+		if (key == 0) {
+			if (!hasZero) {
+				hasZero = true;
+				size++;
+			}
+			return;
+		}
+		int slot = mix(key) & mask;
+		while (keys[slot] != 0) {
+			if (keys[slot] == key) {
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		if (++size * 2 > keys.length) {
+			grow();
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		if (size > 0) {
+			Arrays.fill(keys, 0);
+			hasZero = false;
+			size = 0;
+		}
+	}
+
+	int[] toSortedArray() {
+		int[] result = new int[size];
+		int idx = 0;
+		if (hasZero) {
+			result[idx++] = 0;
+		}
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != 0) {
+				result[idx++] = keys[i];
+			}
+		}
+		Arrays.sort(result);
+		return result;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		keys = new int[oldKeys.length * 2];
+		mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0) {
+				int slot = mix(oldKeys[i]) & mask;
+				while (keys[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+			}
+		}
+	}
+
+	private static int mix(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
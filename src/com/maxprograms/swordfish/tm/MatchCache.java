@@ -0,0 +1,323 @@
+/*******************************************************************************
+ * Copyright (c) 2007-2026 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+
+package com.maxprograms.swordfish.tm;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Vector;
+
+import org.json.JSONObject;
+
+import com.maxprograms.xml.Attribute;
+import com.maxprograms.xml.Element;
+import com.maxprograms.xml.TextNode;
+import com.maxprograms.xml.XMLNode;
+
+/**
+ * Keeps the results of recent translation searches. Entries are dropped in
+ * least recently used order once their total weight, roughly the number of
+ * characters they hold, exceeds the limit. Every entry is indexed by the
+ * n-grams of its search string, so that storing a segment only drops the
+ * entries whose search could have found it, and by the ids of its matches, so
+ * that changing or removing a TU drops the entries that hold it. Callers get
+ * copies of the cached matches and may change them freely.
+ */
+public class MatchCache {
+
+	public static final long DEFAULT_WEIGHT = 8 * 1024 * 1024;
+
+	private long maxWeight;
+	private long timeToLive;
+	private long weight;
+	private long generation;
+	private LinkedHashMap<Key, Entry> entries;
+	private Map<String, Map<Integer, Set<Key>>> index;
+	private Map<String, Set<Key>> ids;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long invalidations;
+
+	private static class Key {
+		String source;
+		String srcLang;
+		String tgtLang;
+		int similarity;
+		boolean caseSensitive;
+		int limit;
+
+		Key(String source, String srcLang, String tgtLang, int similarity, boolean caseSensitive, int limit) {
+			this.source = source;
+			this.srcLang = srcLang;
+			this.tgtLang = tgtLang;
+			this.similarity = similarity;
+			this.caseSensitive = caseSensitive;
+			this.limit = limit;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key key)) {
+				return false;
+			}
+			return similarity == key.similarity && caseSensitive == key.caseSensitive && limit == key.limit
+					&& source.equals(key.source) && srcLang.equals(key.srcLang) && tgtLang.equals(key.tgtLang);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(source, srcLang, tgtLang, similarity, caseSensitive, limit);
+		}
+	}
+
+	private static class Entry {
+		List<Match> matches;
+		int[] ngrams;
+		long weight;
+		long created;
+
+		Entry(List<Match> matches, int[] ngrams, long weight) {
+			this.matches = matches;
+			this.ngrams = ngrams;
+			this.weight = weight;
+			created = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @param maxWeight  approximate number of characters to keep
+	 * @param timeToLive milliseconds an entry stays valid, or 0 to keep entries
+	 *                   until they are evicted or invalidated
+	 */
+	public MatchCache(long maxWeight, long timeToLive) {
+		this.maxWeight = maxWeight;
+		this.timeToLive = timeToLive;
+		entries = new LinkedHashMap<>(256, 0.75f, true);
+		index = new HashMap<>();
+		ids = new HashMap<>();
+	}
+
+	/**
+	 * Value to pass to {@link #put} for a search that starts now. Results of
+	 * searches that overlap an invalidation are not cached.
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	public synchronized List<Match> get(String source, String srcLang, String tgtLang, int similarity,
+			boolean caseSensitive, int limit) {
+		Key key = new Key(source, srcLang, tgtLang, similarity, caseSensitive, limit);
+		Entry entry = entries.get(key);
+		if (entry != null && timeToLive > 0 && System.currentTimeMillis() - entry.created > timeToLive) {
+			remove(key);
+			entry = null;
+		}
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return copy(entry.matches);
+	}
+
+	public synchronized void put(long searchGeneration, String source, String srcLang, String tgtLang,
+			int similarity, boolean caseSensitive, int limit, List<Match> matches) {
+		if (searchGeneration != generation) {
+			return;
+		}
+		Key key = new Key(source, srcLang, tgtLang, similarity, caseSensitive, limit);
+		remove(key);
+		long size = 64L + source.length();
+		Iterator<Match> it = matches.iterator();
+		while (it.hasNext()) {
+			Match match = it.next();
+			size += 64L + match.getSource().toString().length() + match.getTarget().toString().length();
+		}
+		if (size > maxWeight) {
+			return;
+		}
+		Entry entry = new Entry(copy(matches), NGrams.getNGrams(source), size);
+		entries.put(key, entry);
+		weight += size;
+		Map<Integer, Set<Key>> grams = index.computeIfAbsent(srcLang, k -> new HashMap<>());
+		for (int i = 0; i < entry.ngrams.length; i++) {
+			grams.computeIfAbsent(entry.ngrams[i], k -> new HashSet<>()).add(key);
+		}
+		Iterator<Match> mt = entry.matches.iterator();
+		while (mt.hasNext()) {
+			ids.computeIfAbsent(mt.next().getId(), k -> new HashSet<>()).add(key);
+		}
+		Iterator<Map.Entry<Key, Entry>> et = entries.entrySet().iterator();
+		while (weight > maxWeight && et.hasNext()) {
+			Map.Entry<Key, Entry> eldest = et.next();
+			et.remove();
+			unindex(eldest.getKey(), eldest.getValue());
+			evictions++;
+		}
+	}
+
+	/**
+	 * Drops the entries that searched in {@code lang} for a text sharing at least
+	 * one n-gram with the given ones. A segment without shared n-grams is never a
+	 * candidate for those searches.
+	 */
+	public synchronized void invalidate(String lang, int[] ngrams) {
+		generation++;
+		Map<Integer, Set<Key>> grams = index.get(lang);
+		if (grams == null) {
+			return;
+		}
+		Set<Key> affected = new HashSet<>();
+		for (int i = 0; i < ngrams.length; i++) {
+			Set<Key> keys = grams.get(ngrams[i]);
+			if (keys != null) {
+				affected.addAll(keys);
+			}
+		}
+		Iterator<Key> it = affected.iterator();
+		while (it.hasNext()) {
+			remove(it.next());
+			invalidations++;
+		}
+	}
+
+	/**
+	 * Drops the entries with a match taken from the given TU, whatever part of
+	 * the TU changed.
+	 */
+	public synchronized void invalidate(String tuid) {
+		generation++;
+		Set<Key> keys = ids.get(tuid);
+		if (keys == null) {
+			return;
+		}
+		Iterator<Key> it = new Vector<>(keys).iterator();
+		while (it.hasNext()) {
+			remove(it.next());
+			invalidations++;
+		}
+	}
+
+	/**
+	 * Source languages of the entries that search for matches in
+	 * {@code tgtLang}.
+	 */
+	public synchronized Set<String> getSourceLanguages(String tgtLang) {
+		Set<String> result = new TreeSet<>();
+		Iterator<Key> it = entries.keySet().iterator();
+		while (it.hasNext()) {
+			Key key = it.next();
+			if (key.tgtLang.equals(tgtLang)) {
+				result.add(key.srcLang);
+			}
+		}
+		return result;
+	}
+
+	public synchronized void clear() {
+		generation++;
+		invalidations += entries.size();
+		entries.clear();
+		index.clear();
+		ids.clear();
+		weight = 0;
+	}
+
+	public synchronized JSONObject getStatistics() {
+		JSONObject result = new JSONObject();
+		result.put("entries", entries.size());
+		result.put("weight", weight);
+		result.put("hits", hits);
+		result.put("misses", misses);
+		result.put("evictions", evictions);
+		result.put("invalidations", invalidations);
+		return result;
+	}
+
+	private void remove(Key key) {
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			unindex(key, entry);
+		}
+	}
+
+	private void unindex(Key key, Entry entry) {
+		weight -= entry.weight;
+		Iterator<Match> mt = entry.matches.iterator();
+		while (mt.hasNext()) {
+			String id = mt.next().getId();
+			Set<Key> keys = ids.get(id);
+			if (keys != null) {
+				keys.remove(key);
+				if (keys.isEmpty()) {
+					ids.remove(id);
+				}
+			}
+		}
+		Map<Integer, Set<Key>> grams = index.get(key.srcLang);
+		if (grams == null) {
+			return;
+		}
+		for (int i = 0; i < entry.ngrams.length; i++) {
+			Set<Key> keys = grams.get(entry.ngrams[i]);
+			if (keys != null) {
+				keys.remove(key);
+				if (keys.isEmpty()) {
+					grams.remove(entry.ngrams[i]);
+				}
+			}
+		}
+	}
+
+	private static List<Match> copy(List<Match> matches) {
+		List<Match> result = new Vector<>();
+		Iterator<Match> it = matches.iterator();
+		while (it.hasNext()) {
+			Match match = it.next();
+			result.add(new Match(match.getId(), copy(match.getSource()), copy(match.getTarget()),
+					match.getSimilarity(), match.getOrigin(), new Hashtable<>(match.getProperties())));
+		}
+		return result;
+	}
+
+	private static Element copy(Element element) {
+		Element result = new Element(element.getName());
+		List<Attribute> attributes = element.getAttributes();
+		for (int i = 0; i < attributes.size(); i++) {
+			Attribute attribute = attributes.get(i);
+			result.setAttribute(attribute.getName(), attribute.getValue());
+		}
+		List<XMLNode> content = element.getContent();
+		for (int i = 0; i < content.size(); i++) {
+			XMLNode node = content.get(i);
+			if (node instanceof Element child) {
+				result.addContent(copy(child));
+			} else if (node instanceof TextNode text) {
+				result.addContent(new TextNode(text.getText()));
+			} else {
+				result.addContent(node);
+			}
+		}
+		return result;
+	}
+}
@@ -12,83 +12,168 @@
 
 package com.maxprograms.swordfish.tm;
 
+import java.util.Arrays;
+
 public class MatchQuality {
 
     static final int PENALTY = 2;
 
+    // larger texts get a throwaway workspace instead of growing the cached one
+    private static final int MAX_CACHED_LENGTH = 4096;
+
+    private static final ThreadLocal<Workspace> WORKSPACE = ThreadLocal.withInitial(() -> new Workspace(256));
+
     private MatchQuality() {
         // private for security
     }
 
-    private static String lcs(String x, String y) {
-        int m = x.length();
-        int n = y.length();
-        int max = 0;
-        int mx = 0;
+    private static class Workspace {
+        char[] a;
+        char[] b;
+        char[] lcs;
+        int[] previous;
+        int[] current;
+        int end;
 
-        // opt[i][j] = length of LCS of x[i..M] and y[j..N]
-        int[][] opt = new int[m + 1][n + 1];
+        Workspace(int size) {
+            a = new char[size];
+            b = new char[size];
+            lcs = new char[size];
+            previous = new int[size + 1];
+            current = new int[size + 1];
+        }
+    }
 
-        // fill the matrix
+    private static Workspace getWorkspace(int size) {
+        if (size > MAX_CACHED_LENGTH) {
+            return new Workspace(size);
+        }
+        Workspace workspace = WORKSPACE.get();
+        if (workspace.a.length < size) {
+            workspace = new Workspace(Math.max(size, workspace.a.length * 2));
+            WORKSPACE.set(workspace);
+        }
+        return workspace;
+    }
+
+    /**
+     * Length of the longest common substring of x[0..m) and y[0..n). The end
+     * position of its first occurrence in x is left in {@code w.end}. Only two
+     * rows of the classic dynamic programming matrix are kept.
+     */
+    private static int lcs(Workspace w, char[] x, int m, char[] y, int n) {
+        int[] previous = w.previous;
+        int[] current = w.current;
+        Arrays.fill(previous, 0, n + 1, 0);
+        current[0] = 0;
+        int max = 0;
+        int mx = 0;
         for (int i = 1; i <= m; i++) {
+            char c = x[i - 1];
             for (int j = 1; j <= n; j++) {
-                if (x.charAt(i - 1) == y.charAt(j - 1)) {
-                    opt[i][j] = opt[i - 1][j - 1] + 1;
-                    if (opt[i][j] > max) {
+                if (c == y[j - 1]) {
+                    int length = previous[j - 1] + 1;
+                    current[j] = length;
+                    if (length > max) {
                         // remember where the maximum length is
-                        max = opt[i][j];
+                        max = length;
                         mx = i;
                     }
                 } else {
-                    opt[i][j] = 0;
+                    current[j] = 0;
                 }
             }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
         }
+        w.end = mx;
+        return max;
+    }
 
-        // recover the LCS
-        StringBuilder result = new StringBuilder();
-        while (max > 0) {
-            result.insert(0, x.charAt(mx - 1));
-            max--;
-            mx--;
+    private static boolean isBlank(char[] array, int length) {
+        for (int i = 0; i < length; i++) {
+            if (array[i] > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(char[] array, int length, char[] target, int targetLength) {
+        int last = length - targetLength;
+        for (int i = 0; i <= last; i++) {
+            int j = 0;
+            while (j < targetLength && array[i + j] == target[j]) {
+                j++;
+            }
+            if (j == targetLength) {
+                return i;
+            }
         }
-        return result.toString();
+        return -1;
+    }
+
+    private static int remove(char[] array, int length, char[] target, int targetLength) {
+        int idx = indexOf(array, length, target, targetLength);
+        System.arraycopy(array, idx + targetLength, array, idx, length - idx - targetLength);
+        return length - targetLength;
     }
 
     public static int similarity(String x, String y) {
         int result = 0;
-        x = x.trim();
-        y = y.trim();
-        int longest = Math.max(x.length(), y.length());
+        int xStart = 0;
+        int xEnd = x.length();
+        while (xStart < xEnd && x.charAt(xStart) <= ' ') {
+            xStart++;
+        }
+        while (xEnd > xStart && x.charAt(xEnd - 1) <= ' ') {
+            xEnd--;
+        }
+        int yStart = 0;
+        int yEnd = y.length();
+        while (yStart < yEnd && y.charAt(yStart) <= ' ') {
+            yStart++;
+        }
+        while (yEnd > yStart && y.charAt(yEnd - 1) <= ' ') {
+            yEnd--;
+        }
+        int longest = Math.max(xEnd - xStart, yEnd - yStart);
         if (longest == 0) {
             return 0;
         }
-        String a;
-        String b;
-        if (x.length() == longest) {
-            a = x;
-            b = y;
+        Workspace w = getWorkspace(longest);
+        char[] a = w.a;
+        char[] b = w.b;
+        int aLength;
+        int bLength;
+        if (xEnd - xStart == longest) {
+            x.getChars(xStart, xEnd, a, 0);
+            aLength = xEnd - xStart;
+            y.getChars(yStart, yEnd, b, 0);
+            bLength = yEnd - yStart;
         } else {
-            a = y;
-            b = x;
+            y.getChars(yStart, yEnd, a, 0);
+            aLength = yEnd - yStart;
+            x.getChars(xStart, xEnd, b, 0);
+            bLength = xEnd - xStart;
         }
         // a is the longest string
         int count = -1;
-        int idx;
-        String lcs = lcs(a, b);
-        while (!lcs.trim().isEmpty() && lcs.length() > longest * PENALTY / 100) {
+        int length = lcs(w, a, aLength, b, bLength);
+        System.arraycopy(a, w.end - length, w.lcs, 0, length);
+        while (!isBlank(w.lcs, length) && length > longest * PENALTY / 100) {
             count++;
-            idx = a.indexOf(lcs);
-            a = a.substring(0, idx) + a.substring(idx + lcs.length());
-            idx = b.indexOf(lcs);
-            b = b.substring(0, idx) + b.substring(idx + lcs.length());
-            lcs = lcs(a, b);
+            aLength = remove(a, aLength, w.lcs, length);
+            bLength = remove(b, bLength, w.lcs, length);
+            length = lcs(w, a, aLength, b, bLength);
+            System.arraycopy(a, w.end - length, w.lcs, 0, length);
         }
-        result = 100 * (longest - a.length()) / longest - count * PENALTY;
+        result = 100 * (longest - aLength) / longest - count * PENALTY;
         if (result < 0) {
             result = 0;
         }
         return result;
     }
 
-}
\ No newline at end of file
+}
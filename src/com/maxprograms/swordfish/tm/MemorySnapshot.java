@@ -0,0 +1,416 @@
+/*******************************************************************************
+ * Copyright (c) 2007-2026 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+
+package com.maxprograms.swordfish.tm;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONObject;
+
+/**
+ * Copy in memory of the segments and n-gram postings of a database, used for
+ * translation searches instead of SQLite and the fuzzy index. Each language is
+ * packed in a few arrays: tuids sorted for binary search, pure texts and segs
+ * in shared char arrays, and the postings of every n-gram as a slice of one
+ * int array. Changes are staged until the database commits them and then kept
+ * in a small concurrent map that overrides the packed arrays; when that map
+ * grows too large the language is packed again. Readers never lock: they work
+ * with the arrays and the map they find when the search starts.
+ */
+final class MemorySnapshot {
+
+	private static final int COMPACT_MIN = 1024;
+	private static final int COMPACT_RATIO = 128;
+
+	private Map<String, State> states;
+	private List<Entry> pending;
+	private long loadTime;
+	private long compactions;
+
+	private static final class Entry {
+		String lang;
+		String tuid;
+		String pure;
+		String seg;
+		int length;
+		int[] ngrams;
+
+		Entry(String lang, String tuid, String pure, String seg) {
+			this.lang = lang;
+			this.tuid = tuid;
+			this.pure = pure;
+			this.seg = seg;
+			if (pure != null) {
+				length = pure.trim().length();
+				ngrams = NGrams.getNGrams(pure);
+			}
+		}
+
+		boolean isRemoved() {
+			return pure == null;
+		}
+	}
+
+	/**
+	 * Packed entries of a language. Never changed once built.
+	 */
+	private static final class Base {
+		String[] tuids;
+		int[] textStart;
+		char[] text;
+		int[] segStart;
+		char[] segs;
+		int[] lengths;
+		int[] grams;
+		int[] gramStart;
+		int[] postings;
+
+		int find(String tuid) {
+			return Arrays.binarySearch(tuids, tuid);
+		}
+
+		String getText(int id) {
+			return new String(text, textStart[id], textStart[id + 1] - textStart[id]);
+		}
+
+		String getSeg(int id) {
+			return new String(segs, segStart[id], segStart[id + 1] - segStart[id]);
+		}
+
+		long getFootprint() {
+			long size = 16L * 9 + 16L + 8L * tuids.length;
+			for (int i = 0; i < tuids.length; i++) {
+				size += 40 + tuids[i].length();
+			}
+			size += 2L * (text.length + segs.length);
+			size += 4L * (textStart.length + segStart.length + lengths.length + grams.length + gramStart.length
+					+ postings.length);
+			return size;
+		}
+	}
+
+	private static final class State {
+		Base base;
+		ConcurrentHashMap<String, Entry> delta;
+
+		State(Base base) {
+			this.base = base;
+			delta = new ConcurrentHashMap<>();
+		}
+	}
+
+	MemorySnapshot() {
+		states = new ConcurrentHashMap<>();
+		pending = new Vector<>();
+	}
+
+	/**
+	 * Replaces the contents of the snapshot with all segments stored in the
+	 * database.
+	 */
+	synchronized void load(Connection connection) throws SQLException {
+		long start = System.currentTimeMillis();
+		Map<String, List<Entry>> rows = new HashMap<>();
+		try (Statement stmt = connection.createStatement()) {
+			try (ResultSet rs = stmt.executeQuery("SELECT tuid, lang, puretext, seg FROM tuv")) {
+				while (rs.next()) {
+					String lang = rs.getString(2);
+					rows.computeIfAbsent(lang, k -> new Vector<>())
+							.add(new Entry(lang, rs.getString(1), rs.getString(3), rs.getString(4)));
+				}
+			}
+		}
+		pending.clear();
+		Map<String, State> loaded = new ConcurrentHashMap<>();
+		Iterator<String> it = rows.keySet().iterator();
+		while (it.hasNext()) {
+			String lang = it.next();
+			loaded.put(lang, new State(pack(rows.get(lang))));
+		}
+		states = loaded;
+		loadTime = System.currentTimeMillis() - start;
+	}
+
+	void put(String lang, String tuid, String pure, String seg) {
+		pending.add(new Entry(lang, tuid, pure, seg));
+	}
+
+	void remove(String lang, String tuid) {
+		pending.add(new Entry(lang, tuid, null, null));
+	}
+
+	/**
+	 * Makes the staged changes visible to searches.
+	 */
+	synchronized void publish() {
+		if (pending.isEmpty()) {
+			return;
+		}
+		List<Entry> changes;
+		synchronized (pending) {
+			changes = new Vector<>(pending);
+			pending.clear();
+		}
+		for (int i = 0; i < changes.size(); i++) {
+			Entry entry = changes.get(i);
+			State state = states.computeIfAbsent(entry.lang, k -> new State(pack(new Vector<>())));
+			state.delta.put(entry.tuid, entry);
+		}
+		Iterator<String> it = states.keySet().iterator();
+		while (it.hasNext()) {
+			String lang = it.next();
+			State state = states.get(lang);
+			if (state.delta.size() > Math.max(COMPACT_MIN, state.base.tuids.length / COMPACT_RATIO)) {
+				states.put(lang, new State(pack(merge(lang, state))));
+				compactions++;
+			}
+		}
+	}
+
+	/**
+	 * Same contract as {@link FuzzyIndex#getCandidates(String, int[], int, int, int)}.
+	 */
+	List<Candidate> getCandidates(String lang, int[] ngrams, int min, int max, int maxLength) {
+		List<Candidate> result = new Vector<>();
+		State state = states.get(lang);
+		if (state == null) {
+			return result;
+		}
+		Base base = state.base;
+		Map<String, Entry> delta = state.delta;
+		IntCounter counter = new IntCounter(256);
+		for (int i = 0; i < ngrams.length; i++) {
+			int index = Arrays.binarySearch(base.grams, ngrams[i]);
+			if (index >= 0) {
+				for (int p = base.gramStart[index]; p < base.gramStart[index + 1]; p++) {
+					counter.increment(base.postings[p]);
+				}
+			}
+		}
+		boolean changed = !delta.isEmpty();
+		for (int slot = 0; slot < counter.capacity(); slot++) {
+			int id = counter.keyAt(slot);
+			if (id == -1) {
+				continue;
+			}
+			int count = counter.countAt(slot);
+			if (count < min || count > max || base.lengths[id] > maxLength) {
+				continue;
+			}
+			if (changed && delta.containsKey(base.tuids[id])) {
+				continue;
+			}
+			result.add(new Candidate(base.tuids[id], count, base.lengths[id]));
+		}
+		if (changed) {
+			Iterator<Entry> it = delta.values().iterator();
+			while (it.hasNext()) {
+				Entry entry = it.next();
+				if (entry.isRemoved() || entry.length > maxLength) {
+					continue;
+				}
+				int count = countShared(entry.ngrams, ngrams);
+				if (count > 0 && count >= min && count <= max) {
+					result.add(new Candidate(entry.tuid, count, entry.length));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Pure text and seg of the given TUs in a language, for the TUs whose pure
+	 * text length is between {@code minLength} and {@code maxLength}.
+	 */
+	Map<String, String[]> getSegments(String lang, Collection<String> tuids, int minLength, int maxLength) {
+		Map<String, String[]> result = new HashMap<>();
+		State state = states.get(lang);
+		if (state == null) {
+			return result;
+		}
+		Base base = state.base;
+		Iterator<String> it = tuids.iterator();
+		while (it.hasNext()) {
+			String tuid = it.next();
+			Entry entry = state.delta.get(tuid);
+			if (entry != null) {
+				if (!entry.isRemoved() && entry.pure.length() >= minLength && entry.pure.length() <= maxLength) {
+					result.put(tuid, new String[] { entry.pure, entry.seg });
+				}
+				continue;
+			}
+			int id = base.find(tuid);
+			if (id >= 0) {
+				int length = base.textStart[id + 1] - base.textStart[id];
+				if (length >= minLength && length <= maxLength) {
+					result.put(tuid, new String[] { base.getText(id), base.getSeg(id) });
+				}
+			}
+		}
+		return result;
+	}
+
+	synchronized JSONObject getStatistics() {
+		JSONObject languages = new JSONObject();
+		long total = 0;
+		Iterator<String> it = states.keySet().iterator();
+		while (it.hasNext()) {
+			String lang = it.next();
+			State state = states.get(lang);
+			long footprint = state.base.getFootprint();
+			Iterator<Entry> et = state.delta.values().iterator();
+			while (et.hasNext()) {
+				Entry entry = et.next();
+				footprint += 96 + entry.tuid.length();
+				if (!entry.isRemoved()) {
+					footprint += 2L * (entry.pure.length() + entry.seg.length()) + 4L * entry.ngrams.length;
+				}
+			}
+			JSONObject json = new JSONObject();
+			json.put("entries", state.base.tuids.length);
+			json.put("changes", state.delta.size());
+			json.put("bytes", footprint);
+			languages.put(lang, json);
+			total += footprint;
+		}
+		JSONObject result = new JSONObject();
+		result.put("languages", languages);
+		result.put("bytes", total);
+		result.put("loadTime", loadTime);
+		result.put("compactions", compactions);
+		return result;
+	}
+
+	synchronized void clear() {
+		states = new ConcurrentHashMap<>();
+		pending.clear();
+	}
+
+	private static int countShared(int[] a, int[] b) {
+		int count = 0;
+		int i = 0;
+		int j = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j]) {
+				i++;
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				count++;
+				i++;
+				j++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Entries of the packed arrays not overridden by changes, plus the changed
+	 * entries that were not removed.
+	 */
+	private static List<Entry> merge(String lang, State state) {
+		List<Entry> result = new Vector<>();
+		Base base = state.base;
+		for (int id = 0; id < base.tuids.length; id++) {
+			if (!state.delta.containsKey(base.tuids[id])) {
+				Entry entry = new Entry(lang, base.tuids[id], null, null);
+				entry.pure = base.getText(id);
+				entry.seg = base.getSeg(id);
+				entry.length = base.lengths[id];
+				result.add(entry);
+			}
+		}
+		Iterator<Entry> it = state.delta.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (!entry.isRemoved()) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	private static Base pack(List<Entry> entries) {
+		entries.sort((a, b) -> a.tuid.compareTo(b.tuid));
+		int size = entries.size();
+		Base base = new Base();
+		base.tuids = new String[size];
+		base.textStart = new int[size + 1];
+		base.segStart = new int[size + 1];
+		base.lengths = new int[size];
+		int textLength = 0;
+		int segLength = 0;
+		int pairCount = 0;
+		for (int i = 0; i < size; i++) {
+			Entry entry = entries.get(i);
+			textLength += entry.pure.length();
+			segLength += entry.seg.length();
+			if (entry.ngrams == null) {
+				entry.ngrams = NGrams.getNGrams(entry.pure);
+			}
+			pairCount += entry.ngrams.length;
+		}
+		base.text = new char[textLength];
+		base.segs = new char[segLength];
+		long[] pairs = new long[pairCount];
+		int textPos = 0;
+		int segPos = 0;
+		int pairPos = 0;
+		for (int id = 0; id < size; id++) {
+			Entry entry = entries.get(id);
+			base.tuids[id] = entry.tuid;
+			base.lengths[id] = entry.length;
+			entry.pure.getChars(0, entry.pure.length(), base.text, textPos);
+			textPos += entry.pure.length();
+			base.textStart[id + 1] = textPos;
+			entry.seg.getChars(0, entry.seg.length(), base.segs, segPos);
+			segPos += entry.seg.length();
+			base.segStart[id + 1] = segPos;
+			for (int i = 0; i < entry.ngrams.length; i++) {
+				pairs[pairPos++] = ((long) entry.ngrams[i] << 32) | id;
+			}
+		}
+		// n-gram in the high half, id in the low half: sorting groups postings by n-gram
+		Arrays.sort(pairs);
+		int gramCount = 0;
+		for (int i = 0; i < pairs.length; i++) {
+			if (i == 0 || (int) (pairs[i] >> 32) != (int) (pairs[i - 1] >> 32)) {
+				gramCount++;
+			}
+		}
+		base.grams = new int[gramCount];
+		base.gramStart = new int[gramCount + 1];
+		base.postings = new int[pairs.length];
+		int gram = -1;
+		for (int i = 0; i < pairs.length; i++) {
+			if (i == 0 || (int) (pairs[i] >> 32) != (int) (pairs[i - 1] >> 32)) {
+				gram++;
+				base.grams[gram] = (int) (pairs[i] >> 32);
+				base.gramStart[gram] = i;
+			}
+			base.postings[i] = (int) pairs[i];
+		}
+		base.gramStart[gramCount] = pairs.length;
+		return base;
+	}
+}
@@ -12,10 +12,8 @@
 
 package com.maxprograms.swordfish.tm;
 
-import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.Locale;
 import java.util.StringTokenizer;
 import java.util.Vector;
 
@@ -30,39 +28,108 @@ public class NGrams {
 	// allow hyphen in terms
 	public static final String TERM_SEPARATORS = " \u00A0\r\n\f\t\u2028\u2029,.;\":<>¿?¡!()[]{}=+/*\u00AB\u00BB\u201C\u201D\u201E\uFF00";
 
-	public static int[] getNGrams(String source) {
-		String src = source.toLowerCase();
-		List<String> words = buildWordList(src, SEPARATORS);
-		Map<String, String> table = new Hashtable<>();
+	// texts longer than this get a throwaway buffer instead of growing the cached one
+	private static final int MAX_CACHED_LENGTH = 8192;
+
+	private static final long[] SEPARATOR_BITS = new long[1024];
+
+	static {
+		for (int i = 0; i < SEPARATORS.length(); i++) {
+			char c = SEPARATORS.charAt(i);
+			SEPARATOR_BITS[c >>> 6] |= 1L << c;
+		}
+	}
+
+	private static final ThreadLocal<Workspace> WORKSPACE = ThreadLocal.withInitial(() -> new Workspace(256));
+
+	private static class Workspace {
+		char[] text;
+		IntSet set;
+
+		Workspace(int size) {
+			text = new char[size];
+			set = new IntSet(64);
+		}
+	}
+
+	private static boolean isSeparator(char c) {
+		return (SEPARATOR_BITS[c >>> 6] & (1L << c)) != 0;
+	}
 
-		Iterator<String> it = words.iterator();
-		while (it.hasNext()) {
-			String word = it.next();
-			char[] array = word.toCharArray();
-			int length = word.length();
-			int ngrams = length / NGRAMSIZE;
-			if (ngrams * NGRAMSIZE < length) {
-				ngrams++;
+	/**
+	 * Hashes of the lowercased, non-overlapping 3 character chunks of every word
+	 * in the text, sorted and without duplicates. Each hash equals
+	 * {@code String.hashCode()} of the chunk, the value stored in existing
+	 * indexes.
+	 */
+	public static int[] getNGrams(String source) {
+		char[] text;
+		int length;
+		Workspace w = null;
+		if (needsStringLowerCase(source)) {
+			text = source.toLowerCase().toCharArray();
+			length = text.length;
+		} else {
+			length = source.length();
+			if (length > MAX_CACHED_LENGTH) {
+				text = new char[length];
+			} else {
+				w = WORKSPACE.get();
+				if (w.text.length < length) {
+					w.text = new char[Math.max(length, w.text.length * 2)];
+				}
+				text = w.text;
+			}
+			source.getChars(0, length, text, 0);
+			for (int i = 0; i < length; i++) {
+				text[i] = Character.toLowerCase(text[i]);
+			}
+		}
+		IntSet set;
+		if (w != null) {
+			set = w.set;
+			set.clear();
+		} else {
+			set = new IntSet(length / NGRAMSIZE + 1);
+		}
+		int i = 0;
+		while (i < length) {
+			while (i < length && isSeparator(text[i])) {
+				i++;
 			}
-			for (int i = 0; i < ngrams; i++) {
-				StringBuilder gram = new StringBuilder();
-				for (int j = 0; j < NGRAMSIZE; j++) {
-					if (i * NGRAMSIZE + j < length) {
-						char c = array[i * NGRAMSIZE + j];
-						gram.append(c);
-					}
+			int start = i;
+			while (i < length && !isSeparator(text[i])) {
+				i++;
+			}
+			for (int gram = start; gram < i; gram += NGRAMSIZE) {
+				int end = Math.min(gram + NGRAMSIZE, i);
+				int hash = 0;
+				for (int j = gram; j < end; j++) {
+					hash = 31 * hash + text[j];
 				}
-				table.put("" + gram.toString().hashCode(), "");
+				set.add(hash);
 			}
 		}
+		return set.toSortedArray();
+	}
 
-		Iterator<String> keys = table.keySet().iterator();
-		int[] result = new int[table.size()];
-		int idx = 0;
-		while (keys.hasNext()) {
-			result[idx++] = Integer.parseInt(keys.next());
+	/**
+	 * Lowercasing char by char gives the same text as
+	 * {@link String#toLowerCase()} except for locales with special casing rules,
+	 * surrogate pairs, dotted capital I and the context sensitive capital sigma.
+	 */
+	private static boolean needsStringLowerCase(String source) {
+		String language = Locale.getDefault().getLanguage();
+		if ("tr".equals(language) || "az".equals(language) || "lt".equals(language)) {
+			return true;
 		}
-		return result;
+		for (int i = 0; i < source.length(); i++) {
+			char c = source.charAt(i);
+			if (c == '\u0130' || c == '\u03A3' || Character.isSurrogate(c)) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	public static List<String> buildWordList(String src, String separator) {
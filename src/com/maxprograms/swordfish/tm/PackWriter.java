@@ -0,0 +1,458 @@
+/*******************************************************************************
+ * Copyright (c) 2007-2026 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+
+package com.maxprograms.swordfish.tm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Vector;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.maxprograms.swordfish.TmsServer;
+import com.maxprograms.xml.Element;
+
+/**
+ * Writes a memory pack, the read-only file opened by {@link PackedDatabase}.
+ * TUs can be added in any order; {@link #finish()} sorts them by tuid and
+ * writes the pack as a header followed by named sections of big-endian ints,
+ * chars or bytes:
+ * <ul>
+ * <li>{@code meta}: languages, clients, projects and subjects as JSON</li>
+ * <li>{@code tuids}, {@code tuids.start}: the sorted tuids</li>
+ * <li>{@code tus}, {@code tus.start}: attributes, properties and notes of every
+ * TU as XML</li>
+ * <li>for every language, with entries in TU order: {@code <lang>.tus} (TU
+ * numbers), {@code <lang>.lengths} (trimmed text lengths), {@code <lang>.text},
+ * {@code <lang>.segs} and their {@code .start} offsets, and the n-gram
+ * postings in {@code <lang>.grams}, {@code <lang>.grams.start} and
+ * {@code <lang>.postings}</li>
+ * </ul>
+ * Every {@code .start} section has one offset more than entries, the last one
+ * being the end of the data. Offsets of texts are in bytes and offsets of
+ * postings are indexes.
+ */
+public class PackWriter {
+
+	static final byte[] MAGIC = "SWFPACK1".getBytes(StandardCharsets.US_ASCII);
+	static final int VERSION = 1;
+	static final int ALIGNMENT = 8;
+
+	private File file;
+	private File tempFolder;
+	private DataOutputStream tus;
+	private List<String> tuids;
+	private Ints tuLengths;
+	private Map<String, Language> languages;
+	private Set<String> clients;
+	private Set<String> projects;
+	private Set<String> subjects;
+
+	private static final class Ints {
+		int[] data = new int[1024];
+		int size;
+
+		void add(int value) {
+			if (size == data.length) {
+				data = Arrays.copyOf(data, size * 2);
+			}
+			data[size++] = value;
+		}
+
+		int get(int index) {
+			return data[index];
+		}
+
+		long[] getOffsets() {
+			long[] result = new long[size + 1];
+			for (int i = 0; i < size; i++) {
+				result[i + 1] = result[i] + data[i];
+			}
+			return result;
+		}
+	}
+
+	private static final class Language {
+		File textFile;
+		File segFile;
+		DataOutputStream text;
+		DataOutputStream segs;
+		Ints tus = new Ints();
+		Ints lengths = new Ints();
+		Ints textLengths = new Ints();
+		Ints segLengths = new Ints();
+	}
+
+	public PackWriter(File file) throws IOException {
+		this.file = file;
+		File folder = file.getAbsoluteFile().getParentFile();
+		if (!folder.exists()) {
+			Files.createDirectories(folder.toPath());
+		}
+		tempFolder = Files.createTempDirectory(folder.toPath(), "pack").toFile();
+		tus = open(new File(tempFolder, "tus"));
+		tuids = new Vector<>();
+		tuLengths = new Ints();
+		languages = new TreeMap<>();
+		clients = new TreeSet<>();
+		projects = new TreeSet<>();
+		subjects = new TreeSet<>();
+	}
+
+	/**
+	 * Adds a TU. {@code tu} holds the attributes, properties and notes of the TU
+	 * and no tuv; every element of {@code tuvs} has a language, a pure text and a
+	 * seg element.
+	 */
+	public void add(String tuid, Element tu, List<String[]> tuvs) throws IOException {
+		int number = tuids.size();
+		tuids.add(tuid);
+		byte[] xml = tu.toString().getBytes(StandardCharsets.UTF_8);
+		tus.write(xml);
+		tuLengths.add(xml.length);
+		List<Element> props = tu.getChildren("prop");
+		for (int i = 0; i < props.size(); i++) {
+			Element prop = props.get(i);
+			String type = prop.getAttributeValue("type");
+			if ("customer".equals(type)) {
+				clients.add(prop.getText());
+			} else if ("project".equals(type)) {
+				projects.add(prop.getText());
+			} else if ("subject".equals(type)) {
+				subjects.add(prop.getText());
+			}
+		}
+		for (int i = 0; i < tuvs.size(); i++) {
+			String[] tuv = tuvs.get(i);
+			Language language = languages.get(tuv[0]);
+			if (language == null) {
+				language = new Language();
+				language.textFile = new File(tempFolder, "text" + languages.size());
+				language.segFile = new File(tempFolder, "segs" + languages.size());
+				language.text = open(language.textFile);
+				language.segs = open(language.segFile);
+				languages.put(tuv[0], language);
+			}
+			language.tus.add(number);
+			language.lengths.add(tuv[1].trim().length());
+			language.text.writeChars(tuv[1]);
+			language.textLengths.add(tuv[1].length());
+			language.segs.writeChars(tuv[2]);
+			language.segLengths.add(tuv[2].length());
+		}
+	}
+
+	/**
+	 * Writes the pack and removes the temporary files.
+	 */
+	public void finish() throws IOException {
+		try {
+			tus.close();
+			Iterator<Language> lt = languages.values().iterator();
+			while (lt.hasNext()) {
+				Language language = lt.next();
+				language.text.close();
+				language.segs.close();
+			}
+			Integer[] order = new Integer[tuids.size()];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, (a, b) -> tuids.get(a).compareTo(tuids.get(b)));
+			int[] rank = new int[order.length];
+			for (int i = 0; i < order.length; i++) {
+				rank[order[i]] = i;
+				if (i > 0 && tuids.get(order[i]).equals(tuids.get(order[i - 1]))) {
+					MessageFormat mf = new MessageFormat(Messages.getString("PackWriter.1"));
+					throw new IOException(mf.format(new String[] { tuids.get(order[i]) }));
+				}
+			}
+			Map<String, File> sections = new LinkedHashMap<>();
+			writeTuids(order, sections);
+			writeTus(order, sections);
+			Iterator<String> it = languages.keySet().iterator();
+			while (it.hasNext()) {
+				String lang = it.next();
+				writeLanguage(lang, languages.get(lang), rank, sections);
+			}
+			JSONObject meta = new JSONObject();
+			meta.put("tus", tuids.size());
+			meta.put("languages", new JSONArray(languages.keySet()));
+			meta.put("clients", new JSONArray(clients));
+			meta.put("projects", new JSONArray(projects));
+			meta.put("subjects", new JSONArray(subjects));
+			meta.put("creationdate", TMUtils.creationDate());
+			File metaFile = new File(tempFolder, "meta");
+			Files.write(metaFile.toPath(), meta.toString().getBytes(StandardCharsets.UTF_8));
+			sections.put("meta", metaFile);
+			assemble(sections);
+		} finally {
+			TmsServer.deleteFolder(tempFolder);
+		}
+	}
+
+	/**
+	 * Discards the TUs added so far without writing the pack.
+	 */
+	public void abort() throws IOException {
+		try {
+			tus.close();
+			Iterator<Language> it = languages.values().iterator();
+			while (it.hasNext()) {
+				Language language = it.next();
+				language.text.close();
+				language.segs.close();
+			}
+		} finally {
+			TmsServer.deleteFolder(tempFolder);
+		}
+	}
+
+	private void writeTuids(Integer[] order, Map<String, File> sections) throws IOException {
+		File chars = new File(tempFolder, "tuids");
+		File starts = new File(tempFolder, "tuids.start");
+		try (DataOutputStream out = open(chars); DataOutputStream start = open(starts)) {
+			long position = 0;
+			start.writeInt(0);
+			for (int i = 0; i < order.length; i++) {
+				String tuid = tuids.get(order[i]);
+				out.writeChars(tuid);
+				position += tuid.length();
+				start.writeInt(checkOffset("tuids", position * 2));
+			}
+		}
+		sections.put("tuids", chars);
+		sections.put("tuids.start", starts);
+	}
+
+	private void writeTus(Integer[] order, Map<String, File> sections) throws IOException {
+		File bytes = new File(tempFolder, "tus.sorted");
+		File starts = new File(tempFolder, "tus.start");
+		long[] offsets = tuLengths.getOffsets();
+		try (FileChannel in = FileChannel.open(new File(tempFolder, "tus").toPath(), StandardOpenOption.READ);
+				DataOutputStream out = open(bytes);
+				DataOutputStream start = open(starts)) {
+			long position = 0;
+			start.writeInt(0);
+			for (int i = 0; i < order.length; i++) {
+				int length = tuLengths.get(order[i]);
+				out.write(read(in, offsets[order[i]], length).array());
+				position += length;
+				start.writeInt(checkOffset("tus", position));
+			}
+		}
+		sections.put("tus", bytes);
+		sections.put("tus.start", starts);
+	}
+
+	private void writeLanguage(String lang, Language language, int[] rank, Map<String, File> sections)
+			throws IOException {
+		int size = language.tus.size;
+		Integer[] order = new Integer[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Integer.compare(rank[language.tus.get(a)], rank[language.tus.get(b)]));
+		long[] textOffsets = language.textLengths.getOffsets();
+		long[] segOffsets = language.segLengths.getOffsets();
+		File ngramsFile = new File(tempFolder, "ngrams");
+		Map<Integer, int[]> counts = new HashMap<>();
+		long total = 0;
+		try (FileChannel textIn = FileChannel.open(language.textFile.toPath(), StandardOpenOption.READ);
+				FileChannel segIn = FileChannel.open(language.segFile.toPath(), StandardOpenOption.READ);
+				DataOutputStream tusOut = open(section(lang + ".tus", sections));
+				DataOutputStream lengthsOut = open(section(lang + ".lengths", sections));
+				DataOutputStream textOut = open(section(lang + ".text", sections));
+				DataOutputStream textStart = open(section(lang + ".text.start", sections));
+				DataOutputStream segsOut = open(section(lang + ".segs", sections));
+				DataOutputStream segStart = open(section(lang + ".segs.start", sections));
+				DataOutputStream ngramsOut = open(ngramsFile)) {
+			long textPosition = 0;
+			long segPosition = 0;
+			textStart.writeInt(0);
+			segStart.writeInt(0);
+			for (int i = 0; i < size; i++) {
+				int entry = order[i];
+				tusOut.writeInt(rank[language.tus.get(entry)]);
+				lengthsOut.writeInt(language.lengths.get(entry));
+				ByteBuffer text = read(textIn, textOffsets[entry] * 2, language.textLengths.get(entry) * 2);
+				textOut.write(text.array());
+				textPosition += language.textLengths.get(entry);
+				textStart.writeInt(checkOffset(lang + ".text", textPosition * 2));
+				segsOut.write(read(segIn, segOffsets[entry] * 2, language.segLengths.get(entry) * 2).array());
+				segPosition += language.segLengths.get(entry);
+				segStart.writeInt(checkOffset(lang + ".segs", segPosition * 2));
+
+				int[] ngrams = NGrams.getNGrams(text.asCharBuffer().toString());
+				ngramsOut.writeInt(ngrams.length);
+				for (int j = 0; j < ngrams.length; j++) {
+					ngramsOut.writeInt(ngrams[j]);
+					counts.computeIfAbsent(ngrams[j], k -> new int[1])[0]++;
+				}
+				total += ngrams.length;
+			}
+		}
+		checkOffset(lang + ".postings", total * 4);
+		int[] grams = new int[counts.size()];
+		Iterator<Integer> it = counts.keySet().iterator();
+		for (int i = 0; it.hasNext(); i++) {
+			grams[i] = it.next();
+		}
+		Arrays.sort(grams);
+		int[] cursor = new int[grams.length];
+		try (DataOutputStream gramsOut = open(section(lang + ".grams", sections));
+				DataOutputStream gramStart = open(section(lang + ".grams.start", sections))) {
+			int position = 0;
+			gramStart.writeInt(0);
+			for (int i = 0; i < grams.length; i++) {
+				gramsOut.writeInt(grams[i]);
+				cursor[i] = position;
+				position += counts.get(grams[i])[0];
+				gramStart.writeInt(position);
+			}
+		}
+		// entries are read in order, so the postings of every n-gram come out sorted
+		File postings = section(lang + ".postings", sections);
+		try (RandomAccessFile raf = new RandomAccessFile(postings, "rw");
+				DataInputStream in = new DataInputStream(
+						new BufferedInputStream(new FileInputStream(ngramsFile), 1 << 16))) {
+			raf.setLength(total * 4);
+			if (total > 0) {
+				IntBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, total * 4).asIntBuffer();
+				for (int entry = 0; entry < size; entry++) {
+					int count = in.readInt();
+					for (int j = 0; j < count; j++) {
+						int index = Arrays.binarySearch(grams, in.readInt());
+						buffer.put(cursor[index]++, entry);
+					}
+				}
+			}
+		}
+		Files.delete(ngramsFile.toPath());
+	}
+
+	private File section(String name, Map<String, File> sections) {
+		File result = new File(tempFolder, "section" + sections.size());
+		sections.put(name, result);
+		return result;
+	}
+
+	/**
+	 * Writes the header and copies the sections, each one starting at a multiple
+	 * of {@link #ALIGNMENT} bytes.
+	 */
+	private void assemble(Map<String, File> sections) throws IOException {
+		List<String> names = new Vector<>(sections.keySet());
+		long[] lengths = new long[names.size()];
+		for (int i = 0; i < lengths.length; i++) {
+			lengths[i] = sections.get(names.get(i)).length();
+		}
+		long[] offsets = new long[names.size()];
+		long position = align(getHeader(names, offsets, lengths).length);
+		for (int i = 0; i < offsets.length; i++) {
+			offsets[i] = position;
+			position = align(position + lengths[i]);
+		}
+		byte[] header = getHeader(names, offsets, lengths);
+		File temp = new File(tempFolder, "pack");
+		try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			out.write(ByteBuffer.wrap(header));
+			for (int i = 0; i < names.size(); i++) {
+				try (FileChannel in = FileChannel.open(sections.get(names.get(i)).toPath(),
+						StandardOpenOption.READ)) {
+					long done = 0;
+					while (done < lengths[i]) {
+						done += in.transferTo(done, lengths[i] - done, out.position(offsets[i] + done));
+					}
+				}
+			}
+			if (out.size() < position) {
+				out.write(ByteBuffer.allocate((int) (position - out.size())), out.size());
+			}
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static byte[] getHeader(List<String> names, long[] offsets, long[] lengths) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.write(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(names.size());
+			for (int i = 0; i < names.size(); i++) {
+				out.writeUTF(names.get(i));
+				out.writeLong(offsets[i]);
+				out.writeLong(lengths[i]);
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	private static long align(long position) {
+		return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+
+	/**
+	 * Sections are mapped in one buffer when the pack is opened, so their size
+	 * cannot exceed the largest buffer.
+	 */
+	private static int checkOffset(String section, long bytes) throws IOException {
+		if (bytes > Integer.MAX_VALUE) {
+			MessageFormat mf = new MessageFormat(Messages.getString("PackWriter.0"));
+			throw new IOException(mf.format(new String[] { section }));
+		}
+		return (int) bytes;
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) == -1) {
+				throw new EOFException();
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static DataOutputStream open(File file) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+	}
+}
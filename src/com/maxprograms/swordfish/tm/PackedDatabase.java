@@ -0,0 +1,602 @@
+/*******************************************************************************
+ * Copyright (c) 2007-2026 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+
+package com.maxprograms.swordfish.tm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.System.Logger;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.xml.sax.SAXException;
+
+import com.maxprograms.swordfish.TmsServer;
+import com.maxprograms.xml.Element;
+import com.maxprograms.xml.SAXBuilder;
+
+/**
+ * A read-only memory stored in a pack written by {@link PackWriter}. The
+ * sections of the pack are mapped in memory when it is opened and searches
+ * read them in place, so opening takes no time and the operating system
+ * shares the pages among all the projects and processes that use the pack.
+ */
+public class PackedDatabase implements ITmEngine {
+
+	private static Logger logger = System.getLogger(PackedDatabase.class.getName());
+
+	public static final String PACK = "memory.pack";
+
+	private static final int DEFAULT_MAX_MATCHES = 10;
+
+	private String dbname;
+	private File packFile;
+	private int matchThreshold;
+	private int maxMatches;
+	private MatchCache matchCache;
+
+	private JSONObject meta;
+	private long size;
+	private int count;
+	private CharBuffer tuids;
+	private IntBuffer tuidStart;
+	private ByteBuffer tus;
+	private IntBuffer tuStart;
+	private Map<String, Language> languages;
+
+	private static final class Language {
+		int size;
+		IntBuffer tus;
+		IntBuffer lengths;
+		CharBuffer text;
+		IntBuffer textStart;
+		CharBuffer segs;
+		IntBuffer segStart;
+		IntBuffer grams;
+		IntBuffer gramStart;
+		IntBuffer postings;
+
+		String getText(int entry) {
+			return getChars(text, textStart, entry);
+		}
+
+		int getTextLength(int entry) {
+			return (textStart.get(entry + 1) - textStart.get(entry)) / 2;
+		}
+
+		String getSeg(int entry) {
+			return getChars(segs, segStart, entry);
+		}
+
+		/**
+		 * Entry of the TU with the given number, or a negative value.
+		 */
+		int find(int tu) {
+			int low = 0;
+			int high = size - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int value = tus.get(mid);
+				if (value < tu) {
+					low = mid + 1;
+				} else if (value > tu) {
+					high = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -1;
+		}
+
+		int findGram(int gram) {
+			int low = 0;
+			int high = grams.limit() - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int value = grams.get(mid);
+				if (value < gram) {
+					low = mid + 1;
+				} else if (value > gram) {
+					high = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -1;
+		}
+	}
+
+	public PackedDatabase(String dbname, File packFile) throws IOException {
+		this.dbname = dbname;
+		this.packFile = packFile;
+		JSONObject json = TmsServer.getPreferences();
+		matchThreshold = json.has("matchThreshold") ? json.getInt("matchThreshold") : 60;
+		maxMatches = json.has("maxMatches") ? json.getInt("maxMatches") : DEFAULT_MAX_MATCHES;
+		matchCache = new MatchCache(MatchCache.DEFAULT_WEIGHT, 0);
+		Map<String, ByteBuffer> sections = new HashMap<>();
+		try (FileChannel channel = FileChannel.open(packFile.toPath(), StandardOpenOption.READ)) {
+			size = channel.size();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+			byte[] magic = new byte[PackWriter.MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, PackWriter.MAGIC) || in.readInt() != PackWriter.VERSION) {
+				MessageFormat mf = new MessageFormat(Messages.getString("PackedDatabase.0"));
+				throw new IOException(mf.format(new String[] { packFile.getAbsolutePath() }));
+			}
+			int sectionCount = in.readInt();
+			for (int i = 0; i < sectionCount; i++) {
+				String name = in.readUTF();
+				long offset = in.readLong();
+				long length = in.readLong();
+				// mapped buffers stay valid after the channel is closed
+				sections.put(name, channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+			}
+		}
+		byte[] bytes = new byte[sections.get("meta").remaining()];
+		sections.get("meta").get(0, bytes);
+		meta = new JSONObject(new String(bytes, StandardCharsets.UTF_8));
+		count = meta.getInt("tus");
+		tuids = sections.get("tuids").asCharBuffer();
+		tuidStart = sections.get("tuids.start").asIntBuffer();
+		tus = sections.get("tus");
+		tuStart = sections.get("tus.start").asIntBuffer();
+		languages = new TreeMap<>();
+		JSONArray langs = meta.getJSONArray("languages");
+		for (int i = 0; i < langs.length(); i++) {
+			String lang = langs.getString(i);
+			Language language = new Language();
+			language.tus = sections.get(lang + ".tus").asIntBuffer();
+			language.size = language.tus.limit();
+			language.lengths = sections.get(lang + ".lengths").asIntBuffer();
+			language.text = sections.get(lang + ".text").asCharBuffer();
+			language.textStart = sections.get(lang + ".text.start").asIntBuffer();
+			language.segs = sections.get(lang + ".segs").asCharBuffer();
+			language.segStart = sections.get(lang + ".segs.start").asIntBuffer();
+			language.grams = sections.get(lang + ".grams").asIntBuffer();
+			language.gramStart = sections.get(lang + ".grams.start").asIntBuffer();
+			language.postings = sections.get(lang + ".postings").asIntBuffer();
+			languages.put(lang, language);
+		}
+	}
+
+	/**
+	 * Chars of an entry in a text section, whose {@code .start} section holds
+	 * byte offsets.
+	 */
+	private static String getChars(CharBuffer chars, IntBuffer start, int entry) {
+		int from = start.get(entry) / 2;
+		char[] result = new char[start.get(entry + 1) / 2 - from];
+		chars.get(from, result);
+		return new String(result);
+	}
+
+	@Override
+	public String getType() {
+		return PackedDatabase.class.getName();
+	}
+
+	@Override
+	public void close() {
+		// buffers are unmapped when they are no longer referenced
+		languages = new TreeMap<>();
+		matchCache.clear();
+	}
+
+	@Override
+	public String getName() {
+		return dbname;
+	}
+
+	@Override
+	public int storeTMX(String tmxFile, String project, String customer, String subject) throws IOException {
+		throw readOnly();
+	}
+
+	@Override
+	public void storeTu(Element tu) throws IOException {
+		throw readOnly();
+	}
+
+	@Override
+	public void removeTu(String tuid) throws IOException {
+		throw readOnly();
+	}
+
+	private IOException readOnly() {
+		MessageFormat mf = new MessageFormat(Messages.getString("PackedDatabase.1"));
+		return new IOException(mf.format(new String[] { dbname }));
+	}
+
+	@Override
+	public void commit() {
+		// nothing to commit
+	}
+
+	@Override
+	public void deleteDatabase() throws IOException {
+		TmsServer.deleteFolder(packFile.getParentFile());
+	}
+
+	@Override
+	public void exportMemory(String tmxfile, Set<String> langs, String srcLang) throws IOException {
+		List<String> exported = new Vector<>();
+		Iterator<String> it = languages.keySet().iterator();
+		while (it.hasNext()) {
+			String lang = it.next();
+			if (langs.contains(lang)) {
+				exported.add(lang);
+			}
+		}
+		// entries of every language are sorted by TU, so one cursor per language is enough
+		int[] cursors = new int[exported.size()];
+		try (Writer writer = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(tmxfile), StandardCharsets.UTF_8), 1 << 16)) {
+			SqliteDatabase.writeHeader(writer, srcLang);
+			writer.write("<body>\n");
+			List<String[]> tuvs = new Vector<>();
+			for (int tu = 0; tu < count; tu++) {
+				tuvs.clear();
+				for (int i = 0; i < cursors.length; i++) {
+					Language language = languages.get(exported.get(i));
+					if (cursors[i] < language.size && language.tus.get(cursors[i]) == tu) {
+						String seg = language.getSeg(cursors[i]++);
+						if (!seg.equals("<seg></seg>")) {
+							tuvs.add(new String[] { exported.get(i), seg });
+						}
+					}
+				}
+				if (tuvs.size() >= 2) {
+					SqliteDatabase.writeTu(writer, getShell(tu), tuvs, logger);
+				}
+			}
+			writer.write("</body>\n");
+			writer.write("</tmx>\n");
+		}
+	}
+
+	@Override
+	public Set<String> getAllClients() {
+		return getMetaSet("clients");
+	}
+
+	@Override
+	public Set<String> getAllLanguages() {
+		return getMetaSet("languages");
+	}
+
+	@Override
+	public Set<String> getAllProjects() {
+		return getMetaSet("projects");
+	}
+
+	@Override
+	public Set<String> getAllSubjects() {
+		return getMetaSet("subjects");
+	}
+
+	private Set<String> getMetaSet(String key) {
+		Set<String> result = Collections.synchronizedSortedSet(new TreeSet<>());
+		JSONArray array = meta.getJSONArray(key);
+		for (int i = 0; i < array.length(); i++) {
+			result.add(array.getString(i));
+		}
+		return result;
+	}
+
+	@Override
+	public List<Match> searchTranslation(String searchStr, String srcLang, String tgtLang, int similarity,
+			boolean caseSensitive) throws IOException, SAXException, ParserConfigurationException {
+		return searchTranslation(searchStr, srcLang, tgtLang, similarity, caseSensitive, maxMatches);
+	}
+
+	/**
+	 * Returns the best {@code limit} matches, or all matches when {@code limit}
+	 * is zero or negative.
+	 */
+	public List<Match> searchTranslation(String searchStr, String srcLang, String tgtLang, int similarity,
+			boolean caseSensitive, int limit) throws IOException, SAXException, ParserConfigurationException {
+		List<Match> cached = matchCache.get(searchStr, srcLang, tgtLang, similarity, caseSensitive, limit);
+		if (cached != null) {
+			return cached;
+		}
+		List<Match> result = new Vector<>();
+		Language source = languages.get(srcLang);
+		Language target = languages.get(tgtLang);
+		if (source == null || target == null) {
+			return result;
+		}
+		String search = caseSensitive ? searchStr : searchStr.toLowerCase();
+		int[] candidates = getCandidates(source, searchStr, similarity, search.trim().length());
+
+		// worst match at the head, so it can be dropped when a better one shows up
+		PriorityQueue<Match> best = new PriorityQueue<>(Collections.reverseOrder());
+		int minLength = searchStr.length() * similarity / 100;
+		int maxLength = searchStr.length() * (200 - similarity) / 100;
+		for (int i = 0; i < candidates.length; i += 2) {
+			int entry = candidates[i];
+			if (limit > 0 && best.size() == limit && candidates[i + 1] < best.peek().getSimilarity()) {
+				// no remaining candidate can beat the current top matches
+				break;
+			}
+			int length = source.getTextLength(entry);
+			if (length < minLength || length > maxLength) {
+				continue;
+			}
+			String pure = source.getText(entry);
+			int distance = MatchQuality.similarity(search, caseSensitive ? pure : pure.toLowerCase());
+			if (distance < similarity) {
+				continue;
+			}
+			int tu = source.tus.get(entry);
+			int translation = target.find(tu);
+			if (translation < 0) {
+				continue;
+			}
+			best.add(buildMatch(tu, srcLang, source.getSeg(entry), tgtLang, target.getSeg(translation), distance));
+			if (limit > 0 && best.size() > limit) {
+				best.poll();
+			}
+		}
+		result.addAll(best);
+		Collections.sort(result);
+		matchCache.put(matchCache.getGeneration(), searchStr, srcLang, tgtLang, similarity, caseSensitive, limit, result);
+		return result;
+	}
+
+	/**
+	 * Entries that share enough n-grams with the search text and their highest
+	 * possible score, as pairs of ints: best candidates first, ordered by score
+	 * and then by shared n-grams.
+	 */
+	private static int[] getCandidates(Language language, String searchStr, int similarity, int searchLength) {
+		int[] ngrams = NGrams.getNGrams(searchStr);
+		int size = ngrams.length;
+		if (size == 0) {
+			return new int[0];
+		}
+		int min = size * similarity / 100;
+		int max = size * (200 - similarity) / 100;
+		int maxLength = searchStr.length() * (200 - similarity) / 100;
+		IntCounter counter = new IntCounter(256);
+		for (int i = 0; i < ngrams.length; i++) {
+			int index = language.findGram(ngrams[i]);
+			if (index >= 0) {
+				int end = language.gramStart.get(index + 1);
+				for (int p = language.gramStart.get(index); p < end; p++) {
+					counter.increment(language.postings.get(p));
+				}
+			}
+		}
+		List<long[]> ranked = new Vector<>();
+		for (int slot = 0; slot < counter.capacity(); slot++) {
+			int entry = counter.keyAt(slot);
+			if (entry == -1) {
+				continue;
+			}
+			int hits = counter.countAt(slot);
+			int length = language.lengths.get(entry);
+			if (hits < min || hits > max || length > maxLength) {
+				continue;
+			}
+			int bound = SqliteDatabase.upperBound(searchLength, length);
+			if (bound >= similarity) {
+				ranked.add(new long[] { entry, bound, hits });
+			}
+		}
+		ranked.sort((a, b) -> {
+			int diff = Long.compare(b[1], a[1]);
+			return diff != 0 ? diff : Long.compare(b[2], a[2]);
+		});
+		int[] result = new int[ranked.size() * 2];
+		for (int i = 0; i < ranked.size(); i++) {
+			result[i * 2] = (int) ranked.get(i)[0];
+			result[i * 2 + 1] = (int) ranked.get(i)[1];
+		}
+		return result;
+	}
+
+	private Match buildMatch(int tu, String srcLang, String sourceSeg, String tgtLang, String targetSeg,
+			int similarity) throws SAXException, IOException, ParserConfigurationException {
+		Element source = TMUtils.buildTuv(srcLang, sourceSeg);
+		Element target = TMUtils.buildTuv(tgtLang, targetSeg);
+		Map<String, String> propsMap = new Hashtable<>();
+		List<Element> props = getShell(tu).getChildren("prop");
+		Iterator<Element> pt = props.iterator();
+		while (pt.hasNext()) {
+			Element prop = pt.next();
+			propsMap.put(prop.getAttributeValue("type"), prop.getText());
+		}
+		return new Match(getTuid(tu), source, target, similarity, dbname, propsMap);
+	}
+
+	@Override
+	public List<Element> searchAll(String searchStr, String srcLang, int similarity, boolean caseSensitive)
+			throws IOException, SAXException, ParserConfigurationException {
+		List<Element> result = new Vector<>();
+		Language source = languages.get(srcLang);
+		if (source == null) {
+			return result;
+		}
+		String search = caseSensitive ? searchStr : searchStr.toLowerCase();
+		int[] candidates = getCandidates(source, searchStr, similarity, search.trim().length());
+		int minLength = searchStr.length() * similarity / 100;
+		int maxLength = searchStr.length() * (200 - similarity) / 100;
+		for (int i = 0; i < candidates.length; i += 2) {
+			int entry = candidates[i];
+			int length = source.getTextLength(entry);
+			if (length < minLength || length > maxLength) {
+				continue;
+			}
+			String pure = source.getText(entry);
+			if (MatchQuality.similarity(search, caseSensitive ? pure : pure.toLowerCase()) >= similarity) {
+				result.add(getTu(source.tus.get(entry)));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Checks the text of every entry in the language; TUs with the shortest texts
+	 * come first.
+	 */
+	@Override
+	public List<Element> concordanceSearch(String searchStr, String srcLang, int limit, boolean isRegexp,
+			boolean caseSensitive) throws IOException, SAXException, ParserConfigurationException {
+		List<Element> result = new Vector<>();
+		Language source = languages.get(srcLang);
+		if (source == null) {
+			return result;
+		}
+		Pattern pattern = isRegexp ? RegExpFunction.getPattern(searchStr) : null;
+		String search = caseSensitive ? searchStr : searchStr.toLowerCase();
+		List<int[]> found = new Vector<>();
+		for (int entry = 0; entry < source.size; entry++) {
+			String pure = source.getText(entry);
+			boolean matches;
+			if (pattern != null) {
+				matches = pattern.matcher(pure).find();
+			} else {
+				matches = (caseSensitive ? pure : pure.toLowerCase()).contains(search);
+			}
+			if (matches) {
+				found.add(new int[] { pure.length(), entry });
+			}
+		}
+		found.sort((a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(a[1], b[1]));
+		for (int i = 0; i < found.size() && i < limit; i++) {
+			result.add(getTu(source.tus.get(found.get(i)[1])));
+		}
+		return result;
+	}
+
+	@Override
+	public Element getTu(String tuid) throws IOException, SAXException, ParserConfigurationException {
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int diff = getTuid(mid).compareTo(tuid);
+			if (diff < 0) {
+				low = mid + 1;
+			} else if (diff > 0) {
+				high = mid - 1;
+			} else {
+				return getTu(mid);
+			}
+		}
+		return null;
+	}
+
+	private Element getTu(int tu) throws IOException, SAXException, ParserConfigurationException {
+		Element result = getShell(tu);
+		Iterator<String> it = languages.keySet().iterator();
+		while (it.hasNext()) {
+			String lang = it.next();
+			Language language = languages.get(lang);
+			int entry = language.find(tu);
+			if (entry >= 0) {
+				String seg = language.getSeg(entry);
+				if (!seg.equals("<seg></seg>")) {
+					result.addContent(TMUtils.buildTuv(lang, seg));
+				}
+			}
+		}
+		return result;
+	}
+
+	private String getTuid(int tu) {
+		return getChars(tuids, tuidStart, tu);
+	}
+
+	/**
+	 * Attributes, properties and notes of a TU, without its tuvs.
+	 */
+	private Element getShell(int tu) throws IOException {
+		int from = tuStart.get(tu);
+		byte[] xml = new byte[tuStart.get(tu + 1) - from];
+		tus.get(from, xml);
+		try {
+			return new SAXBuilder().build(new ByteArrayInputStream(xml)).getRootElement();
+		} catch (SAXException | ParserConfigurationException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public JSONArray batchTranslate(JSONObject params)
+			throws IOException, SAXException, ParserConfigurationException {
+		String srcLang = params.getString("srcLang");
+		String tgtLang = params.getString("tgtLang");
+		JSONArray segments = params.getJSONArray("segments");
+		boolean caseSensitiveMatches = params.getBoolean("caseSensitiveMatches");
+		JSONArray result = new JSONArray();
+		for (int i = 0; i < segments.length(); i++) {
+			JSONObject json = segments.getJSONObject(i);
+			List<Match> matches = searchTranslation(json.getString("pure"), srcLang, tgtLang, matchThreshold,
+					caseSensitiveMatches);
+			JSONArray array = new JSONArray();
+			for (int j = 0; j < matches.size(); j++) {
+				array.put(matches.get(j).toJSON());
+			}
+			json.put("matches", array);
+			result.put(json);
+		}
+		return result;
+	}
+
+	@Override
+	public JSONObject getCacheStatistics() {
+		JSONObject result = matchCache.getStatistics();
+		JSONObject pack = new JSONObject();
+		pack.put("bytes", size);
+		pack.put("tus", count);
+		JSONObject entries = new JSONObject();
+		Iterator<String> it = languages.keySet().iterator();
+		while (it.hasNext()) {
+			String lang = it.next();
+			entries.put(lang, languages.get(lang).size);
+		}
+		pack.put("languages", entries);
+		result.put("pack", pack);
+		return result;
+	}
+}
@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * Copyright (c) 2007-2026 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+
+package com.maxprograms.swordfish.tm;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Encodes the ids of one n-gram that share the same upper 16 bits. Sparse
+ * blocks are stored as a sorted, delta-encoded varint array; once a block holds
+ * more than {@link #MAX_ARRAY} ids it is stored as a 65536 bit bitmap.
+ */
+final class PostingList {
+
+	static final int BLOCK_BITS = 16;
+	static final int BLOCK_MASK = 0xFFFF;
+	static final int MAX_ARRAY = 4096;
+
+	private static final byte ARRAY = 0;
+	private static final byte BITMAP = 1;
+	private static final int BITMAP_WORDS = 1 << (BLOCK_BITS - 6);
+
+	private PostingList() {
+		// private for security
+	}
+
+	static long key(int gram, int block) {
+		return ((long) gram << 32) | (block & 0xFFFFFFFFL);
+	}
+
+	static long firstKey(int gram) {
+		return key(gram, 0);
+	}
+
+	static long lastKey(int gram) {
+		return key(gram, -1);
+	}
+
+	static int block(int id) {
+		return id >>> BLOCK_BITS;
+	}
+
+	static int low(int id) {
+		return id & BLOCK_MASK;
+	}
+
+	static int blockOf(long key) {
+		return (int) key;
+	}
+
+	static int gramOf(long key) {
+		return (int) (key >> 32);
+	}
+
+	static byte[] encode(int[] lows, int count) {
+		if (count > MAX_ARRAY) {
+			long[] words = new long[BITMAP_WORDS];
+			for (int i = 0; i < count; i++) {
+				words[lows[i] >>> 6] |= 1L << lows[i];
+			}
+			return toBytes(words);
+		}
+		byte[] buffer = new byte[1 + 3 + count * 3];
+		buffer[0] = ARRAY;
+		int pos = writeVarint(buffer, 1, count);
+		int previous = 0;
+		for (int i = 0; i < count; i++) {
+			pos = writeVarint(buffer, pos, lows[i] - previous);
+			previous = lows[i];
+		}
+		return Arrays.copyOf(buffer, pos);
+	}
+
+	static int[] decode(byte[] container) {
+		if (container[0] == BITMAP) {
+			int[] result = new int[cardinality(container)];
+			int idx = 0;
+			for (int w = 0; w < BITMAP_WORDS; w++) {
+				long word = readLong(container, 1 + w * 8);
+				while (word != 0) {
+					result[idx++] = (w << 6) + Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+				}
+			}
+			return result;
+		}
+		int[] pos = { 1 };
+		int count = readVarint(container, pos);
+		int[] result = new int[count];
+		int value = 0;
+		for (int i = 0; i < count; i++) {
+			value += readVarint(container, pos);
+			result[i] = value;
+		}
+		return result;
+	}
+
+	static void forEach(byte[] container, int block, IntConsumer consumer) {
+		int base = block << BLOCK_BITS;
+		if (container[0] == BITMAP) {
+			for (int w = 0; w < BITMAP_WORDS; w++) {
+				long word = readLong(container, 1 + w * 8);
+				while (word != 0) {
+					consumer.accept(base + (w << 6) + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return;
+		}
+		int[] pos = { 1 };
+		int count = readVarint(container, pos);
+		int value = 0;
+		for (int i = 0; i < count; i++) {
+			value += readVarint(container, pos);
+			consumer.accept(base + value);
+		}
+	}
+
+	static int cardinality(byte[] container) {
+		if (container[0] == BITMAP) {
+			int count = 0;
+			for (int w = 0; w < BITMAP_WORDS; w++) {
+				count += Long.bitCount(readLong(container, 1 + w * 8));
+			}
+			return count;
+		}
+		return readVarint(container, new int[] { 1 });
+	}
+
+	/**
+	 * Returns a container that includes the given value, or the same container if
+	 * it was already present.
+	 */
+	static byte[] add(byte[] container, int low) {
+		if (container == null) {
+			return encode(new int[] { low }, 1);
+		}
+		if (container[0] == BITMAP) {
+			int offset = 1 + (low >>> 6) * 8;
+			long word = readLong(container, offset);
+			long bit = 1L << low;
+			if ((word & bit) != 0) {
+				return container;
+			}
+			byte[] result = container.clone();
+			writeLong(result, offset, word | bit);
+			return result;
+		}
+		int[] values = decode(container);
+		int idx = Arrays.binarySearch(values, low);
+		if (idx >= 0) {
+			return container;
+		}
+		idx = -idx - 1;
+		int[] merged = new int[values.length + 1];
+		System.arraycopy(values, 0, merged, 0, idx);
+		merged[idx] = low;
+		System.arraycopy(values, idx, merged, idx + 1, values.length - idx);
+		return encode(merged, merged.length);
+	}
+
+	/**
+	 * Returns a container without the given value, the same container if the value
+	 * was not present or {@code null} if the container becomes empty.
+	 */
+	static byte[] remove(byte[] container, int low) {
+		if (container == null) {
+			return null;
+		}
+		if (container[0] == BITMAP) {
+			int offset = 1 + (low >>> 6) * 8;
+			long word = readLong(container, offset);
+			long bit = 1L << low;
+			if ((word & bit) == 0) {
+				return container;
+			}
+			byte[] result = container.clone();
+			writeLong(result, offset, word & ~bit);
+			if (cardinality(result) <= MAX_ARRAY) {
+				int[] values = decode(result);
+				return encode(values, values.length);
+			}
+			return result;
+		}
+		int[] values = decode(container);
+		int idx = Arrays.binarySearch(values, low);
+		if (idx < 0) {
+			return container;
+		}
+		if (values.length == 1) {
+			return null;
+		}
+		int[] reduced = new int[values.length - 1];
+		System.arraycopy(values, 0, reduced, 0, idx);
+		System.arraycopy(values, idx + 1, reduced, idx, values.length - idx - 1);
+		return encode(reduced, reduced.length);
+	}
+
+	private static byte[] toBytes(long[] words) {
+		byte[] result = new byte[1 + words.length * 8];
+		result[0] = BITMAP;
+		for (int i = 0; i < words.length; i++) {
+			writeLong(result, 1 + i * 8, words[i]);
+		}
+		return result;
+	}
+
+	private static long readLong(byte[] array, int offset) {
+		long result = 0;
+		for (int i = 0; i < 8; i++) {
+			result = (result << 8) | (array[offset + i] & 0xFF);
+		}
+		return result;
+	}
+
+	private static void writeLong(byte[] array, int offset, long value) {
+		for (int i = 7; i >= 0; i--) {
+			array[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	private static int writeVarint(byte[] array, int pos, int value) {
+		while ((value & ~0x7F) != 0) {
+			array[pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		array[pos++] = (byte) value;
+		return pos;
+	}
+
+	private static int readVarint(byte[] array, int[] pos) {
+		int result = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = array[pos[0]++];
+			result |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return result;
+	}
+}
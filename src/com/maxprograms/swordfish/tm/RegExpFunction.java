@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * Copyright (c) 2007-2026 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+
+package com.maxprograms.swordfish.tm;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.sqlite.Function;
+
+/**
+ * The REGEXP function used in SQL queries on segments. Compiled patterns are
+ * shared by all connections and kept in a small LRU cache, so that a query
+ * compiles its expression once instead of once per row.
+ */
+public class RegExpFunction extends Function {
+
+	private static final int CACHE_SIZE = 64;
+
+	private static final Map<String, Pattern> PATTERNS = Collections
+			.synchronizedMap(new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+					return size() > CACHE_SIZE;
+				}
+			});
+
+	public static void register(Connection connection) throws SQLException {
+		Function.create(connection, "REGEXP", new RegExpFunction());
+	}
+
+	public static Pattern getPattern(String expression) {
+		Pattern pattern = PATTERNS.get(expression);
+		if (pattern == null) {
+			pattern = Pattern.compile(expression);
+			PATTERNS.put(expression, pattern);
+		}
+		return pattern;
+	}
+
+	@Override
+	protected void xFunc() throws SQLException {
+		String expression = value_text(0);
+		String value = value_text(1);
+		if (value == null) {
+			value = "";
+		}
+		result(getPattern(expression).matcher(value).find() ? 1 : 0);
+	}
+
+	/**
+	 * Conditions to add before {@code column REGEXP expression} in a query, so
+	 * that rows without the literal text the expression requires are rejected
+	 * without running it. Returns an empty string when there is nothing to
+	 * check.
+	 */
+	public static String getPrefilter(String column, String expression) {
+		List<String> literals = getLiterals(expression);
+		if (literals == null) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < literals.size(); i++) {
+			sb.append(" AND instr(").append(column).append(", '").append(literals.get(i).replace("'", "''"))
+					.append("') > 0");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns fragments of literal text that every match of the expression
+	 * contains, or null if the expression cannot be analysed. Only simple
+	 * expressions are analysed: groups and character classes count as unknown
+	 * text, and alternatives, flags or quoting outside them disable the
+	 * analysis.
+	 */
+	public static List<String> getLiterals(String regex) {
+		try {
+			getPattern(regex);
+		} catch (PatternSyntaxException e) {
+			return null;
+		}
+		if (regex.contains("(?") || regex.contains("\\Q")) {
+			return null;
+		}
+		List<String> fragments = new Vector<>();
+		StringBuilder run = new StringBuilder();
+		int i = 0;
+		while (i < regex.length()) {
+			char c = regex.charAt(i);
+			switch (c) {
+				case '|':
+					return null;
+				case '\\':
+					if (i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+						run.append(regex.charAt(i + 1));
+						i += 2;
+					} else {
+						// character classes, anchors, back references and codes
+						endRun(run, fragments);
+						i = skipEscape(regex, i);
+					}
+					break;
+				case '?', '*', '{':
+					// the previous character may be missing
+					if (!run.isEmpty()) {
+						int last = run.length() - 1;
+						if (last > 0 && Character.isSurrogatePair(run.charAt(last - 1), run.charAt(last))) {
+							last--;
+						}
+						run.setLength(last);
+					}
+					endRun(run, fragments);
+					i = c == '{' ? skipTo(regex, i, '}') : i + 1;
+					break;
+				case '+', '.', '^', '$':
+					endRun(run, fragments);
+					i++;
+					break;
+				case '(':
+					endRun(run, fragments);
+					i = skipGroup(regex, i);
+					break;
+				case '[':
+					endRun(run, fragments);
+					i = skipClass(regex, i);
+					break;
+				default:
+					run.append(c);
+					i++;
+			}
+		}
+		endRun(run, fragments);
+		return fragments;
+	}
+
+	/**
+	 * Returns the position after the escape sequence that starts with the
+	 * backslash at {@code start} and a letter or digit.
+	 */
+	private static int skipEscape(String regex, int start) {
+		int i = start + 1;
+		if (i >= regex.length()) {
+			return regex.length();
+		}
+		char c = regex.charAt(i++);
+		if (i < regex.length() && "pPNkx".indexOf(c) != -1
+				&& (regex.charAt(i) == '{' || regex.charAt(i) == '<')) {
+			return skipTo(regex, i, regex.charAt(i) == '{' ? '}' : '>');
+		}
+		int length = switch (c) {
+			case 'p', 'P', 'c' -> 1;
+			case 'x' -> 2;
+			case 'u' -> 4;
+			case '0' -> 3;
+			default -> Character.isDigit(c) ? regex.length() : 0;
+		};
+		int end = Math.min(regex.length(), i + length);
+		if (c == '0' || Character.isDigit(c)) {
+			// octal codes and back references end at the first character that is not a digit
+			while (i < end && Character.isDigit(regex.charAt(i))) {
+				i++;
+			}
+			return i;
+		}
+		return end;
+	}
+
+	private static int skipTo(String text, int start, char end) {
+		int i = text.indexOf(end, start);
+		return i == -1 ? text.length() : i + 1;
+	}
+
+	private static int skipGroup(String regex, int start) {
+		int depth = 0;
+		int i = start;
+		while (i < regex.length()) {
+			char c = regex.charAt(i);
+			if (c == '\\') {
+				i += 2;
+				continue;
+			}
+			if (c == '[') {
+				i = skipClass(regex, i);
+				continue;
+			}
+			if (c == '(') {
+				depth++;
+			} else if (c == ')' && --depth == 0) {
+				return i + 1;
+			}
+			i++;
+		}
+		return regex.length();
+	}
+
+	/**
+	 * Returns the position after the character class that starts at
+	 * {@code start}. A ']' right after the opening bracket or its negation is
+	 * part of the class.
+	 */
+	static int skipClass(String text, int start) {
+		int depth = 0;
+		int i = start;
+		while (i < text.length()) {
+			char c = text.charAt(i);
+			if (c == '\\') {
+				i += 2;
+				continue;
+			}
+			if (c == '[') {
+				depth++;
+				i++;
+				if (i < text.length() && (text.charAt(i) == '^' || text.charAt(i) == '!')) {
+					i++;
+				}
+				if (i < text.length() && text.charAt(i) == ']') {
+					i++;
+				}
+				continue;
+			}
+			if (c == ']' && --depth == 0) {
+				return i + 1;
+			}
+			i++;
+		}
+		return text.length();
+	}
+
+	private static void endRun(StringBuilder run, List<String> fragments) {
+		if (!run.isEmpty()) {
+			fragments.add(run.toString());
+		}
+		run.setLength(0);
+	}
+}
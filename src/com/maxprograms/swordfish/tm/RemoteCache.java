@@ -0,0 +1,428 @@
+/*******************************************************************************
+ * Copyright (c) 2007-2026 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+
+package com.maxprograms.swordfish.tm;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Vector;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Results of searches in a remote memory, kept in a local SQLite file so that
+ * repeated searches for the same text do not wait for the server, even after a
+ * restart. Entries are keyed by the search parameters and expire after a fixed
+ * time; when the file holds more than the allowed size the least recently used
+ * entries are dropped. Like {@link MatchCache}, entries are indexed by the
+ * n-grams of their search text and by the ids of the TUs they hold, so that
+ * storing or removing a TU only drops the entries it could change.
+ * <p>
+ * The cache is an optimization: when the file cannot be read or written the
+ * error is logged and callers go to the server as if the entry was missing.
+ */
+class RemoteCache {
+
+	private static Logger logger = System.getLogger(RemoteCache.class.getName());
+
+	static final String TRANSLATION = "translation";
+	static final String BATCH = "batch";
+	static final String SEARCH_ALL = "searchAll";
+
+	// size of the IN lists used to look up n-grams
+	private static final int GRAMS_PER_QUERY = 200;
+
+	private Connection conn;
+	private long maxSize;
+	private long timeToLive;
+	private long size;
+	private long generation;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long invalidations;
+
+	/**
+	 * @param file       the SQLite file, created if it does not exist
+	 * @param maxSize    approximate number of bytes to keep
+	 * @param timeToLive milliseconds an entry stays valid
+	 */
+	RemoteCache(File file, long maxSize, long timeToLive) throws SQLException {
+		this.maxSize = maxSize;
+		this.timeToLive = timeToLive;
+		file.getParentFile().mkdirs();
+		boolean exists = file.exists();
+		SqliteDatabase.registerDriver();
+		conn = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath().replace('\\', '/'));
+		try {
+			open(exists);
+		} catch (SQLException e) {
+			try {
+				conn.close();
+			} catch (SQLException ce) {
+				e.addSuppressed(ce);
+			}
+			throw e;
+		}
+	}
+
+	private void open(boolean exists) throws SQLException {
+		try (Statement stmt = conn.createStatement()) {
+			stmt.execute("PRAGMA journal_mode = WAL");
+			stmt.execute("PRAGMA synchronous = NORMAL");
+		}
+		conn.setAutoCommit(false);
+		if (!exists) {
+			createTables();
+		}
+		try (PreparedStatement stmt = conn.prepareStatement("SELECT key FROM entries WHERE created<?")) {
+			stmt.setLong(1, System.currentTimeMillis() - timeToLive);
+			try (ResultSet rs = stmt.executeQuery()) {
+				List<String> expired = new Vector<>();
+				while (rs.next()) {
+					expired.add(rs.getString(1));
+				}
+				for (int i = 0; i < expired.size(); i++) {
+					remove(expired.get(i));
+				}
+			}
+		}
+		try (Statement stmt = conn.createStatement()) {
+			try (ResultSet rs = stmt.executeQuery("SELECT SUM(size) FROM entries")) {
+				if (rs.next()) {
+					size = rs.getLong(1);
+				}
+			}
+		}
+		conn.commit();
+	}
+
+	private void createTables() throws SQLException {
+		String entries = """
+				CREATE TABLE entries (
+				key TEXT PRIMARY KEY,
+				value TEXT NOT NULL,
+				size INTEGER NOT NULL,
+				created INTEGER NOT NULL,
+				used INTEGER NOT NULL
+				);""";
+		String grams = """
+				CREATE TABLE grams (
+				lang VARCHAR(20) NOT NULL,
+				gram INTEGER NOT NULL,
+				key TEXT NOT NULL
+				);""";
+		String tuids = """
+				CREATE TABLE tuids (
+				tuid TEXT NOT NULL,
+				key TEXT NOT NULL
+				);""";
+		try (Statement stmt = conn.createStatement()) {
+			stmt.execute(entries);
+			stmt.execute(grams);
+			stmt.execute(tuids);
+			stmt.execute("CREATE INDEX entries_used ON entries(used)");
+			stmt.execute("CREATE INDEX grams_gram ON grams(lang, gram)");
+			stmt.execute("CREATE INDEX grams_key ON grams(key)");
+			stmt.execute("CREATE INDEX tuids_tuid ON tuids(tuid)");
+			stmt.execute("CREATE INDEX tuids_key ON tuids(key)");
+		}
+		conn.commit();
+	}
+
+	/**
+	 * Value to pass to {@link #put} for a search that starts now. Results of
+	 * searches that overlap an invalidation are not cached.
+	 */
+	synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Returns the stored result of a search, or null when there is none or it
+	 * has expired. {@code tgtLang} is empty for searches that do not use it and
+	 * {@code limit} is 0 for searches that return all matches.
+	 */
+	synchronized JSONArray get(String kind, String search, String srcLang, String tgtLang, int similarity, int limit,
+			boolean caseSensitive) {
+		String key = getKey(kind, search, srcLang, tgtLang, similarity, limit, caseSensitive);
+		try {
+			String value = null;
+			long created = 0;
+			try (PreparedStatement stmt = conn.prepareStatement("SELECT value, created FROM entries WHERE key=?")) {
+				stmt.setString(1, key);
+				try (ResultSet rs = stmt.executeQuery()) {
+					if (rs.next()) {
+						value = rs.getString(1);
+						created = rs.getLong(2);
+					}
+				}
+			}
+			if (value != null && System.currentTimeMillis() - created > timeToLive) {
+				remove(key);
+				conn.commit();
+				value = null;
+			}
+			if (value == null) {
+				misses++;
+				return null;
+			}
+			// written with the next change
+			try (PreparedStatement stmt = conn.prepareStatement("UPDATE entries SET used=? WHERE key=?")) {
+				stmt.setLong(1, System.currentTimeMillis());
+				stmt.setString(2, key);
+				stmt.executeUpdate();
+			}
+			hits++;
+			return new JSONArray(value);
+		} catch (SQLException e) {
+			logger.log(Level.WARNING, e.getMessage(), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the result of a search together with the ids of the TUs it holds.
+	 */
+	synchronized void put(long searchGeneration, String kind, String search, String srcLang, String tgtLang,
+			int similarity, int limit, boolean caseSensitive, JSONArray value, Set<String> tuids) {
+		if (searchGeneration != generation) {
+			return;
+		}
+		String key = getKey(kind, search, srcLang, tgtLang, similarity, limit, caseSensitive);
+		String text = value.toString();
+		long entrySize = key.getBytes(StandardCharsets.UTF_8).length + text.getBytes(StandardCharsets.UTF_8).length;
+		if (entrySize > maxSize) {
+			return;
+		}
+		try {
+			remove(key);
+			long now = System.currentTimeMillis();
+			try (PreparedStatement stmt = conn
+					.prepareStatement("INSERT INTO entries (key, value, size, created, used) VALUES (?,?,?,?,?)")) {
+				stmt.setString(1, key);
+				stmt.setString(2, text);
+				stmt.setLong(3, entrySize);
+				stmt.setLong(4, now);
+				stmt.setLong(5, now);
+				stmt.executeUpdate();
+			}
+			size += entrySize;
+			int[] ngrams = NGrams.getNGrams(search);
+			try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO grams (lang, gram, key) VALUES (?,?,?)")) {
+				for (int i = 0; i < ngrams.length; i++) {
+					stmt.setString(1, srcLang);
+					stmt.setInt(2, ngrams[i]);
+					stmt.setString(3, key);
+					stmt.addBatch();
+				}
+				stmt.executeBatch();
+			}
+			try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO tuids (tuid, key) VALUES (?,?)")) {
+				Iterator<String> it = tuids.iterator();
+				while (it.hasNext()) {
+					stmt.setString(1, it.next());
+					stmt.setString(2, key);
+					stmt.addBatch();
+				}
+				stmt.executeBatch();
+			}
+			if (size > maxSize) {
+				evict();
+			}
+			conn.commit();
+		} catch (SQLException e) {
+			logger.log(Level.WARNING, e.getMessage(), e);
+			rollback();
+		}
+	}
+
+	/**
+	 * Drops the least recently used entries until the cache is back below 90%
+	 * of its maximum size.
+	 */
+	private void evict() throws SQLException {
+		long target = maxSize * 9 / 10;
+		List<String> keys = new Vector<>();
+		try (Statement stmt = conn.createStatement()) {
+			try (ResultSet rs = stmt.executeQuery("SELECT key, size FROM entries ORDER BY used")) {
+				long remaining = size;
+				while (remaining > target && rs.next()) {
+					keys.add(rs.getString(1));
+					remaining -= rs.getLong(2);
+				}
+			}
+		}
+		for (int i = 0; i < keys.size(); i++) {
+			remove(keys.get(i));
+			evictions++;
+		}
+	}
+
+	/**
+	 * Drops the entries that searched in {@code lang} for a text sharing at least
+	 * one n-gram with the given ones.
+	 */
+	synchronized void invalidate(String lang, int[] ngrams) {
+		generation++;
+		try {
+			Set<String> affected = new TreeSet<>();
+			for (int start = 0; start < ngrams.length; start += GRAMS_PER_QUERY) {
+				int end = Math.min(ngrams.length, start + GRAMS_PER_QUERY);
+				StringBuilder sql = new StringBuilder("SELECT DISTINCT key FROM grams WHERE lang=? AND gram IN (");
+				for (int i = start; i < end; i++) {
+					sql.append(i == start ? "?" : ",?");
+				}
+				sql.append(')');
+				try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+					stmt.setString(1, lang);
+					for (int i = start; i < end; i++) {
+						stmt.setInt(i - start + 2, ngrams[i]);
+					}
+					try (ResultSet rs = stmt.executeQuery()) {
+						while (rs.next()) {
+							affected.add(rs.getString(1));
+						}
+					}
+				}
+			}
+			removeAll(affected);
+		} catch (SQLException e) {
+			logger.log(Level.WARNING, e.getMessage(), e);
+			rollback();
+		}
+	}
+
+	/**
+	 * Drops the entries that hold the given TU.
+	 */
+	synchronized void invalidate(String tuid) {
+		generation++;
+		try {
+			Set<String> affected = new TreeSet<>();
+			try (PreparedStatement stmt = conn.prepareStatement("SELECT DISTINCT key FROM tuids WHERE tuid=?")) {
+				stmt.setString(1, tuid);
+				try (ResultSet rs = stmt.executeQuery()) {
+					while (rs.next()) {
+						affected.add(rs.getString(1));
+					}
+				}
+			}
+			removeAll(affected);
+		} catch (SQLException e) {
+			logger.log(Level.WARNING, e.getMessage(), e);
+			rollback();
+		}
+	}
+
+	synchronized void clear() {
+		generation++;
+		try (Statement stmt = conn.createStatement()) {
+			try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM entries")) {
+				if (rs.next()) {
+					invalidations += rs.getLong(1);
+				}
+			}
+			stmt.execute("DELETE FROM entries");
+			stmt.execute("DELETE FROM grams");
+			stmt.execute("DELETE FROM tuids");
+			conn.commit();
+			size = 0;
+		} catch (SQLException e) {
+			logger.log(Level.WARNING, e.getMessage(), e);
+			rollback();
+		}
+	}
+
+	synchronized JSONObject getStatistics() {
+		JSONObject result = new JSONObject();
+		try (Statement stmt = conn.createStatement()) {
+			try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM entries")) {
+				if (rs.next()) {
+					result.put("entries", rs.getLong(1));
+				}
+			}
+		} catch (SQLException e) {
+			logger.log(Level.WARNING, e.getMessage(), e);
+		}
+		result.put("size", size);
+		result.put("hits", hits);
+		result.put("misses", misses);
+		result.put("evictions", evictions);
+		result.put("invalidations", invalidations);
+		return result;
+	}
+
+	synchronized void close() throws SQLException {
+		conn.commit();
+		conn.close();
+	}
+
+	private void removeAll(Set<String> keys) throws SQLException {
+		if (keys.isEmpty()) {
+			return;
+		}
+		Iterator<String> it = keys.iterator();
+		while (it.hasNext()) {
+			remove(it.next());
+			invalidations++;
+		}
+		conn.commit();
+	}
+
+	private void remove(String key) throws SQLException {
+		try (PreparedStatement stmt = conn.prepareStatement("SELECT size FROM entries WHERE key=?")) {
+			stmt.setString(1, key);
+			try (ResultSet rs = stmt.executeQuery()) {
+				if (!rs.next()) {
+					return;
+				}
+				size -= rs.getLong(1);
+			}
+		}
+		String[] tables = { "entries", "grams", "tuids" };
+		for (int i = 0; i < tables.length; i++) {
+			try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM " + tables[i] + " WHERE key=?")) {
+				stmt.setString(1, key);
+				stmt.executeUpdate();
+			}
+		}
+	}
+
+	private void rollback() {
+		try {
+			conn.rollback();
+		} catch (SQLException e) {
+			logger.log(Level.WARNING, e.getMessage(), e);
+		}
+	}
+
+	private static String getKey(String kind, String search, String srcLang, String tgtLang, int similarity,
+			int limit, boolean caseSensitive) {
+		return kind + '\t' + srcLang + '\t' + tgtLang + '\t' + similarity + '\t' + limit + '\t' + caseSensitive
+				+ '\t' + search;
+	}
+}
@@ -12,21 +12,25 @@
 
 package com.maxprograms.swordfish.tm;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
 import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.text.MessageFormat;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -36,10 +40,15 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
-import javax.net.ssl.HttpsURLConnection;
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.json.JSONArray;
@@ -47,6 +56,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.xml.sax.SAXException;
 
+import com.maxprograms.languages.LanguageUtils;
 import com.maxprograms.swordfish.Constants;
 import com.maxprograms.swordfish.RemoteUtils;
 import com.maxprograms.swordfish.TmsServer;
@@ -55,10 +65,58 @@ import com.maxprograms.xml.SAXBuilder;
 
 public class RemoteDatabase implements ITmEngine {
 
+    private static Logger logger = System.getLogger(RemoteDatabase.class.getName());
+
     private String server;
     private String dbname;
     private String ticket;
     private SAXBuilder builder;
+    private MatchCache matchCache;
+    private boolean compressRequests;
+    private int chunkSize;
+    private int maxInFlight;
+    private RemoteCache diskCache;
+    // similarity and number of matches of the segments in batch translations,
+    // which servers take from the same preferences as local memories
+    private int batchThreshold;
+    private int batchLimit;
+
+    // other clients may change the memory on the server
+    private static final long CACHE_TTL = 5 * 60 * 1000L;
+
+    // smaller request bodies are not worth compressing
+    private static final int COMPRESS_THRESHOLD = 1024;
+
+    public static final String DISK_CACHE = "remoteCache.db";
+    public static final long DEFAULT_DISK_CACHE_SIZE = 64;
+    public static final long DEFAULT_DISK_CACHE_TTL = 24;
+
+    public static final int DEFAULT_CHUNK_SIZE = 25;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    public static final int DEFAULT_BATCH_THRESHOLD = 60;
+    public static final int DEFAULT_BATCH_LIMIT = 10;
+
+    // a failed batchTranslate chunk is sent again after 0.5, 1 and 2 seconds
+    private static final int MAX_RETRIES = 3;
+    private static final long RETRY_DELAY = 500;
+
+    /**
+     * Error reported by the server in the response, as opposed to a failure to
+     * reach the server or to get an answer from it. Sending the same request
+     * again will not help.
+     */
+    private static class RejectedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        RejectedException(String reason) {
+            super(reason);
+        }
+    }
+
+    private interface ResponseParser<T> {
+        T parse(JSONObject json) throws IOException, SAXException, ParserConfigurationException;
+    }
 
     public RemoteDatabase(String server, String user, String password, String dbname)
             throws IOException, URISyntaxException {
@@ -68,43 +126,99 @@ public class RemoteDatabase implements ITmEngine {
         this.server = server.strip();
         this.dbname = dbname;
         builder = new SAXBuilder();
+        matchCache = new MatchCache(MatchCache.DEFAULT_WEIGHT, CACHE_TTL);
+        JSONObject json = TmsServer.getPreferences();
+        compressRequests = json.has("compressRemoteRequests") && json.getBoolean("compressRemoteRequests");
+        chunkSize = Math.max(1, json.optInt("remoteBatchChunk", DEFAULT_CHUNK_SIZE));
+        maxInFlight = Math.max(1, json.optInt("remoteMaxInFlight", DEFAULT_MAX_IN_FLIGHT));
+        batchThreshold = json.optInt("matchThreshold", DEFAULT_BATCH_THRESHOLD);
+        batchLimit = json.optInt("maxMatches", DEFAULT_BATCH_LIMIT);
         ticket = RemoteUtils.getTicket(server, user, password);
         open();
+        if (json.optBoolean("remoteDiskCache", false)) {
+            openDiskCache(json);
+        }
+    }
+
+    /**
+     * Opens the local copy of search results, sized by the
+     * "remoteDiskCacheSize" preference (in MB) and expiring after
+     * "remoteDiskCacheTTL" hours. The memory works without it when the file
+     * cannot be opened.
+     */
+    private void openDiskCache(JSONObject json) throws IOException {
+        File file = new File(new File(TmsServer.getMemoriesFolder(), dbname), DISK_CACHE);
+        long size = json.optLong("remoteDiskCacheSize", DEFAULT_DISK_CACHE_SIZE) * 1024 * 1024;
+        long ttl = json.optLong("remoteDiskCacheTTL", DEFAULT_DISK_CACHE_TTL) * 60 * 60 * 1000;
+        try {
+            diskCache = new RemoteCache(file, size, ttl);
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, e.getMessage(), e);
+        }
     }
 
     private JSONObject postMessage(String servlet, JSONObject json) throws IOException, URISyntaxException {
-        byte[] bytes = json.toString(2).getBytes(StandardCharsets.UTF_8);
-        URL serverUrl = new URI(server + servlet).toURL();
-        HttpsURLConnection connection = (HttpsURLConnection) serverUrl.openConnection();
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Session", ticket);
-        connection.setRequestProperty("Accept", "application/json");
-        connection.setRequestProperty("Content-Type", "application/json");
-        connection.setRequestProperty("Content-Length", String.valueOf(bytes.length));
-
-        connection.setDoOutput(true);
-        try (DataOutputStream outputStream = new DataOutputStream(connection.getOutputStream())) {
-            outputStream.write(bytes);
-            outputStream.flush();
-        }
-
-        StringBuilder sb = new StringBuilder();
-        try (InputStream stream = connection.getInputStream()) {
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (!sb.isEmpty()) {
-                        sb.append('\n');
-                    }
-                    sb.append(line);
+        try {
+            return await(postMessage(servlet, json, result -> result));
+        } catch (SAXException | ParserConfigurationException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Sends a request through the shared HTTP client without waiting for the
+     * answer, which is handed to {@code parser} once it arrives. Any number of
+     * requests can be in flight at the same time.
+     */
+    private <T> CompletableFuture<T> postMessage(String servlet, JSONObject json, ResponseParser<T> parser)
+            throws IOException, URISyntaxException {
+        byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        HttpRequest.Builder request = HttpRequest.newBuilder(new URI(server + servlet))
+                .header("Session", ticket)
+                .header("Accept", "application/json")
+                .header("Content-Type", "application/json")
+                .header("Accept-Encoding", "gzip");
+        if (compressRequests && bytes.length > COMPRESS_THRESHOLD) {
+            bytes = RemoteUtils.gzip(bytes);
+            request.header("Content-Encoding", "gzip");
+        }
+        request.POST(BodyPublishers.ofByteArray(bytes));
+        return RemoteUtils.getClient().sendAsync(request.build(), BodyHandlers.ofByteArray()).thenApply(response -> {
+            try {
+                JSONObject result = new JSONObject(RemoteUtils.getText(response));
+                if (!result.getString(Constants.STATUS).equals(Constants.OK)) {
+                    throw new RejectedException(result.getString(Constants.REASON));
                 }
+                return parser.parse(result);
+            } catch (IOException | SAXException | ParserConfigurationException e) {
+                throw new CompletionException(e);
             }
+        });
+    }
+
+    private static <T> T await(CompletableFuture<T> future)
+            throws IOException, SAXException, ParserConfigurationException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioe) {
+                throw ioe;
+            }
+            if (cause instanceof SAXException sax) {
+                throw sax;
+            }
+            if (cause instanceof ParserConfigurationException pce) {
+                throw pce;
+            }
+            if (cause instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new IOException(cause);
         }
-        JSONObject result = new JSONObject(sb.toString());
-        if (result.getString(Constants.STATUS).equals(Constants.OK)) {
-            return result;
-        }
-        throw new IOException(result.getString(Constants.REASON));
     }
 
     public static String toBase64(String string) {
@@ -128,7 +242,17 @@ public class RemoteDatabase implements ITmEngine {
         JSONObject params = new JSONObject();
         params.put("command", "closeMemory");
         params.put("memory", dbname);
-        postMessage("/memories", params);
+        try {
+            postMessage("/memories", params);
+        } finally {
+            if (diskCache != null) {
+                try {
+                    diskCache.close();
+                } catch (SQLException e) {
+                    logger.log(Level.WARNING, e.getMessage(), e);
+                }
+            }
+        }
     }
 
     @Override
@@ -150,6 +274,10 @@ public class RemoteDatabase implements ITmEngine {
         params.put("client", customer);
         params.put("close", false);
         postMessage("/memories", params);
+        matchCache.clear();
+        if (diskCache != null) {
+            diskCache.clear();
+        }
         return -1;
     }
 
@@ -178,38 +306,22 @@ public class RemoteDatabase implements ITmEngine {
     }
 
     private String upload(File zipFile) throws IOException, URISyntaxException {
-        URL serverUrl = new URI(server + "/upload").toURL();
-        HttpsURLConnection connection = (HttpsURLConnection) serverUrl.openConnection();
-        connection.setRequestProperty("Session", ticket);
-        connection.setRequestProperty("Accept", "application/json");
-        connection.setRequestProperty("Content-Type", "application/zip");
-        connection.addRequestProperty("Content-Length", String.valueOf(zipFile.length()));
-        connection.setRequestMethod("POST");
-        connection.setDoOutput(true);
-        try (DataOutputStream outputStream = new DataOutputStream(connection.getOutputStream())) {
-            byte[] array = new byte[4096];
-            try (FileInputStream inputStream = new FileInputStream(zipFile)) {
-                int read;
-                while ((read = inputStream.read(array)) != -1) {
-                    outputStream.write(array, 0, read);
-                }
-                outputStream.flush();
-            }
+        HttpRequest request = HttpRequest.newBuilder(new URI(server + "/upload"))
+                .header("Session", ticket)
+                .header("Accept", "application/json")
+                .header("Content-Type", "application/zip")
+                .header("Accept-Encoding", "gzip")
+                .POST(BodyPublishers.ofFile(zipFile.toPath())).build();
+        HttpResponse<byte[]> response;
+        try {
+            response = RemoteUtils.getClient().send(request, BodyHandlers.ofByteArray());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            Files.delete(zipFile.toPath());
         }
-        Files.delete(zipFile.toPath());
-        StringBuilder sb = new StringBuilder();
-        try (InputStream stream = connection.getInputStream()) {
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (!sb.isEmpty()) {
-                        sb.append('\n');
-                    }
-                    sb.append(line);
-                }
-            }
-        }
-        JSONObject result = new JSONObject(sb.toString());
+        JSONObject result = new JSONObject(RemoteUtils.getText(response));
         if (result.getString(Constants.STATUS).equals(Constants.OK)) {
             return result.getString("file");
         }
@@ -236,19 +348,20 @@ public class RemoteDatabase implements ITmEngine {
     }
 
     private void download(String tmxFile, String file) throws IOException, URISyntaxException {
-        URL serverUrl = new URI(server + "/download?session=" + URLEncoder.encode(ticket, StandardCharsets.UTF_8)
-                + "&file=" + URLEncoder.encode(file, StandardCharsets.UTF_8)).toURL();
-        HttpsURLConnection connection = (HttpsURLConnection) serverUrl.openConnection();
-        connection.setRequestMethod("GET");
-        connection.connect();
-        byte[] bytes = new byte[2048];
-        int read = -1;
-        try (InputStream input = connection.getInputStream()) {
-            try (FileOutputStream out = new FileOutputStream(tmxFile)) {
-                while ((read = input.read(bytes)) != -1) {
-                    out.write(bytes, 0, read);
-                }
-            }
+        URI uri = new URI(server + "/download?session=" + URLEncoder.encode(ticket, StandardCharsets.UTF_8)
+                + "&file=" + URLEncoder.encode(file, StandardCharsets.UTF_8));
+        HttpRequest request = HttpRequest.newBuilder(uri).GET().build();
+        HttpResponse<Path> response;
+        try {
+            response = RemoteUtils.getClient().send(request, BodyHandlers.ofFile(Path.of(tmxFile)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        if (response.statusCode() >= 400) {
+            Files.deleteIfExists(response.body());
+            MessageFormat mf = new MessageFormat(Messages.getString("RemoteDatabase.0"));
+            throw new IOException(mf.format(new String[] { "" + response.statusCode(), file }));
         }
     }
 
@@ -311,6 +424,26 @@ public class RemoteDatabase implements ITmEngine {
     @Override
     public List<Match> searchTranslation(String searchStr, String srcLang, String tgtLang, int similarity,
             boolean caseSensitive) throws IOException, SAXException, ParserConfigurationException, URISyntaxException {
+        return await(searchTranslationAsync(searchStr, srcLang, tgtLang, similarity, caseSensitive));
+    }
+
+    public CompletableFuture<List<Match>> searchTranslationAsync(String searchStr, String srcLang, String tgtLang,
+            int similarity, boolean caseSensitive) throws IOException, URISyntaxException {
+        List<Match> cached = matchCache.get(searchStr, srcLang, tgtLang, similarity, caseSensitive, 0);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        long generation = matchCache.getGeneration();
+        long diskGeneration = 0;
+        if (diskCache != null) {
+            diskGeneration = diskCache.getGeneration();
+            List<Match> stored = getStoredMatches(searchStr, srcLang, tgtLang, similarity, caseSensitive);
+            if (stored != null) {
+                matchCache.put(generation, searchStr, srcLang, tgtLang, similarity, caseSensitive, 0, stored);
+                return CompletableFuture.completedFuture(stored);
+            }
+        }
+        long searchGeneration = diskGeneration;
         JSONObject params = new JSONObject();
         params.put("command", "searchTranslation");
         params.put("memory", dbname);
@@ -319,18 +452,82 @@ public class RemoteDatabase implements ITmEngine {
         params.put("tgtLang", tgtLang);
         params.put("similarity", similarity);
         params.put("caseSensitive", caseSensitive);
-        JSONObject json = postMessage("/memories", params);
-        JSONArray array = json.getJSONArray("matches");
-        List<Match> matches = new Vector<>();
-        for (int i = 0; i < array.length(); i++) {
-            matches.add(toMatch(array.getJSONObject(i)));
+        return postMessage("/memories", params, json -> {
+            JSONArray array = json.getJSONArray("matches");
+            List<Match> matches = new Vector<>();
+            for (int i = 0; i < array.length(); i++) {
+                matches.add(toMatch(array.getJSONObject(i)));
+            }
+            matchCache.put(generation, searchStr, srcLang, tgtLang, similarity, caseSensitive, 0, matches);
+            if (diskCache != null) {
+                diskCache.put(searchGeneration, RemoteCache.TRANSLATION, searchStr, srcLang, tgtLang, similarity, 0,
+                        caseSensitive, array, getMatchIds(array));
+            }
+            return matches;
+        });
+    }
+
+    /**
+     * Matches for a search from the disk cache: the result of the same search
+     * or, failing that, the matches found for the segment by a batch
+     * translation, filtered by similarity. A batch only holds the matches above
+     * its own threshold, so it cannot answer searches below it.
+     */
+    private List<Match> getStoredMatches(String searchStr, String srcLang, String tgtLang, int similarity,
+            boolean caseSensitive) {
+        boolean batch = false;
+        JSONArray array = diskCache.get(RemoteCache.TRANSLATION, searchStr, srcLang, tgtLang, similarity, 0,
+                caseSensitive);
+        if (array == null && similarity >= batchThreshold) {
+            array = diskCache.get(RemoteCache.BATCH, searchStr, srcLang, tgtLang, batchThreshold, batchLimit,
+                    caseSensitive);
+            batch = true;
+        }
+        if (array == null) {
+            return null;
+        }
+        try {
+            List<Match> matches = new Vector<>();
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject json = array.getJSONObject(i);
+                if (!batch || json.getInt("similarity") >= similarity) {
+                    matches.add(toMatch(json));
+                }
+            }
+            return matches;
+        } catch (SAXException | IOException | ParserConfigurationException e) {
+            logger.log(Level.WARNING, e.getMessage(), e);
+            return null;
         }
-        return matches;
+    }
+
+    private static Set<String> getMatchIds(JSONArray matches) {
+        Set<String> ids = new TreeSet<>();
+        for (int i = 0; i < matches.length(); i++) {
+            JSONObject match = matches.getJSONObject(i);
+            if (match.has("id")) {
+                ids.add(match.getString("id"));
+            }
+        }
+        return ids;
     }
 
     @Override
     public List<Element> searchAll(String searchStr, String srcLang, int similarity, boolean caseSensitive)
             throws IOException, SAXException, ParserConfigurationException, URISyntaxException {
+        long generation = 0;
+        if (diskCache != null) {
+            generation = diskCache.getGeneration();
+            JSONArray stored = diskCache.get(RemoteCache.SEARCH_ALL, searchStr, srcLang, "", similarity, 0,
+                    caseSensitive);
+            if (stored != null) {
+                List<Element> tus = new Vector<>();
+                for (int i = 0; i < stored.length(); i++) {
+                    tus.add(toElement(stored.getString(i)));
+                }
+                return tus;
+            }
+        }
         JSONObject params = new JSONObject();
         params.put("command", "searchAll");
         params.put("memory", dbname);
@@ -341,8 +538,17 @@ public class RemoteDatabase implements ITmEngine {
         JSONObject json = postMessage("/memories", params);
         JSONArray array = json.getJSONArray("tus");
         List<Element> tus = new Vector<>();
+        Set<String> ids = new TreeSet<>();
         for (int i = 0; i < array.length(); i++) {
-            tus.add(toElement(array.getString(i)));
+            Element tu = toElement(array.getString(i));
+            tus.add(tu);
+            if (tu.hasAttribute("tuid")) {
+                ids.add(tu.getAttributeValue("tuid"));
+            }
+        }
+        if (diskCache != null) {
+            diskCache.put(generation, RemoteCache.SEARCH_ALL, searchStr, srcLang, "", similarity, 0, caseSensitive,
+                    array, ids);
         }
         return tus;
     }
@@ -350,6 +556,11 @@ public class RemoteDatabase implements ITmEngine {
     @Override
     public List<Element> concordanceSearch(String searchStr, String srcLang, int limit, boolean isRegexp,
             boolean caseSensitive) throws IOException, SAXException, ParserConfigurationException, URISyntaxException {
+        return await(concordanceSearchAsync(searchStr, srcLang, limit, isRegexp, caseSensitive));
+    }
+
+    public CompletableFuture<List<Element>> concordanceSearchAsync(String searchStr, String srcLang, int limit,
+            boolean isRegexp, boolean caseSensitive) throws IOException, URISyntaxException {
         JSONObject params = new JSONObject();
         params.put("command", "concordanceSearch");
         params.put("memory", dbname);
@@ -358,13 +569,14 @@ public class RemoteDatabase implements ITmEngine {
         params.put("limit", limit);
         params.put("isRegexp", isRegexp);
         params.put("caseSensitive", caseSensitive);
-        JSONObject json = postMessage("/memories", params);
-        JSONArray array = json.getJSONArray("tus");
-        List<Element> tus = new Vector<>();
-        for (int i = 0; i < array.length(); i++) {
-            tus.add(toElement(array.getString(i)));
-        }
-        return tus;
+        return postMessage("/memories", params, json -> {
+            JSONArray array = json.getJSONArray("tus");
+            List<Element> tus = new Vector<>();
+            for (int i = 0; i < array.length(); i++) {
+                tus.add(toElement(array.getString(i)));
+            }
+            return tus;
+        });
     }
 
     @Override
@@ -374,6 +586,26 @@ public class RemoteDatabase implements ITmEngine {
         params.put("memory", dbname);
         params.put("tu", tu.toString());
         postMessage("/memories", params);
+        List<Element> tuvs = tu.getChildren("tuv");
+        Iterator<Element> it = tuvs.iterator();
+        while (it.hasNext()) {
+            Element tuv = it.next();
+            String lang = LanguageUtils.normalizeCode(tuv.getAttributeValue("xml:lang"));
+            Element seg = tuv.getChild("seg");
+            if (lang != null && seg != null) {
+                int[] ngrams = NGrams.getNGrams(TMUtils.extractText(seg));
+                matchCache.invalidate(lang, ngrams);
+                if (diskCache != null) {
+                    diskCache.invalidate(lang, ngrams);
+                }
+            }
+        }
+        if (tu.hasAttribute("tuid")) {
+            matchCache.invalidate(tu.getAttributeValue("tuid"));
+            if (diskCache != null) {
+                diskCache.invalidate(tu.getAttributeValue("tuid"));
+            }
+        }
     }
 
     @Override
@@ -403,6 +635,10 @@ public class RemoteDatabase implements ITmEngine {
         params.put("memory", dbname);
         params.put("tuid", tuid);
         postMessage("/memories", params);
+        matchCache.invalidate(tuid);
+        if (diskCache != null) {
+            diskCache.invalidate(tuid);
+        }
     }
 
     @Override
@@ -411,6 +647,9 @@ public class RemoteDatabase implements ITmEngine {
         params.put("command", "removeMemory");
         params.put("memory", dbname);
         postMessage("/memories", params);
+        if (diskCache != null) {
+            diskCache.clear();
+        }
     }
 
     private Match toMatch(JSONObject json) throws SAXException, IOException, ParserConfigurationException {
@@ -432,15 +671,150 @@ public class RemoteDatabase implements ITmEngine {
         return new Match(id, source, target, similarity, origin, properties);
     }
 
-    private Element toElement(String string) throws SAXException, IOException, ParserConfigurationException {
+    // responses of asynchronous requests are parsed in parallel and SAXBuilder is not thread safe
+    private synchronized Element toElement(String string)
+            throws SAXException, IOException, ParserConfigurationException {
         return builder.build(new ByteArrayInputStream(string.getBytes(StandardCharsets.UTF_8))).getRootElement();
     }
 
+    @Override
+    public JSONObject getCacheStatistics() {
+        JSONObject result = matchCache.getStatistics();
+        if (diskCache != null) {
+            result.put("disk", diskCache.getStatistics());
+        }
+        return result;
+    }
+
     @Override
     public JSONArray batchTranslate(JSONObject params) throws IOException, URISyntaxException {
-        params.put("command", "batchTranslate");
-        params.put("memory", dbname);
-        JSONObject json = postMessage("/memories", params);
-        return json.getJSONArray("matches");
+        try {
+            return await(batchTranslateAsync(params));
+        } catch (SAXException | ParserConfigurationException e) {
+            throw new IOException(e);
+        }
     }
+
+    /**
+     * Translates the segments in chunks of "remoteBatchChunk" segments, with no
+     * more than "remoteMaxInFlight" chunks waiting for the server at the same
+     * time. A chunk that fails is sent again after a growing pause; the segments
+     * of a chunk that keeps failing are returned without matches, unless all
+     * chunks failed. Segments are returned in input order.
+     */
+    public CompletableFuture<JSONArray> batchTranslateAsync(JSONObject params) {
+        JSONArray segments = params.getJSONArray("segments");
+        int chunks = (segments.length() + chunkSize - 1) / chunkSize;
+        JSONArray[] results = new JSONArray[chunks];
+        Throwable[] errors = new Throwable[chunks];
+        AtomicInteger next = new AtomicInteger();
+        int lanes = Math.min(maxInFlight, chunks);
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[lanes];
+        for (int i = 0; i < lanes; i++) {
+            futures[i] = sendChunks(params, next, results, errors);
+        }
+        return CompletableFuture.allOf(futures).thenApply(v -> mergeChunks(segments, results, errors));
+    }
+
+    /**
+     * Sends the next unsent chunk and, once it is answered, the one after it,
+     * until no chunks are left.
+     */
+    private CompletableFuture<Void> sendChunks(JSONObject params, AtomicInteger next, JSONArray[] results,
+            Throwable[] errors) {
+        int index = next.getAndIncrement();
+        if (index >= results.length) {
+            return CompletableFuture.completedFuture(null);
+        }
+        JSONArray segments = params.getJSONArray("segments");
+        JSONObject request = new JSONObject();
+        Iterator<String> it = params.keySet().iterator();
+        while (it.hasNext()) {
+            String key = it.next();
+            if (!key.equals("segments")) {
+                request.put(key, params.get(key));
+            }
+        }
+        request.put("command", "batchTranslate");
+        request.put("memory", dbname);
+        JSONArray chunk = new JSONArray();
+        int end = Math.min(segments.length(), (index + 1) * chunkSize);
+        for (int i = index * chunkSize; i < end; i++) {
+            chunk.put(segments.get(i));
+        }
+        request.put("segments", chunk);
+        long generation = diskCache != null ? diskCache.getGeneration() : 0;
+        return sendChunk(request, 0).handle((matches, error) -> {
+            if (matches != null && diskCache != null) {
+                storeBatch(generation, request, matches);
+            }
+            results[index] = matches;
+            errors[index] = error instanceof CompletionException ? error.getCause() : error;
+            return null;
+        }).thenCompose(v -> sendChunks(params, next, results, errors));
+    }
+
+    /**
+     * Keeps the matches found for each segment of a batch, so that the
+     * searches made while translating them do not go to the server again.
+     */
+    private void storeBatch(long generation, JSONObject request, JSONArray segments) {
+        String srcLang = request.getString("srcLang");
+        String tgtLang = request.getString("tgtLang");
+        boolean caseSensitive = request.optBoolean("caseSensitiveMatches", false);
+        for (int i = 0; i < segments.length(); i++) {
+            JSONObject segment = segments.getJSONObject(i);
+            if (segment.has("pure") && segment.has("matches")) {
+                JSONArray matches = segment.getJSONArray("matches");
+                diskCache.put(generation, RemoteCache.BATCH, segment.getString("pure"), srcLang, tgtLang,
+                        batchThreshold, batchLimit, caseSensitive, matches, getMatchIds(matches));
+            }
+        }
+    }
+
+    private CompletableFuture<JSONArray> sendChunk(JSONObject request, int attempt) {
+        CompletableFuture<JSONArray> future;
+        try {
+            future = postMessage("/memories", request, json -> json.getJSONArray("matches"));
+        } catch (IOException | URISyntaxException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return future.exceptionallyCompose(e -> {
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            if (attempt == MAX_RETRIES || cause instanceof RejectedException || !(cause instanceof IOException)) {
+                return CompletableFuture.failedFuture(cause);
+            }
+            Executor delayed = CompletableFuture.delayedExecutor(RETRY_DELAY << attempt, TimeUnit.MILLISECONDS);
+            return CompletableFuture.supplyAsync(() -> request, delayed).thenCompose(r -> sendChunk(r, attempt + 1));
+        });
+    }
+
+    private JSONArray mergeChunks(JSONArray segments, JSONArray[] results, Throwable[] errors) {
+        JSONArray result = new JSONArray();
+        int failed = 0;
+        Throwable error = null;
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != null) {
+                result.putAll(results[i]);
+                continue;
+            }
+            failed++;
+            error = errors[i];
+            int end = Math.min(segments.length(), (i + 1) * chunkSize);
+            for (int j = i * chunkSize; j < end; j++) {
+                JSONObject segment = segments.getJSONObject(j);
+                segment.put("matches", new JSONArray());
+                result.put(segment);
+            }
+        }
+        if (failed == results.length && error != null) {
+            throw new CompletionException(error);
+        }
+        if (failed > 0) {
+            MessageFormat mf = new MessageFormat(Messages.getString("RemoteDatabase.1"));
+            logger.log(Level.WARNING, mf.format(new String[] { "" + failed, "" + results.length, dbname }), error);
+        }
+        return result;
+    }
+
 }
@@ -0,0 +1,416 @@
+/*******************************************************************************
+ * Copyright (c) 2007-2026 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+
+package com.maxprograms.swordfish.tm;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.Vector;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.json.JSONObject;
+import org.xml.sax.SAXException;
+
+import com.maxprograms.swordfish.TmsServer;
+import com.maxprograms.swordfish.tmx.TMXReader;
+import com.maxprograms.swordfish.tmx.TuSink;
+import com.maxprograms.xml.Element;
+
+/**
+ * A local memory split in several SQLite databases. TUs are assigned to a
+ * shard by the hash of their tuid; searches, imports and exports run on all
+ * shards in parallel. The number of shards is fixed when the memory is
+ * created.
+ */
+public class ShardedDatabase extends FederatedEngine {
+
+	public static final int DEFAULT_SHARDS = 4;
+
+	private File databaseFolder;
+	private List<SqliteDatabase> shards;
+	private long next;
+
+	private volatile TMXReader reader;
+
+	/**
+	 * Writes the TUs of a TMX file being imported to one file per shard. TUs
+	 * stored in the memory meanwhile go to the shards as usual.
+	 */
+	private class Splitter implements TuSink {
+
+		private Writer[] writers;
+
+		Splitter(Writer[] writers) {
+			this.writers = writers;
+		}
+
+		@Override
+		public void storeTu(Element tu) throws IOException {
+			String tuid = tu.getAttributeValue("tuid");
+			if (tuid.isEmpty()) {
+				tuid = nextId();
+				tu.setAttribute("tuid", tuid);
+			}
+			Writer writer = writers[getShard(tuid)];
+			writer.write(tu.toString());
+			writer.write('\n');
+		}
+
+		@Override
+		public void commit() {
+			// the parts are imported once the whole file is split
+		}
+	}
+
+	public ShardedDatabase(String dbname, String workFolder, int count) throws IOException, SQLException {
+		super(dbname, getMaxMatches(), true);
+		databaseFolder = new File(workFolder, dbname);
+		if (!databaseFolder.exists()) {
+			Files.createDirectories(databaseFolder.toPath());
+		}
+		int existing = 0;
+		while (new File(databaseFolder, "shard" + existing).exists()) {
+			existing++;
+		}
+		if (existing > 0) {
+			// tuids are assigned to shards by count, it cannot change
+			count = existing;
+		} else if (count < 1) {
+			count = DEFAULT_SHARDS;
+		}
+		shards = new Vector<>();
+		try {
+			for (int i = 0; i < count; i++) {
+				SqliteDatabase shard = new SqliteDatabase(dbname, new File(databaseFolder, "shard" + i));
+				shards.add(shard);
+				addEngine(shard, 0, 0);
+			}
+		} catch (IOException | SQLException e) {
+			closeShards();
+			throw e;
+		}
+	}
+
+	private static int getMaxMatches() throws IOException {
+		JSONObject json = TmsServer.getPreferences();
+		return json.has("maxMatches") ? json.getInt("maxMatches") : DEFAULT_MAX_MATCHES;
+	}
+
+	@Override
+	public String getType() {
+		return ShardedDatabase.class.getName();
+	}
+
+	@Override
+	public void close() throws IOException, SQLException, URISyntaxException {
+		super.close();
+		closeShards();
+	}
+
+	private void closeShards() throws IOException, SQLException {
+		for (int i = 0; i < shards.size(); i++) {
+			try {
+				shards.get(i).close();
+			} catch (URISyntaxException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
+	public int getShardCount() {
+		return shards.size();
+	}
+
+	@Override
+	public int storeTMX(String tmxFile, String project, String customer, String subject)
+			throws SAXException, IOException, ParserConfigurationException, SQLException, URISyntaxException {
+		return storeTMX(tmxFile, project, customer, subject, false);
+	}
+
+	/**
+	 * Splits the TMX file in one file per shard and imports the parts in
+	 * parallel. In bulk mode the shards share the import threads a single
+	 * memory would use.
+	 */
+	public int storeTMX(String tmxFile, String project, String customer, String subject, boolean bulk)
+			throws SAXException, IOException, ParserConfigurationException, SQLException, URISyntaxException {
+		File[] files = new File[shards.size()];
+		Writer[] writers = new Writer[shards.size()];
+		try {
+			for (int i = 0; i < files.length; i++) {
+				files[i] = Files.createTempFile(databaseFolder.toPath(), "import", ".tmx").toFile();
+				writers[i] = new BufferedWriter(
+						new OutputStreamWriter(new FileOutputStream(files[i]), StandardCharsets.UTF_8), 1 << 16);
+				SqliteDatabase.writeHeader(writers[i], "*all*");
+				writers[i].write("<body>\n");
+			}
+			reader = new TMXReader(new Splitter(writers));
+			reader.parse(new File(tmxFile).toURI().toURL());
+			reader = null;
+			for (int i = 0; i < writers.length; i++) {
+				writers[i].write("</body>\n");
+				writers[i].write("</tmx>\n");
+				writers[i].close();
+				writers[i] = null;
+			}
+			List<Integer> counts = invokeAll(engine -> {
+				SqliteDatabase shard = (SqliteDatabase) engine;
+				File part = files[shards.indexOf(engine)];
+				int threads = Math.max(1, shard.getPoolLimit() / shards.size());
+				return shard.storeTMX(part.getAbsolutePath(), project, customer, subject, bulk, threads);
+			});
+			int imported = 0;
+			for (int i = 0; i < counts.size(); i++) {
+				imported += counts.get(i);
+			}
+			return imported;
+		} finally {
+			reader = null;
+			for (int i = 0; i < files.length; i++) {
+				if (writers[i] != null) {
+					writers[i].close();
+				}
+				if (files[i] != null) {
+					Files.deleteIfExists(files[i].toPath());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Number of TUs read from the TMX file being imported, or stored by the
+	 * shards once the file has been split.
+	 */
+	public int getCount() {
+		TMXReader current = reader;
+		if (current != null) {
+			return current.getCount();
+		}
+		int count = 0;
+		for (int i = 0; i < shards.size(); i++) {
+			count += shards.get(i).getCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Exports every shard to a temporary file in parallel and joins the parts.
+	 */
+	@Override
+	public void exportMemory(String tmxfile, Set<String> langs, String srcLang)
+			throws IOException, SAXException, ParserConfigurationException, SQLException, URISyntaxException {
+		File[] files = new File[shards.size()];
+		try {
+			for (int i = 0; i < files.length; i++) {
+				files[i] = Files.createTempFile(databaseFolder.toPath(), "export", ".tmp").toFile();
+			}
+			invokeAll(engine -> {
+				File part = files[shards.indexOf(engine)];
+				try (Writer writer = new BufferedWriter(
+						new OutputStreamWriter(new FileOutputStream(part), StandardCharsets.UTF_8), 1 << 16)) {
+					((SqliteDatabase) engine).exportTus(writer, langs);
+				}
+				return null;
+			});
+			try (FileOutputStream output = new FileOutputStream(tmxfile);
+					Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+				SqliteDatabase.writeHeader(writer, srcLang);
+				writer.write("<body>\n");
+				writer.flush();
+				for (int i = 0; i < files.length; i++) {
+					Files.copy(files[i].toPath(), output);
+				}
+				writer.write("</body>\n");
+				writer.write("</tmx>\n");
+			}
+		} finally {
+			for (int i = 0; i < files.length; i++) {
+				if (files[i] != null) {
+					Files.deleteIfExists(files[i].toPath());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the TUs of every shard to a memory pack, one shard after the other.
+	 */
+	public void exportPack(PackWriter pack) throws IOException, SQLException {
+		for (int i = 0; i < shards.size(); i++) {
+			shards.get(i).exportPack(pack);
+		}
+	}
+
+	/**
+	 * Joins the results of all shards, shortest source text first.
+	 */
+	@Override
+	public List<Element> concordanceSearch(String searchStr, String srcLang, int limit, boolean isRegexp,
+			boolean caseSensitive)
+			throws IOException, SAXException, ParserConfigurationException, SQLException, URISyntaxException {
+		List<List<Element>> results = invokeAll(
+				engine -> engine.concordanceSearch(searchStr, srcLang, limit, isRegexp, caseSensitive));
+		List<Element> result = new Vector<>();
+		for (int i = 0; i < results.size(); i++) {
+			result.addAll(results.get(i));
+		}
+		Collections.sort(result, Comparator.comparingInt(tu -> getTextLength(tu, srcLang)));
+		return result.size() > limit ? new Vector<>(result.subList(0, limit)) : result;
+	}
+
+	private static int getTextLength(Element tu, String lang) {
+		List<Element> tuvs = tu.getChildren("tuv");
+		for (int i = 0; i < tuvs.size(); i++) {
+			Element tuv = tuvs.get(i);
+			if (lang.equalsIgnoreCase(tuv.getAttributeValue("xml:lang"))) {
+				Element seg = tuv.getChild("seg");
+				return seg == null ? 0 : TMUtils.extractText(seg).length();
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public void storeTu(Element tu) throws IOException, SQLException, URISyntaxException {
+		String tuid = tu.getAttributeValue("tuid");
+		if (tuid.isEmpty()) {
+			tuid = nextId();
+			tu.setAttribute("tuid", tuid);
+		}
+		shards.get(getShard(tuid)).storeTu(tu);
+	}
+
+	@Override
+	public void commit() throws SQLException, IOException, URISyntaxException {
+		try {
+			invokeAll(engine -> {
+				engine.commit();
+				return null;
+			});
+		} catch (SAXException | ParserConfigurationException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public Element getTu(String tuid)
+			throws IOException, SAXException, ParserConfigurationException, SQLException, URISyntaxException {
+		return shards.get(getShard(tuid)).getTu(tuid);
+	}
+
+	@Override
+	public void removeTu(String tuid)
+			throws IOException, SAXException, ParserConfigurationException, SQLException, URISyntaxException {
+		shards.get(getShard(tuid)).removeTu(tuid);
+	}
+
+	@Override
+	public void deleteDatabase() throws IOException, SQLException, URISyntaxException {
+		TmsServer.deleteFolder(databaseFolder);
+	}
+
+	@Override
+	public JSONObject getCacheStatistics() {
+		JSONObject result = new JSONObject();
+		for (int i = 0; i < shards.size(); i++) {
+			result.put("shard" + i, shards.get(i).getCacheStatistics());
+		}
+		return result;
+	}
+
+	/**
+	 * Number of TUs with a segment in each language, in all shards.
+	 */
+	public Map<String, Integer> getLanguageCounts() {
+		Map<String, Integer> result = new TreeMap<>();
+		for (int i = 0; i < shards.size(); i++) {
+			Map<String, Integer> counts = shards.get(i).getLanguageCounts();
+			Iterator<String> it = counts.keySet().iterator();
+			while (it.hasNext()) {
+				String lang = it.next();
+				result.put(lang, result.getOrDefault(lang, 0) + counts.get(lang));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Loads the snapshots of all shards at once.
+	 */
+	public void enableSnapshot() throws IOException, SQLException, URISyntaxException {
+		try {
+			invokeAll(engine -> {
+				((SqliteDatabase) engine).enableSnapshot();
+				return null;
+			});
+		} catch (SAXException | ParserConfigurationException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Rebuilds the fuzzy index of a language in all shards at once.
+	 */
+	public void rebuildIndex(String lang) throws IOException, SQLException, URISyntaxException {
+		try {
+			invokeAll(engine -> {
+				((SqliteDatabase) engine).rebuildIndex(lang);
+				return null;
+			});
+		} catch (SAXException | ParserConfigurationException e) {
+			throw new IOException(e);
+		}
+	}
+
+	public int getRebuildCount() {
+		int count = 0;
+		for (int i = 0; i < shards.size(); i++) {
+			count += shards.get(i).getRebuildCount();
+		}
+		return count;
+	}
+
+	public int getRebuildTotal() {
+		int total = 0;
+		for (int i = 0; i < shards.size(); i++) {
+			total += shards.get(i).getRebuildTotal();
+		}
+		return total;
+	}
+
+	private int getShard(String tuid) {
+		return Math.floorMod(tuid.hashCode(), shards.size());
+	}
+
+	private synchronized String nextId() {
+		if (next == 0l) {
+			next = System.currentTimeMillis();
+		}
+		return "" + next++;
+	}
+}
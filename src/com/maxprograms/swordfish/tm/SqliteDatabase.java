@@ -11,9 +11,12 @@
  *******************************************************************************/
 package com.maxprograms.swordfish.tm;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
 import java.net.URISyntaxException;
@@ -26,27 +29,34 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.text.MessageFormat;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.NavigableSet;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.Vector;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
-import org.mapdb.Fun;
-import org.mapdb.Fun.Tuple2;
-import org.sqlite.Function;
 import org.xml.sax.SAXException;
 
 import com.maxprograms.languages.LanguageUtils;
@@ -54,7 +64,6 @@ import com.maxprograms.swordfish.Constants;
 import com.maxprograms.swordfish.TmsServer;
 import com.maxprograms.swordfish.tmx.TMXReader;
 import com.maxprograms.xml.Element;
-import com.maxprograms.xml.Indenter;
 import com.maxprograms.xml.XMLUtils;
 
 public class SqliteDatabase implements ITmEngine {
@@ -68,7 +77,9 @@ public class SqliteDatabase implements ITmEngine {
     private PreparedStatement storeTUV;
     private PreparedStatement searchTUV;
     private PreparedStatement deleteTUV;
-    private TuDatabase tuDb;
+    // opened on first use, see getTuDb()
+    private volatile TuDatabase tuDb;
+    private final Object tuDbLock = new Object();
     private FuzzyIndex fuzzyIndex;
     private long next;
     private String currProject;
@@ -76,15 +87,59 @@ public class SqliteDatabase implements ITmEngine {
     private String currCustomer;
     private String creationId;
     private int matchThreshold;
+    private int maxMatches;
+    private static final int DEFAULT_MAX_MATCHES = 10;
 
-    // Connection pool for concurrent read operations
+    // candidates scored per round trip and maximum size of IN lists
+    private static final int SEARCH_CHUNK = 32;
+    private static final int FETCH_CHUNK = 500;
+
+    // Connection pool for concurrent read operations, grown on demand up to
+    // poolLimit connections
     private BlockingQueue<Connection> readConnectionPool;
+    private int poolSize;
+    private int poolLimit;
     private static final int DEFAULT_POOL_SIZE = Runtime.getRuntime().availableProcessors();
 
+    // version of the tables, indexes and triggers; databases with an older one
+    // are checked and upgraded when opened
+    private static final int SCHEMA_VERSION = 2;
+
+    private static boolean driverRegistered;
+
+    private ExecutorService batchExecutor;
+
+    private volatile int rebuildCount;
+    private volatile int rebuildTotal;
+    private volatile boolean rebuildCancelled;
+
     private TMXReader reader;
+    private volatile BulkImporter bulkImporter;
+
+    private MatchCache matchCache;
+    // n-grams changed since the last commit, by language
+    private Map<String, IntSet> pendingInvalidations;
+    private Set<String> pendingTuids;
+
+    // false when the SQLite library lacks FTS5 or its trigram tokenizer
+    private boolean concordanceIndex;
+
+    // null unless translation searches are served from memory
+    private volatile MemorySnapshot snapshot;
+
+    private Catalog catalog;
 
     public SqliteDatabase(String dbname, String workFolder) throws IOException, SQLException {
+        this(dbname, new File(workFolder, dbname));
+    }
+
+    /**
+     * Opens the database stored in {@code databaseFolder}. The name is used for
+     * the origin of matches and in messages.
+     */
+    public SqliteDatabase(String dbname, File databaseFolder) throws IOException, SQLException {
         this.dbname = dbname;
+        this.databaseFolder = databaseFolder;
         JSONObject json = TmsServer.getPreferences();
         if (json.has("userName")) {
             creationId = json.getString("userName");
@@ -96,8 +151,20 @@ public class SqliteDatabase implements ITmEngine {
         } else {
             matchThreshold = 60;
         }
-        File wfolder = new File(workFolder);
-        databaseFolder = new File(wfolder, dbname);
+        if (json.has("maxMatches")) {
+            maxMatches = json.getInt("maxMatches");
+        } else {
+            maxMatches = DEFAULT_MAX_MATCHES;
+        }
+        if (json.has("readConnections")) {
+            poolLimit = Math.max(1, json.getInt("readConnections"));
+        } else {
+            poolLimit = DEFAULT_POOL_SIZE;
+        }
+        matchCache = new MatchCache(MatchCache.DEFAULT_WEIGHT, 0);
+        pendingInvalidations = new HashMap<>();
+        pendingTuids = new HashSet<>();
+        catalog = new Catalog();
         if (!databaseFolder.exists()) {
             Files.createDirectories(databaseFolder.toPath());
         }
@@ -107,7 +174,7 @@ public class SqliteDatabase implements ITmEngine {
         }
         database = new File(databaseFolder, "database.db");
         boolean sqliteNeedsCreation = !database.exists();
-        DriverManager.registerDriver(new org.sqlite.JDBC());
+        registerDriver();
         conn = DriverManager.getConnection("jdbc:sqlite:" + database.getAbsolutePath().replace('\\', '/'));
 
         // Optimize SQLite performance (must be done before setAutoCommit(false))
@@ -115,39 +182,36 @@ public class SqliteDatabase implements ITmEngine {
             stmt.execute("PRAGMA journal_mode = WAL");
             stmt.execute("PRAGMA synchronous = NORMAL");
             stmt.execute("PRAGMA cache_size = -10000");
+            // REPLACE must fire the delete trigger of the concordance index
+            stmt.execute("PRAGMA recursive_triggers = ON");
         }
 
         conn.setAutoCommit(false);
 
-        Function.create(conn, "REGEXP", new Function() {
-            @Override
-            protected void xFunc() throws SQLException {
-                String expression = value_text(0);
-                String value = value_text(1);
-                if (value == null)
-                    value = "";
-
-                Pattern pattern = Pattern.compile(expression);
-                result(pattern.matcher(value).find() ? 1 : 0);
-            }
-        });
+        RegExpFunction.register(conn);
         if (sqliteNeedsCreation) {
             createTables();
         }
 
-        // Ensure indexes exist (creates them for existing databases without indexes)
-        ensureIndexes();
+        if (getSchemaVersion() < SCHEMA_VERSION) {
+            // Ensure indexes exist (creates them for existing databases without indexes)
+            ensureIndexes();
+            ensureTextHashes();
+            ensureConcordanceIndex();
+            ensureCatalog();
+            if (concordanceIndex) {
+                // without FTS5 the checks are repeated, the library may change
+                setSchemaVersion(SCHEMA_VERSION);
+            }
+        } else {
+            concordanceIndex = true;
+        }
+        catalog.load(conn);
 
-        storeTUV = conn.prepareStatement("INSERT INTO tuv (tuid, lang, seg, puretext, textlength) VALUES (?,?,?,?,?)");
-        searchTUV = conn.prepareStatement("SELECT textlength FROM tuv WHERE tuid=? AND lang=?");
+        storeTUV = conn.prepareStatement(
+                "INSERT INTO tuv (tuid, lang, seg, puretext, textlength, texthash, lowerhash) VALUES (?,?,?,?,?,?,?)");
+        searchTUV = conn.prepareStatement("SELECT puretext FROM tuv WHERE tuid=? AND lang=?");
         deleteTUV = conn.prepareStatement("DELETE FROM tuv WHERE tuid=? AND lang=?");
-        try {
-            tuDb = new TuDatabase(databaseFolder);
-        } catch (Exception e) {
-            logger.log(Level.ERROR, e.getMessage(), e);
-            MessageFormat mf = new MessageFormat(Messages.getString("SqliteDatabase.1"));
-            throw new IOException(mf.format(new String[] { dbname }));
-        }
         try {
             fuzzyIndex = new FuzzyIndex(databaseFolder);
         } catch (Exception e) {
@@ -155,9 +219,88 @@ public class SqliteDatabase implements ITmEngine {
             MessageFormat mf = new MessageFormat(Messages.getString("SqliteDatabase.2"));
             throw new IOException(mf.format(new String[] { dbname }));
         }
+        readConnectionPool = new LinkedBlockingQueue<>();
+    }
+
+    static synchronized void registerDriver() throws SQLException {
+        if (!driverRegistered) {
+            DriverManager.registerDriver(new org.sqlite.JDBC());
+            driverRegistered = true;
+        }
+    }
+
+    /**
+     * Opens the MapDB store with the attributes of the TUs the first time it is
+     * needed.
+     */
+    private TuDatabase getTuDb() throws IOException {
+        TuDatabase current = tuDb;
+        if (current == null) {
+            synchronized (tuDbLock) {
+                current = tuDb;
+                if (current == null) {
+                    try {
+                        current = new TuDatabase(databaseFolder);
+                    } catch (Exception e) {
+                        logger.log(Level.ERROR, e.getMessage(), e);
+                        MessageFormat mf = new MessageFormat(Messages.getString("SqliteDatabase.1"));
+                        throw new IOException(mf.format(new String[] { dbname }));
+                    }
+                    tuDb = current;
+                }
+            }
+        }
+        return current;
+    }
 
-        // Initialize connection pool for concurrent read operations
-        initializeConnectionPool(DEFAULT_POOL_SIZE);
+    /**
+     * Creates the catalog of languages and property values of databases
+     * created without it, counting the TUs that use them.
+     */
+    private void ensureCatalog() throws SQLException, IOException {
+        long startTime = System.currentTimeMillis();
+        try (Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = stmt
+                    .executeQuery("SELECT name FROM sqlite_master WHERE type='table' AND name='catalog'")) {
+                if (rs.next()) {
+                    return;
+                }
+            }
+            logger.log(Level.INFO, "Creating catalog for database: " + dbname);
+            Catalog.createTable(conn);
+            try (ResultSet rs = stmt.executeQuery("SELECT lang, COUNT(*) FROM tuv GROUP BY lang")) {
+                while (rs.next()) {
+                    catalog.set(Catalog.LANGUAGE, rs.getString(1), rs.getInt(2));
+                }
+            }
+        }
+        TuDatabase tus = getTuDb();
+        Iterator<String> it = tus.getKeys().iterator();
+        while (it.hasNext()) {
+            catalog.replace(null, tus.getTu(it.next()));
+        }
+        catalog.save(conn);
+        conn.commit();
+        logger.log(Level.INFO, "Catalog created in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    private int getSchemaVersion() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS metadata (name VARCHAR(64) PRIMARY KEY, value TEXT NOT NULL)");
+            conn.commit();
+            try (ResultSet rs = stmt.executeQuery("SELECT value FROM metadata WHERE name='schema'")) {
+                return rs.next() ? Integer.parseInt(rs.getString(1)) : 0;
+            }
+        }
+    }
+
+    private void setSchemaVersion(int version) throws SQLException {
+        try (PreparedStatement stmt = conn
+                .prepareStatement("INSERT OR REPLACE INTO metadata (name, value) VALUES ('schema', ?)")) {
+            stmt.setString(1, "" + version);
+            stmt.execute();
+        }
+        conn.commit();
     }
 
     private void createTables() throws SQLException {
@@ -168,13 +311,18 @@ public class SqliteDatabase implements ITmEngine {
                 seg TEXT NOT NULL,
                 puretext TEXT NOT NULL,
                 textlength INTEGER NOT NULL,
+                texthash INTEGER,
+                lowerhash INTEGER,
                 PRIMARY KEY(tuid, lang)
                 );""";
         try (Statement stmt = conn.createStatement()) {
             stmt.execute(sql);
             stmt.execute("CREATE INDEX idx_tuv_lang ON tuv(lang)");
             stmt.execute("CREATE INDEX idx_tuv_lang_textlength ON tuv(lang, textlength)");
+            stmt.execute("CREATE INDEX idx_tuv_lang_texthash ON tuv(lang, texthash)");
+            stmt.execute("CREATE INDEX idx_tuv_lang_lowerhash ON tuv(lang, lowerhash)");
         }
+        Catalog.createTable(conn);
         conn.commit();
     }
 
@@ -217,46 +365,157 @@ public class SqliteDatabase implements ITmEngine {
         }
     }
 
-    private void initializeConnectionPool(int size) throws IOException, SQLException {
-        readConnectionPool = new LinkedBlockingQueue<>(size);
+    /**
+     * Adds the columns and indexes used to find exact matches to databases
+     * created without them.
+     */
+    private void ensureTextHashes() throws SQLException {
+        boolean exists = false;
+        long startTime = System.currentTimeMillis();
+        try (Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("PRAGMA table_info(tuv)")) {
+                while (rs.next()) {
+                    if ("texthash".equals(rs.getString("name"))) {
+                        exists = true;
+                    }
+                }
+            }
+            if (exists) {
+                return;
+            }
+            logger.log(Level.INFO, "Adding text hashes to database: " + dbname);
+            stmt.execute("ALTER TABLE tuv ADD COLUMN texthash INTEGER");
+            stmt.execute("ALTER TABLE tuv ADD COLUMN lowerhash INTEGER");
+            try (ResultSet rs = stmt.executeQuery("SELECT rowid, puretext FROM tuv");
+                    PreparedStatement update = conn
+                            .prepareStatement("UPDATE tuv SET texthash=?, lowerhash=? WHERE rowid=?")) {
+                int count = 0;
+                while (rs.next()) {
+                    String puretext = rs.getString(2);
+                    update.setLong(1, textHash(puretext, true));
+                    update.setLong(2, textHash(puretext, false));
+                    update.setLong(3, rs.getLong(1));
+                    update.addBatch();
+                    if (++count % 1000 == 0) {
+                        update.executeBatch();
+                    }
+                }
+                update.executeBatch();
+            }
+            stmt.execute("CREATE INDEX idx_tuv_lang_texthash ON tuv(lang, texthash)");
+            stmt.execute("CREATE INDEX idx_tuv_lang_lowerhash ON tuv(lang, lowerhash)");
+        }
+        conn.commit();
+        logger.log(Level.INFO, "Text hashes added in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * Hash of a text without leading and trailing white space, lowercased when
+     * {@code caseSensitive} is false. Texts with equal hashes must still be
+     * compared.
+     */
+    static long textHash(String text, boolean caseSensitive) {
+        String normalized = text.trim();
+        if (!caseSensitive) {
+            normalized = normalized.toLowerCase(Locale.ROOT);
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < normalized.length(); i++) {
+            hash ^= normalized.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
 
-        for (int i = 0; i < size; i++) {
+    /**
+     * Creates the trigram index used by concordance searches, an FTS5 table
+     * over the texts in tuv kept up to date by triggers.
+     */
+    private void ensureConcordanceIndex() {
+        try (Statement stmt = conn.createStatement()) {
+            boolean exists = false;
+            try (ResultSet rs = stmt
+                    .executeQuery("SELECT name FROM sqlite_master WHERE type='table' AND name='tuv_fts'")) {
+                exists = rs.next();
+            }
+            if (!exists) {
+                logger.log(Level.INFO, "Creating concordance index for database: " + dbname);
+                long startTime = System.currentTimeMillis();
+                stmt.execute(
+                        "CREATE VIRTUAL TABLE tuv_fts USING fts5(puretext, content='tuv', content_rowid='rowid', tokenize='trigram')");
+                stmt.execute("""
+                        CREATE TRIGGER tuv_fts_insert AFTER INSERT ON tuv BEGIN
+                        INSERT INTO tuv_fts(rowid, puretext) VALUES (new.rowid, new.puretext);
+                        END""");
+                stmt.execute("""
+                        CREATE TRIGGER tuv_fts_delete AFTER DELETE ON tuv BEGIN
+                        INSERT INTO tuv_fts(tuv_fts, rowid, puretext) VALUES ('delete', old.rowid, old.puretext);
+                        END""");
+                stmt.execute("""
+                        CREATE TRIGGER tuv_fts_update AFTER UPDATE OF puretext ON tuv BEGIN
+                        INSERT INTO tuv_fts(tuv_fts, rowid, puretext) VALUES ('delete', old.rowid, old.puretext);
+                        INSERT INTO tuv_fts(rowid, puretext) VALUES (new.rowid, new.puretext);
+                        END""");
+                stmt.execute("INSERT INTO tuv_fts(tuv_fts) VALUES ('rebuild')");
+                conn.commit();
+                logger.log(Level.INFO,
+                        "Concordance index created in " + (System.currentTimeMillis() - startTime) + " ms");
+            }
+            concordanceIndex = true;
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Concordance index not available: " + e.getMessage());
             try {
-                Connection readConn = DriverManager.getConnection(
-                        "jdbc:sqlite:file:" + database.getAbsolutePath().replace('\\', '/'));
-
-                // Enable WAL and optimizations for read connection (must be done before
-                // setAutoCommit(false))
-                try (Statement stmt = readConn.createStatement()) {
-                    stmt.execute("PRAGMA journal_mode = WAL");
-                    stmt.execute("PRAGMA synchronous = NORMAL");
-                    stmt.execute("PRAGMA cache_size = -10000");
-                }
-
-                readConn.setAutoCommit(false);
-
-                // Register REGEXP function for each connection
-                org.sqlite.Function.create(readConn, "REGEXP", new org.sqlite.Function() {
-                    @Override
-                    protected void xFunc() throws SQLException {
-                        String expression = value_text(0);
-                        String value = value_text(1);
-                        if (value == null)
-                            value = "";
-                        Pattern pattern = Pattern.compile(expression);
-                        result(pattern.matcher(value).find() ? 1 : 0);
-                    }
-                });
+                conn.rollback();
+            } catch (SQLException ex) {
+                logger.log(Level.WARNING, ex.getMessage(), ex);
+            }
+        }
+    }
 
-                readConnectionPool.add(readConn);
-            } catch (SQLException e) {
-                logger.log(Level.ERROR, "Failed to create connection pool", e);
-                throw new IOException("Failed to initialize connection pool", e);
+    private Connection openReadConnection() throws IOException {
+        try {
+            Connection readConn = DriverManager.getConnection(
+                    "jdbc:sqlite:file:" + database.getAbsolutePath().replace('\\', '/'));
+
+            // Enable WAL and optimizations for read connection (must be done before
+            // setAutoCommit(false))
+            try (Statement stmt = readConn.createStatement()) {
+                stmt.execute("PRAGMA journal_mode = WAL");
+                stmt.execute("PRAGMA synchronous = NORMAL");
+                stmt.execute("PRAGMA cache_size = -10000");
             }
+
+            readConn.setAutoCommit(false);
+
+            // Register REGEXP function for each connection
+            RegExpFunction.register(readConn);
+            return readConn;
+        } catch (SQLException e) {
+            logger.log(Level.ERROR, "Failed to create connection pool", e);
+            throw new IOException("Failed to initialize connection pool", e);
         }
     }
 
+    /**
+     * Returns an idle read connection, opening a new one while the pool is
+     * below its limit; otherwise waits for a connection to be released.
+     */
     private Connection acquireReadConnection() throws SQLException {
+        Connection readConn = readConnectionPool.poll();
+        if (readConn != null) {
+            return readConn;
+        }
+        synchronized (readConnectionPool) {
+            if (poolSize < poolLimit) {
+                try {
+                    readConn = openReadConnection();
+                } catch (IOException e) {
+                    throw new SQLException(e.getMessage(), e);
+                }
+                poolSize++;
+                return readConn;
+            }
+        }
         try {
             return readConnectionPool.take();
         } catch (InterruptedException e) {
@@ -267,39 +526,123 @@ public class SqliteDatabase implements ITmEngine {
 
     private void releaseReadConnection(Connection conn) {
         if (conn != null) {
+            try {
+                // end the read transaction so the next search sees recent changes
+                conn.rollback();
+            } catch (SQLException e) {
+                logger.log(Level.WARNING, e.getMessage(), e);
+            }
             if (!readConnectionPool.offer(conn)) {
                 logger.log(Level.ERROR, "Failed to return connection to pool - possible connection leak");
             }
         }
     }
 
+    /**
+     * Translates the segments in {@code params} using up to
+     * {@code params.parallelism} threads, each one working with its own pooled
+     * read connection. Segments are returned in input order. When the calling
+     * thread is interrupted or the memory is closed only the segments already
+     * translated are returned.
+     */
     @Override
     public JSONArray batchTranslate(JSONObject params)
             throws IOException, SAXException, ParserConfigurationException, SQLException, URISyntaxException {
-        JSONArray result = new JSONArray();
         String srcLang = params.getString("srcLang");
         String tgtLang = params.getString("tgtLang");
         JSONArray segments = params.getJSONArray("segments");
         boolean caseSensitiveMatches = params.getBoolean("caseSensitiveMatches");
-        for (int i = 0; i < segments.length(); i++) {
-            JSONObject json = segments.getJSONObject(i);
-            List<Match> matches = searchTranslation(json.getString("pure"), srcLang, tgtLang, matchThreshold,
-                    caseSensitiveMatches);
-            JSONArray array = new JSONArray();
-            for (int j = 0; j < matches.size(); j++) {
-                array.put(matches.get(j).toJSON());
+        int parallelism = params.has("parallelism") ? params.getInt("parallelism") : poolLimit;
+        parallelism = Math.max(1, Math.min(Math.min(parallelism, poolLimit), segments.length()));
+        // each call has its own flag, so stopping one batch does not stop others
+        AtomicBoolean cancelled = new AtomicBoolean();
+
+        JSONObject[] translated = new JSONObject[segments.length()];
+        AtomicInteger next = new AtomicInteger();
+        Callable<Void> worker = () -> {
+            int i;
+            while (!cancelled.get() && !Thread.currentThread().isInterrupted()
+                    && (i = next.getAndIncrement()) < translated.length) {
+                JSONObject json = segments.getJSONObject(i);
+                List<Match> matches = searchTranslation(json.getString("pure"), srcLang, tgtLang, matchThreshold,
+                        caseSensitiveMatches);
+                JSONArray array = new JSONArray();
+                for (int j = 0; j < matches.size(); j++) {
+                    array.put(matches.get(j).toJSON());
+                }
+                json.put("matches", array);
+                translated[i] = json;
+            }
+            return null;
+        };
+        List<Future<Void>> futures = new Vector<>();
+        for (int i = 0; i < parallelism; i++) {
+            futures.add(getBatchExecutor().submit(worker));
+        }
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                futures.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            cancelled.set(true);
+            Thread.currentThread().interrupt();
+        } catch (CancellationException e) {
+            // the memory was closed before all workers started
+            cancelled.set(true);
+        } catch (ExecutionException e) {
+            cancelled.set(true);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioe) {
+                throw ioe;
+            }
+            if (cause instanceof SQLException sqle) {
+                throw sqle;
+            }
+            if (cause instanceof SAXException saxe) {
+                throw saxe;
+            }
+            if (cause instanceof ParserConfigurationException pce) {
+                throw pce;
+            }
+            throw new IOException(cause);
+        }
+        JSONArray result = new JSONArray();
+        for (int i = 0; i < translated.length; i++) {
+            if (translated[i] != null) {
+                result.put(translated[i]);
             }
-            json.put("matches", array);
-            result.put(json);
         }
         return result;
     }
 
+    private synchronized ExecutorService getBatchExecutor() {
+        if (batchExecutor == null) {
+            batchExecutor = Executors.newFixedThreadPool(poolLimit, r -> {
+                Thread thread = new Thread(r, "batchTranslate-" + dbname);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return batchExecutor;
+    }
+
     @Override
     public void close() throws IOException, SQLException, URISyntaxException {
+        rebuildCancelled = true;
+        if (batchExecutor != null) {
+            // running workers are interrupted, queued ones must not keep callers waiting
+            Iterator<Runnable> it = batchExecutor.shutdownNow().iterator();
+            while (it.hasNext()) {
+                if (it.next() instanceof Future<?> future) {
+                    future.cancel(false);
+                }
+            }
+        }
+        snapshot = null;
         storeTUV.close();
         deleteTUV.close();
         searchTUV.close();
+        catalog.save(conn);
         conn.commit();
         conn.close();
 
@@ -315,15 +658,110 @@ public class SqliteDatabase implements ITmEngine {
 
         fuzzyIndex.commit();
         fuzzyIndex.close();
-        tuDb.commit();
-        tuDb.close();
+        if (tuDb != null) {
+            tuDb.commit();
+            tuDb.close();
+        }
     }
 
     @Override
     public void commit() throws SQLException, IOException, URISyntaxException {
+        if (bulkImporter != null) {
+            // the importer commits its own transactions
+            return;
+        }
+        catalog.save(conn);
         conn.commit();
         fuzzyIndex.commit();
-        tuDb.commit();
+        if (tuDb != null) {
+            tuDb.commit();
+        }
+        MemorySnapshot current = snapshot;
+        if (current != null) {
+            current.publish();
+        }
+        // searches run between a change and its commit still saw the old data
+        synchronized (pendingInvalidations) {
+            Iterator<String> it = pendingInvalidations.keySet().iterator();
+            while (it.hasNext()) {
+                String lang = it.next();
+                matchCache.invalidate(lang, pendingInvalidations.get(lang).toSortedArray());
+            }
+            pendingInvalidations.clear();
+            Iterator<String> tt = pendingTuids.iterator();
+            while (tt.hasNext()) {
+                matchCache.invalidate(tt.next());
+            }
+            pendingTuids.clear();
+        }
+    }
+
+    /**
+     * Loads all segments and their n-grams in memory and serves translation
+     * searches from there until the database is closed. Changes are still
+     * written to disk and reach the copy in memory when they are committed.
+     */
+    public void enableSnapshot() throws SQLException, IOException, URISyntaxException {
+        commit();
+        MemorySnapshot loaded = new MemorySnapshot();
+        Connection readConn = null;
+        try {
+            readConn = acquireReadConnection();
+            loaded.load(readConn);
+        } finally {
+            releaseReadConnection(readConn);
+        }
+        snapshot = loaded;
+        logger.log(Level.INFO, "Loaded snapshot of " + dbname + " in " + loaded.getStatistics().getLong("loadTime")
+                + " ms");
+    }
+
+    public boolean hasSnapshot() {
+        return snapshot != null;
+    }
+
+    private void reloadSnapshot() throws SQLException {
+        MemorySnapshot current = snapshot;
+        if (current == null) {
+            return;
+        }
+        Connection readConn = null;
+        try {
+            readConn = acquireReadConnection();
+            current.load(readConn);
+        } finally {
+            releaseReadConnection(readConn);
+        }
+    }
+
+    private void invalidateMatches(String lang, int[] ngrams) {
+        matchCache.invalidate(lang, ngrams);
+        synchronized (pendingInvalidations) {
+            IntSet pending = pendingInvalidations.computeIfAbsent(lang, k -> new IntSet(64));
+            for (int i = 0; i < ngrams.length; i++) {
+                pending.add(ngrams[i]);
+            }
+        }
+    }
+
+    private void invalidateMatches(String tuid) {
+        matchCache.invalidate(tuid);
+        synchronized (pendingInvalidations) {
+            pendingTuids.add(tuid);
+        }
+    }
+
+    @Override
+    public JSONObject getCacheStatistics() {
+        JSONObject result = matchCache.getStatistics();
+        synchronized (readConnectionPool) {
+            result.put("readConnections", poolSize);
+        }
+        MemorySnapshot current = snapshot;
+        if (current != null) {
+            result.put("snapshot", current.getStatistics());
+        }
+        return result;
     }
 
     @Override
@@ -343,30 +781,44 @@ public class SqliteDatabase implements ITmEngine {
             throws SQLException, SAXException, IOException, ParserConfigurationException {
         List<Element> result = new Vector<>();
         Vector<String> candidates = new Vector<>();
+        String pattern;
+        String operator;
+        String filter;
+        String prefilter = "";
         if (isRegexp) {
-            try (PreparedStatement stmt = readConn
-                    .prepareStatement("SELECT tuid, puretext FROM tuv WHERE lang=? AND puretext REGEXP ? LIMIT ?")) {
-                stmt.setString(1, srcLang);
-                stmt.setString(2, searchStr);
-                stmt.setInt(3, limit);
-                try (ResultSet rs = stmt.executeQuery()) {
-                    while (rs.next()) {
-                        candidates.add(rs.getString(1));
-                    }
-                }
-            }
+            pattern = searchStr;
+            operator = "REGEXP";
+            filter = TrigramFilter.forRegex(pattern);
+            prefilter = RegExpFunction.getPrefilter("puretext", pattern);
         } else {
-            String sql = caseSensitive ? "SELECT tuid, puretext FROM tuv WHERE lang=? AND puretext GLOB ? LIMIT ?"
-                    : "SELECT tuid, puretext FROM tuv WHERE lang=? AND puretext LIKE ? LIMIT ?";
             String escaped = searchStr.replace("%", "\\%").replace("_", "\\_");
-            try (PreparedStatement stmt = readConn.prepareStatement(sql)) {
-                stmt.setString(1, srcLang);
-                stmt.setString(2, caseSensitive ? "*" + escaped + "*" : "%" + escaped + "%");
-                stmt.setInt(3, limit);
-                try (ResultSet rs = stmt.executeQuery()) {
-                    while (rs.next()) {
-                        candidates.add(rs.getString(1));
-                    }
+            pattern = caseSensitive ? "*" + escaped + "*" : "%" + escaped + "%";
+            operator = caseSensitive ? "GLOB" : "LIKE";
+            filter = caseSensitive ? TrigramFilter.forGlob(pattern) : TrigramFilter.forLike(pattern);
+        }
+        if (!concordanceIndex) {
+            filter = null;
+        }
+        String sql = "SELECT tuid, puretext FROM tuv WHERE lang=?" + prefilter + " AND puretext " + operator
+                + " ? LIMIT ?";
+        if (filter != null) {
+            // the trigram index only narrows the rows to check and the pattern decides;
+            // rows come in the order of a scan of the lang and textlength index
+            sql = "SELECT tuid, puretext FROM tuv WHERE rowid IN (SELECT rowid FROM tuv_fts WHERE tuv_fts MATCH ?)"
+                    + " AND +lang=?" + prefilter + " AND puretext " + operator
+                    + " ? ORDER BY textlength, rowid LIMIT ?";
+        }
+        try (PreparedStatement stmt = readConn.prepareStatement(sql)) {
+            int index = 1;
+            if (filter != null) {
+                stmt.setString(index++, filter);
+            }
+            stmt.setString(index++, srcLang);
+            stmt.setString(index++, pattern);
+            stmt.setInt(index, limit);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    candidates.add(rs.getString(1));
                 }
             }
         }
@@ -385,91 +837,316 @@ public class SqliteDatabase implements ITmEngine {
         TmsServer.deleteFolder(databaseFolder);
     }
 
-    private void writeString(FileOutputStream output, String string) throws IOException {
-        output.write(string.getBytes(StandardCharsets.UTF_8));
-    }
-
-    private void writeHeader(FileOutputStream output, String srcLang) throws IOException {
-        writeString(output, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-        writeString(output,
+    static void writeHeader(Writer writer, String srcLang) throws IOException {
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        writer.write(
                 "<!DOCTYPE tmx PUBLIC \"-//LISA OSCAR:1998//DTD for Translation Memory eXchange//EN\" \"tmx14.dtd\" >\n");
-        writeString(output, "<tmx version=\"1.4\">\n");
-        writeString(output,
-                "<header creationtool=\"" + Constants.APPNAME + "\" creationtoolversion=\"" + Constants.VERSION
-                        + "\" srclang=\"" + srcLang + "\" "
-                        + " adminlang=\"en\" datatype=\"xml\" o-tmf=\"unknown\" segtype=\"block\" creationdate=\""
-                        + TMUtils.creationDate() + "\"/>\n");
+        writer.write("<tmx version=\"1.4\">\n");
+        writer.write("<header creationtool=\"" + Constants.APPNAME + "\" creationtoolversion=\"" + Constants.VERSION
+                + "\" srclang=\"" + srcLang + "\" "
+                + " adminlang=\"en\" datatype=\"xml\" o-tmf=\"unknown\" segtype=\"block\" creationdate=\""
+                + TMUtils.creationDate() + "\"/>\n");
     }
 
     @Override
     public void exportMemory(String tmxfile, Set<String> langs, String srcLang) throws IOException, SQLException {
-        try (FileOutputStream output = new FileOutputStream(tmxfile)) {
-            writeHeader(output, srcLang);
-            writeString(output, "<body>\n");
-            try (PreparedStatement stmt = conn.prepareStatement("SELECT lang, seg FROM tuv WHERE tuid=?")) {
-                try (Statement tus = conn.createStatement()) {
-                    try (ResultSet tuKeys = tus.executeQuery("SELECT DISTINCT tuid FROM tuv")) {
-                        while (tuKeys.next()) {
-                            String tuid = tuKeys.getString(1);
-                            Element tu = tuDb.getTu(tuid);
-                            stmt.setString(1, tuid);
-                            int count = 0;
-                            try (ResultSet rs = stmt.executeQuery()) {
-                                while (rs.next()) {
-                                    String lang = rs.getString(1);
-                                    String seg = rs.getString(2);
-                                    if (seg.equals("<seg></seg>") || !langs.contains(lang)) {
-                                        continue;
-                                    }
-                                    try {
-                                        Element tuv = TMUtils.buildTuv(lang, seg);
-                                        tu.addContent(tuv);
-                                        count++;
-                                    } catch (Exception e) {
-                                        logger.log(Level.ERROR, Messages.getString("SqliteDatabase.3"), e);
-                                        logger.log(Level.INFO, "seg: " + seg);
-                                    }
-                                }
+        // leave half of the read connections for searches
+        exportMemory(tmxfile, langs, srcLang, Math.max(1, poolLimit / 2));
+    }
+
+    /**
+     * Exports the TUs that have at least two of the given languages. Segments are
+     * read with a single cursor ordered by tuid and written as they come, without
+     * building XML elements. With more than one thread, ranges of tuids are
+     * exported to temporary files in parallel and then concatenated.
+     */
+    public void exportMemory(String tmxfile, Set<String> langs, String srcLang, int threads)
+            throws IOException, SQLException {
+        try {
+            // the readers must see everything stored so far
+            commit();
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        List<String> langList = new Vector<>(langs);
+        List<String> bounds = new Vector<>();
+        bounds.add(null);
+        if (threads > 1) {
+            bounds.addAll(getExportBounds(threads));
+        }
+        bounds.add(null);
+        try (FileOutputStream output = new FileOutputStream(tmxfile);
+                Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), 1 << 16)) {
+            writeHeader(writer, srcLang);
+            writer.write("<body>\n");
+            if (bounds.size() == 2) {
+                exportRange(writer, langList, null, null);
+            } else {
+                List<File> parts = new Vector<>();
+                List<Future<Void>> futures = new Vector<>();
+                try {
+                    for (int i = 0; i < bounds.size() - 1; i++) {
+                        File part = Files.createTempFile(databaseFolder.toPath(), "export", ".tmp").toFile();
+                        parts.add(part);
+                        String from = bounds.get(i);
+                        String to = bounds.get(i + 1);
+                        futures.add(getBatchExecutor().submit(() -> {
+                            try (Writer partWriter = new BufferedWriter(new OutputStreamWriter(
+                                    new FileOutputStream(part), StandardCharsets.UTF_8), 1 << 16)) {
+                                exportRange(partWriter, langList, from, to);
                             }
-                            if (count >= 2) {
-                                Indenter.indent(tu, 2);
-                                writeString(output, tu.toString() + "\n");
+                            return null;
+                        }));
+                    }
+                    for (int i = 0; i < futures.size(); i++) {
+                        futures.get(i).get();
+                    }
+                    writer.flush();
+                    for (int i = 0; i < parts.size(); i++) {
+                        Files.copy(parts.get(i).toPath(), output);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException ioe) {
+                        throw ioe;
+                    }
+                    if (cause instanceof SQLException sqle) {
+                        throw sqle;
+                    }
+                    throw new IOException(cause);
+                } finally {
+                    for (int i = 0; i < futures.size(); i++) {
+                        futures.get(i).cancel(true);
+                    }
+                    for (int i = 0; i < parts.size(); i++) {
+                        Files.deleteIfExists(parts.get(i).toPath());
+                    }
+                }
+            }
+            writer.write("</body>\n");
+            writer.write("</tmx>\n");
+        }
+    }
+
+    /**
+     * Writes the TUs of an export without the TMX header and body tags.
+     */
+    void exportTus(Writer writer, Set<String> langs) throws IOException, SQLException {
+        try {
+            commit();
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        exportRange(writer, new Vector<>(langs), null, null);
+    }
+
+    /**
+     * Adds every stored TU, with all its languages, to a memory pack.
+     */
+    public void exportPack(PackWriter pack) throws IOException, SQLException {
+        try {
+            commit();
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        Connection readConn = null;
+        try {
+            readConn = acquireReadConnection();
+            try (Statement stmt = readConn.createStatement()) {
+                String current = null;
+                List<String[]> tuvs = new Vector<>();
+                try (ResultSet rs = stmt.executeQuery("SELECT tuid, lang, puretext, seg FROM tuv ORDER BY tuid, lang")) {
+                    while (rs.next()) {
+                        String tuid = rs.getString(1);
+                        if (!tuid.equals(current)) {
+                            if (current != null) {
+                                pack.add(current, getTuDb().getTu(current), tuvs);
                             }
+                            current = tuid;
+                            tuvs.clear();
                         }
+                        tuvs.add(new String[] { rs.getString(2), rs.getString(3), rs.getString(4) });
                     }
                 }
-                writeString(output, "</body>\n");
-                writeString(output, "</tmx>\n");
+                if (current != null) {
+                    pack.add(current, getTuDb().getTu(current), tuvs);
+                }
             }
+        } finally {
+            releaseReadConnection(readConn);
         }
     }
 
+    /**
+     * Splits the stored tuids in ranges of similar size. Returns the first tuid of
+     * every range except the first one.
+     */
+    private List<String> getExportBounds(int ranges) throws SQLException {
+        List<String> result = new Vector<>();
+        Connection readConn = null;
+        try {
+            readConn = acquireReadConnection();
+            int total = 0;
+            try (Statement stmt = readConn.createStatement()) {
+                try (ResultSet rs = stmt.executeQuery("SELECT COUNT(DISTINCT tuid) FROM tuv")) {
+                    while (rs.next()) {
+                        total = rs.getInt(1);
+                    }
+                }
+                int size = total / ranges;
+                if (size == 0) {
+                    return result;
+                }
+                try (ResultSet rs = stmt.executeQuery("SELECT DISTINCT tuid FROM tuv ORDER BY tuid")) {
+                    int count = 0;
+                    while (rs.next()) {
+                        if (count > 0 && count % size == 0 && result.size() < ranges - 1) {
+                            result.add(rs.getString(1));
+                        }
+                        count++;
+                    }
+                }
+            }
+        } finally {
+            releaseReadConnection(readConn);
+        }
+        return result;
+    }
+
+    /**
+     * Writes the TUs whose tuid is in [from, to). Null bounds are open.
+     */
+    private void exportRange(Writer writer, List<String> langs, String from, String to)
+            throws IOException, SQLException {
+        if (langs.isEmpty()) {
+            return;
+        }
+        StringBuilder sql = new StringBuilder("SELECT tuid, lang, seg FROM tuv WHERE lang IN (");
+        sql.append(placeholders(langs.size()));
+        sql.append(')');
+        if (from != null) {
+            sql.append(" AND tuid >= ?");
+        }
+        if (to != null) {
+            sql.append(" AND tuid < ?");
+        }
+        sql.append(" ORDER BY tuid, lang");
+        Connection readConn = null;
+        try {
+            readConn = acquireReadConnection();
+            try (PreparedStatement stmt = readConn.prepareStatement(sql.toString())) {
+                int idx = 1;
+                for (int i = 0; i < langs.size(); i++) {
+                    stmt.setString(idx++, langs.get(i));
+                }
+                if (from != null) {
+                    stmt.setString(idx++, from);
+                }
+                if (to != null) {
+                    stmt.setString(idx, to);
+                }
+                String current = null;
+                List<String[]> tuvs = new Vector<>();
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        String tuid = rs.getString(1);
+                        if (!tuid.equals(current)) {
+                            writeTu(writer, current, tuvs);
+                            current = tuid;
+                            tuvs.clear();
+                        }
+                        String seg = rs.getString(3);
+                        if (!seg.equals("<seg></seg>")) {
+                            tuvs.add(new String[] { rs.getString(2), seg });
+                        }
+                    }
+                }
+                writeTu(writer, current, tuvs);
+            }
+        } finally {
+            releaseReadConnection(readConn);
+        }
+    }
+
+    private void writeTu(Writer writer, String tuid, List<String[]> tuvs) throws IOException {
+        if (tuvs.size() < 2) {
+            return;
+        }
+        writeTu(writer, getTuDb().getTu(tuid), tuvs, logger);
+    }
+
+    /**
+     * Writes a TU with the given {@code lang, seg} pairs as its tuvs, unless
+     * fewer than two of them are valid.
+     */
+    static void writeTu(Writer writer, Element tu, List<String[]> tuvs, Logger logger) throws IOException {
+        List<String[]> valid = new Vector<>();
+        for (int i = 0; i < tuvs.size(); i++) {
+            String lang = tuvs.get(i)[0];
+            String seg = tuvs.get(i)[1];
+            if (seg.indexOf(" x=") != -1 || seg.indexOf(" i=") != -1) {
+                // non numeric x and i attributes are fixed by buildTuv
+                try {
+                    seg = TMUtils.buildTuv(lang, seg).getChild("seg").toString();
+                } catch (SAXException | ParserConfigurationException e) {
+                    logger.log(Level.ERROR, Messages.getString("SqliteDatabase.3"), e);
+                    logger.log(Level.INFO, "seg: " + seg);
+                    continue;
+                }
+            }
+            valid.add(new String[] { lang, seg });
+        }
+        if (valid.size() < 2) {
+            return;
+        }
+        writer.write(tu.getHead());
+        writer.write('\n');
+        List<Element> children = tu.getChildren();
+        Iterator<Element> it = children.iterator();
+        while (it.hasNext()) {
+            writer.write("  ");
+            writer.write(it.next().toString());
+            writer.write('\n');
+        }
+        for (int i = 0; i < valid.size(); i++) {
+            writer.write("  <tuv xml:lang=\"");
+            writer.write(valid.get(i)[0]);
+            writer.write("\">\n    ");
+            writer.write(valid.get(i)[1]);
+            writer.write("\n  </tuv>\n");
+        }
+        writer.write(tu.getTail());
+        writer.write('\n');
+    }
+
     @Override
     public Set<String> getAllClients() throws SQLException, IOException, URISyntaxException {
-        return tuDb.getCustomers();
+        return catalog.getValues(Catalog.CUSTOMER);
     }
 
     @Override
     public Set<String> getAllLanguages() throws SQLException, IOException, URISyntaxException {
-        Set<String> result = Collections.synchronizedSortedSet(new TreeSet<>());
-        try (Statement stmt = conn.createStatement()) {
-            try (ResultSet rs = stmt.executeQuery("SELECT DISTINCT lang FROM tuv")) {
-                while (rs.next()) {
-                    result.add(rs.getString(1));
-                }
-            }
-        }
-        return result;
+        return catalog.getValues(Catalog.LANGUAGE);
+    }
+
+    /**
+     * Number of TUs with a segment in each language.
+     */
+    public Map<String, Integer> getLanguageCounts() {
+        return catalog.getCounts(Catalog.LANGUAGE);
     }
 
     @Override
     public Set<String> getAllProjects() throws SQLException, IOException, URISyntaxException {
-        return tuDb.getProjects();
+        return catalog.getValues(Catalog.PROJECT);
     }
 
     @Override
     public Set<String> getAllSubjects() throws SQLException, IOException, URISyntaxException {
-        return tuDb.getSubjects();
+        return catalog.getValues(Catalog.SUBJECT);
     }
 
     @Override
@@ -485,7 +1162,7 @@ public class SqliteDatabase implements ITmEngine {
 
     private Element getTu(String tuid, Connection connection)
             throws IOException, SAXException, ParserConfigurationException, SQLException {
-        Element tu = tuDb.getTu(tuid);
+        Element tu = getTuDb().getTu(tuid);
         try (PreparedStatement stmt = connection.prepareStatement("SELECT lang, seg FROM tuv WHERE tuid=?")) {
             stmt.setString(1, tuid);
             try (ResultSet rs = stmt.executeQuery()) {
@@ -503,6 +1180,7 @@ public class SqliteDatabase implements ITmEngine {
         return tu;
     }
 
+
     @Override
     public String getType() {
         return SqliteDatabase.class.getName();
@@ -517,9 +1195,17 @@ public class SqliteDatabase implements ITmEngine {
         while (it.hasNext()) {
             Element tuv = it.next();
             String lang = LanguageUtils.normalizeCode(tuv.getAttributeValue("xml:lang"));
-            delete(tuid, lang);
+            String puretext = getPureText(tuid, lang);
+            if (puretext != null) {
+                delete(tuid, lang);
+                int[] ngrams = NGrams.getNGrams(puretext);
+                fuzzyIndex.remove(lang, tuid, ngrams);
+                invalidateMatches(lang, ngrams);
+            }
         }
-        tuDb.remove(tuid);
+        catalog.replace(tu, null);
+        getTuDb().remove(tuid);
+        invalidateMatches(tuid);
         commit();
     }
 
@@ -527,6 +1213,11 @@ public class SqliteDatabase implements ITmEngine {
         deleteTUV.setString(1, tuid);
         deleteTUV.setString(2, lang);
         deleteTUV.execute();
+        catalog.add(Catalog.LANGUAGE, lang, -1);
+        MemorySnapshot current = snapshot;
+        if (current != null) {
+            current.remove(lang, tuid);
+        }
     }
 
     @Override
@@ -557,69 +1248,88 @@ public class SqliteDatabase implements ITmEngine {
         int minLength = searchStr.length() * similarity / 100;
         int maxLength = searchStr.length() * (200 - similarity) / 100;
 
-        Map<String, Integer> candidates = new Hashtable<>();
-        try (PreparedStatement stmt = readConn.prepareStatement(
-                "SELECT puretext FROM tuv WHERE lang=? AND tuid=? AND textlength>=? AND textlength<=?")) {
-            stmt.setString(1, srcLang);
-            stmt.setInt(3, minLength);
-            stmt.setInt(4, maxLength);
-
-            NavigableSet<Fun.Tuple2<Integer, String>> index = fuzzyIndex.getIndex(srcLang);
-            for (int i = 0; i < ngrams.length; i++) {
-                Iterable<String> keys = Fun.filter(index, ngrams[i]);
-                Iterator<String> it = keys.iterator();
-                while (it.hasNext()) {
-                    String tuid = it.next();
-                    if (candidates.containsKey(tuid)) {
-                        int count = candidates.get(tuid);
-                        candidates.put(tuid, count + 1);
-                    } else {
-                        candidates.put(tuid, 1);
-                    }
-                }
-            }
-            Set<String> tuids = candidates.keySet();
-            Iterator<String> it = tuids.iterator();
-            while (it.hasNext()) {
-                String tuid = it.next();
-                int count = candidates.get(tuid);
-                if (count >= min && count <= max) {
-                    stmt.setString(2, tuid);
-                    try (ResultSet rs = stmt.executeQuery()) {
-                        while (rs.next()) {
-                            String pure = rs.getString(1);
-                            int distance;
-                            if (caseSensitive) {
-                                distance = MatchQuality.similarity(searchStr, pure);
-                            } else {
-                                distance = MatchQuality.similarity(searchStr.toLowerCase(), pure.toLowerCase());
-                            }
-                            if (distance >= similarity) {
-                                Element tu = getTu(tuid, readConn);
-                                result.add(tu);
-                            }
-                        }
-                    }
+        String search = caseSensitive ? searchStr : searchStr.toLowerCase();
+        List<Candidate> candidates = fuzzyIndex.getCandidates(srcLang, ngrams, min, max, maxLength);
+        List<String> tuids = new Vector<>();
+        Iterator<Candidate> it = candidates.iterator();
+        while (it.hasNext()) {
+            tuids.add(it.next().getTuid());
+        }
+        List<String> selected = new Vector<>();
+        Map<String, String[]> sources = getSources(readConn, srcLang, tuids, minLength, maxLength);
+        Iterator<String> st = tuids.iterator();
+        while (st.hasNext()) {
+            String tuid = st.next();
+            String[] source = sources.get(tuid);
+            if (source != null) {
+                String pure = source[0];
+                int distance = MatchQuality.similarity(search, caseSensitive ? pure : pure.toLowerCase());
+                if (distance >= similarity) {
+                    selected.add(tuid);
                 }
             }
         }
+        Map<String, Element> tus = getTus(readConn, selected);
+        Iterator<String> tt = selected.iterator();
+        while (tt.hasNext()) {
+            result.add(tus.get(tt.next()));
+        }
         return result;
     }
 
+    /**
+     * Sets the number of matches returned by
+     * {@link #searchTranslation(String, String, String, int, boolean)}, taken
+     * from the "maxMatches" preference by default. Zero or less returns all
+     * matches.
+     */
+    public void setMaxMatches(int maxMatches) {
+        this.maxMatches = maxMatches;
+    }
+
     @Override
     public List<Match> searchTranslation(String searchStr, String srcLang, String tgtLang, int similarity,
             boolean caseSensitive) throws SAXException, IOException, ParserConfigurationException, SQLException {
+        return searchTranslation(searchStr, srcLang, tgtLang, similarity, caseSensitive, maxMatches);
+    }
+
+    /**
+     * Returns the best {@code limit} matches, or all matches when {@code limit}
+     * is zero or negative.
+     */
+    public List<Match> searchTranslation(String searchStr, String srcLang, String tgtLang, int similarity,
+            boolean caseSensitive, int limit)
+            throws SAXException, IOException, ParserConfigurationException, SQLException {
+        List<Match> cached = matchCache.get(searchStr, srcLang, tgtLang, similarity, caseSensitive, limit);
+        if (cached != null) {
+            return cached;
+        }
+        long generation = matchCache.getGeneration();
+        MemorySnapshot current = snapshot;
+        if (current != null) {
+            List<Match> result = searchTranslation(current, null, searchStr, srcLang, tgtLang, similarity,
+                    caseSensitive, limit);
+            matchCache.put(generation, searchStr, srcLang, tgtLang, similarity, caseSensitive, limit, result);
+            return result;
+        }
         Connection readConn = null;
         try {
             readConn = acquireReadConnection();
-            return searchTranslationWithConnection(readConn, searchStr, srcLang, tgtLang, similarity, caseSensitive);
+            List<Match> result = searchTranslation(null, readConn, searchStr, srcLang, tgtLang, similarity,
+                    caseSensitive, limit);
+            matchCache.put(generation, searchStr, srcLang, tgtLang, similarity, caseSensitive, limit, result);
+            return result;
         } finally {
             releaseReadConnection(readConn);
         }
     }
 
-    private List<Match> searchTranslationWithConnection(Connection readConn, String searchStr, String srcLang,
-            String tgtLang, int similarity, boolean caseSensitive)
+    /**
+     * Searches the snapshot when {@code memory} is not null, or the database
+     * through {@code readConn} otherwise.
+     */
+    private List<Match> searchTranslation(MemorySnapshot memory, Connection readConn, String searchStr,
+            String srcLang, String tgtLang, int similarity, boolean caseSensitive, int limit)
             throws SAXException, IOException, ParserConfigurationException, SQLException {
         // search for TUs with a given source and target language
         List<Match> result = new Vector<>();
@@ -636,86 +1346,284 @@ public class SqliteDatabase implements ITmEngine {
         int minLength = searchStr.length() * similarity / 100;
         int maxLength = searchStr.length() * (200 - similarity) / 100;
 
-        Hashtable<String, Integer> candidates = new Hashtable<>();
-        try (PreparedStatement stmt = readConn.prepareStatement(
-                "SELECT puretext, seg, textlength FROM tuv WHERE lang=? AND tuid=? AND textlength>=? AND textlength<=?")) {
+        if (memory == null) {
+            List<Match> exact = searchExact(readConn, searchStr, srcLang, tgtLang, similarity, caseSensitive, limit,
+                    minLength, maxLength);
+            if (exact != null) {
+                return exact;
+            }
+        }
+
+        String search = caseSensitive ? searchStr : searchStr.toLowerCase();
+        int searchLength = search.trim().length();
+
+        // best candidates first: highest possible score, then most shared n-grams
+        List<Candidate> candidates = memory != null ? memory.getCandidates(srcLang, ngrams, min, max, maxLength)
+                : fuzzyIndex.getCandidates(srcLang, ngrams, min, max, maxLength);
+        List<Candidate> ranked = new Vector<>();
+        Map<Candidate, Integer> bounds = new HashMap<>();
+        Iterator<Candidate> ct = candidates.iterator();
+        while (ct.hasNext()) {
+            Candidate candidate = ct.next();
+            int bound = upperBound(searchLength, candidate.getLength());
+            if (bound >= similarity) {
+                bounds.put(candidate, bound);
+                ranked.add(candidate);
+            }
+        }
+        ranked.sort((a, b) -> {
+            int diff = bounds.get(b) - bounds.get(a);
+            return diff != 0 ? diff : b.getHits() - a.getHits();
+        });
+
+        // worst match at the head, so it can be dropped when a better one shows up
+        PriorityQueue<Match> best = new PriorityQueue<>(Collections.reverseOrder());
+        int next = 0;
+        boolean done = false;
+        while (!done && next < ranked.size()) {
+            List<String> chunk = new Vector<>();
+            while (next < ranked.size() && chunk.size() < SEARCH_CHUNK) {
+                Candidate candidate = ranked.get(next);
+                if (limit > 0 && best.size() == limit && bounds.get(candidate) < best.peek().getSimilarity()) {
+                    // no remaining candidate can beat the current top matches
+                    done = true;
+                    break;
+                }
+                chunk.add(candidate.getTuid());
+                next++;
+            }
+            Map<String, String[]> sources = memory != null
+                    ? memory.getSegments(srcLang, chunk, minLength, maxLength)
+                    : getSources(readConn, srcLang, chunk, minLength, maxLength);
+            Map<String, Integer> scores = new HashMap<>();
+            Iterator<String> it = chunk.iterator();
+            while (it.hasNext()) {
+                String tuid = it.next();
+                String[] source = sources.get(tuid);
+                if (source != null) {
+                    String pure = source[0];
+                    int distance = MatchQuality.similarity(search, caseSensitive ? pure : pure.toLowerCase());
+                    if (distance >= similarity) {
+                        scores.put(tuid, distance);
+                    }
+                }
+            }
+            if (scores.isEmpty()) {
+                continue;
+            }
+            Map<String, String[]> targets = memory != null
+                    ? memory.getSegments(tgtLang, scores.keySet(), 0, Integer.MAX_VALUE)
+                    : getSources(readConn, tgtLang, scores.keySet(), 0, Integer.MAX_VALUE);
+            it = chunk.iterator();
+            while (it.hasNext()) {
+                String tuid = it.next();
+                if (!scores.containsKey(tuid) || !targets.containsKey(tuid)) {
+                    continue;
+                }
+                best.add(buildMatch(tuid, srcLang, sources.get(tuid)[1], tgtLang, targets.get(tuid)[1],
+                        scores.get(tuid)));
+                if (limit > 0 && best.size() > limit) {
+                    best.poll();
+                }
+            }
+        }
+        result.addAll(best);
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Looks up the segments whose text equals the search text, ignoring leading
+     * and trailing white space, through the hash index. Returns null when fuzzy
+     * matches could be among the best {@code limit} ones.
+     */
+    private List<Match> searchExact(Connection readConn, String searchStr, String srcLang, String tgtLang,
+            int similarity, boolean caseSensitive, int limit, int minLength, int maxLength)
+            throws SAXException, IOException, ParserConfigurationException, SQLException {
+        if (similarity < 100 && limit <= 0) {
+            return null;
+        }
+        if (!caseSensitive && !hasRootCasing()) {
+            return null;
+        }
+        String search = (caseSensitive ? searchStr : searchStr.toLowerCase()).trim();
+        Map<String, String> sources = new HashMap<>();
+        List<String> tuids = new Vector<>();
+        // the unary plus keeps the planner from preferring the textlength index
+        String sql = "SELECT tuid, puretext, seg FROM tuv WHERE lang=? AND " + (caseSensitive ? "texthash" : "lowerhash")
+                + "=? AND +textlength>=? AND +textlength<=?";
+        try (PreparedStatement stmt = readConn.prepareStatement(sql)) {
             stmt.setString(1, srcLang);
+            stmt.setLong(2, textHash(searchStr, caseSensitive));
             stmt.setInt(3, minLength);
             stmt.setInt(4, maxLength);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    String pure = rs.getString(2);
+                    if (search.equals((caseSensitive ? pure : pure.toLowerCase()).trim())) {
+                        tuids.add(rs.getString(1));
+                        sources.put(rs.getString(1), rs.getString(3));
+                    }
+                }
+            }
+        }
+        if (similarity < 100 && tuids.size() < limit) {
+            return null;
+        }
+        Map<String, String[]> targets = getSources(readConn, tgtLang, tuids, 0, Integer.MAX_VALUE);
+        if (similarity < 100 && targets.size() < limit) {
+            return null;
+        }
+        PriorityQueue<Match> best = new PriorityQueue<>(Collections.reverseOrder());
+        Iterator<String> it = tuids.iterator();
+        while (it.hasNext()) {
+            String tuid = it.next();
+            if (targets.containsKey(tuid)) {
+                best.add(buildMatch(tuid, srcLang, sources.get(tuid), tgtLang, targets.get(tuid)[1], 100));
+                if (limit > 0 && best.size() > limit) {
+                    best.poll();
+                }
+            }
+        }
+        List<Match> result = new Vector<>(best);
+        Collections.sort(result);
+        return result;
+    }
 
-            try (PreparedStatement stmt2 = readConn
-                    .prepareStatement("SELECT lang, seg FROM tuv WHERE tuid=? AND lang=?")) {
-                stmt2.setString(2, tgtLang);
-
-                NavigableSet<Fun.Tuple2<Integer, String>> index = fuzzyIndex.getIndex(srcLang);
-                for (int i = 0; i < ngrams.length; i++) {
-                    Iterable<String> keys = Fun.filter(index, ngrams[i]);
-                    Iterator<String> it = keys.iterator();
-                    while (it.hasNext()) {
-                        String tuid = it.next();
-                        if (candidates.containsKey(tuid)) {
-                            int count = candidates.get(tuid);
-                            candidates.put(tuid, count + 1);
-                        } else {
-                            candidates.put(tuid, 1);
-                        }
+    // lowercasing follows the default locale and the case folded hashes use the root one
+    private static boolean hasRootCasing() {
+        String language = Locale.getDefault().getLanguage();
+        return !"tr".equals(language) && !"az".equals(language) && !"lt".equals(language);
+    }
+
+    private Match buildMatch(String tuid, String srcLang, String sourceSeg, String tgtLang, String targetSeg,
+            int similarity) throws SAXException, IOException, ParserConfigurationException {
+        Element source = TMUtils.buildTuv(srcLang, sourceSeg);
+        Element target = TMUtils.buildTuv(tgtLang, targetSeg);
+        Map<String, String> propsMap = new Hashtable<>();
+        Element tu = getTuDb().getTu(tuid);
+        List<Element> props = tu.getChildren("prop");
+        Iterator<Element> pt = props.iterator();
+        while (pt.hasNext()) {
+            Element prop = pt.next();
+            propsMap.put(prop.getAttributeValue("type"), prop.getText());
+        }
+        return new Match(tuid, source, target, similarity, dbname, propsMap);
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('?');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Loads puretext and seg of the given TUs in one language, using as few
+     * queries as the IN list limit allows.
+     */
+    private static Map<String, String[]> getSources(Connection connection, String lang, Collection<String> tuids,
+            int minLength, int maxLength) throws SQLException {
+        Map<String, String[]> result = new HashMap<>();
+        List<String> list = new Vector<>(tuids);
+        for (int from = 0; from < list.size(); from += FETCH_CHUNK) {
+            List<String> chunk = list.subList(from, Math.min(from + FETCH_CHUNK, list.size()));
+            // look rows up by primary key, not by scanning a range of the textlength index
+            String sql = "SELECT tuid, puretext, seg FROM tuv WHERE lang=? AND +textlength>=? AND +textlength<=? AND tuid IN ("
+                    + placeholders(chunk.size()) + ")";
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.setString(1, lang);
+                stmt.setInt(2, minLength);
+                stmt.setInt(3, maxLength);
+                for (int i = 0; i < chunk.size(); i++) {
+                    stmt.setString(i + 4, chunk.get(i));
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        result.put(rs.getString(1), new String[] { rs.getString(2), rs.getString(3) });
                     }
                 }
-                Enumeration<String> tuids = candidates.keys();
-                while (tuids.hasMoreElements()) {
-                    String tuid = tuids.nextElement();
-                    int count = candidates.get(tuid);
-                    if (count >= min && count <= max) {
-                        stmt.setString(2, tuid);
-                        stmt2.setString(1, tuid);
-                        try (ResultSet rs = stmt.executeQuery()) {
-                            while (rs.next()) {
-                                String pure = rs.getString(1);
-                                String srcSeg = rs.getString(2);
-                                int distance;
-                                if (caseSensitive) {
-                                    distance = MatchQuality.similarity(searchStr, pure);
-                                } else {
-                                    distance = MatchQuality.similarity(searchStr.toLowerCase(), pure.toLowerCase());
-                                }
-                                if (distance >= similarity) {
-                                    boolean tgtFound = false;
-                                    Element target = null;
-                                    try (ResultSet rs2 = stmt2.executeQuery()) {
-                                        while (rs2.next()) {
-                                            String lang = rs2.getString(1);
-                                            String seg = rs2.getString(2);
-                                            target = TMUtils.buildTuv(lang, seg);
-                                            tgtFound = true;
-                                        }
-                                    }
-                                    if (tgtFound) {
-                                        Element source = TMUtils.buildTuv(srcLang, srcSeg);
-                                        Map<String, String> propsMap = new Hashtable<>();
-                                        Element tu = getTu(tuid, readConn);
-                                        List<Element> props = tu.getChildren("prop");
-                                        Iterator<Element> pt = props.iterator();
-                                        while (pt.hasNext()) {
-                                            Element prop = pt.next();
-                                            propsMap.put(prop.getAttributeValue("type"), prop.getText());
-                                        }
-                                        Match match = new Match(tuid, source, target, distance, dbname, propsMap);
-                                        result.add(match);
-                                    }
-                                }
-                            }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Builds complete TUs, with all their languages, for the given ids.
+     */
+    private Map<String, Element> getTus(Connection connection, List<String> tuids)
+            throws SQLException, SAXException, IOException, ParserConfigurationException {
+        Map<String, Element> result = new HashMap<>();
+        for (int i = 0; i < tuids.size(); i++) {
+            result.put(tuids.get(i), getTuDb().getTu(tuids.get(i)));
+        }
+        for (int from = 0; from < tuids.size(); from += FETCH_CHUNK) {
+            List<String> chunk = tuids.subList(from, Math.min(from + FETCH_CHUNK, tuids.size()));
+            String sql = "SELECT tuid, lang, seg FROM tuv WHERE tuid IN (" + placeholders(chunk.size()) + ")";
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    stmt.setString(i + 1, chunk.get(i));
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        String seg = rs.getString(3);
+                        if (seg.equals("<seg></seg>")) {
+                            continue;
                         }
+                        result.get(rs.getString(1)).addContent(TMUtils.buildTuv(rs.getString(2), seg));
                     }
                 }
             }
         }
-        Collections.sort(result);
         return result;
     }
 
+    /**
+     * Highest score {@link MatchQuality#similarity(String, String)} can give for
+     * two trimmed texts of the given lengths: no more characters than those of
+     * the shorter text can be matched. Unknown lengths are not bounded.
+     */
+    static int upperBound(int searchLength, int candidateLength) {
+        if (candidateLength < 0) {
+            return 100;
+        }
+        int longest = Math.max(searchLength, candidateLength);
+        if (longest == 0) {
+            return 0;
+        }
+        return 100 * Math.min(searchLength, candidateLength) / longest;
+    }
+
     @Override
     public int storeTMX(String tmxFile, String project, String customer, String subject)
             throws SAXException, IOException, ParserConfigurationException, SQLException, URISyntaxException {
+        return storeTMX(tmxFile, project, customer, subject, false);
+    }
+
+    /**
+     * Imports a TMX file. In bulk mode TUs are stored by background threads in
+     * large transactions. When the memory is empty the fuzzy index of the
+     * imported languages is built once at the end; otherwise it is updated as
+     * the rows are stored, so that a small import does not rescan the whole
+     * memory. If the import fails, the TUs stored up to that point are kept.
+     */
+    public int storeTMX(String tmxFile, String project, String customer, String subject, boolean bulk)
+            throws SAXException, IOException, ParserConfigurationException, SQLException, URISyntaxException {
+        return storeTMX(tmxFile, project, customer, subject, bulk, poolLimit);
+    }
+
+    /**
+     * Same as {@link #storeTMX(String, String, String, String, boolean)}, with
+     * {@code threads} threads preparing the TUs of a bulk import instead of one
+     * per read connection.
+     */
+    public int storeTMX(String tmxFile, String project, String customer, String subject, boolean bulk,
+            int threads) throws SAXException, IOException, ParserConfigurationException, SQLException,
+            URISyntaxException {
         next = System.currentTimeMillis();
         if (customer == null) {
             customer = "";
@@ -731,23 +1639,154 @@ public class SqliteDatabase implements ITmEngine {
         currCustomer = customer;
 
         reader = new TMXReader(this);
-        reader.parse(new File(tmxFile).toURI().toURL());
-        int imported = reader.getCount();
+        if (!bulk) {
+            reader.parse(new File(tmxFile).toURI().toURL());
+            int imported = reader.getCount();
+            commit();
+            reader = null;
+            return imported;
+        }
         commit();
+        boolean rebuild = catalog.getCounts(Catalog.LANGUAGE).isEmpty();
+        BulkImporter importer = new BulkImporter(this, conn, getTuDb(), catalog, rebuild ? null : fuzzyIndex,
+                creationId, Math.max(1, threads));
+        importer.start();
+        bulkImporter = importer;
+        boolean finished = false;
+        try {
+            reader.parse(new File(tmxFile).toURI().toURL());
+            importer.finish();
+            finished = true;
+        } finally {
+            bulkImporter = null;
+            if (!finished) {
+                importer.abort();
+            }
+            // the importer does not track the n-grams it changes
+            matchCache.clear();
+            recountLanguages(importer.getLanguages());
+            if (rebuild) {
+                // TUs already stored must be indexed even if the import failed
+                Iterator<String> it = importer.getLanguages().iterator();
+                while (it.hasNext()) {
+                    rebuildIndex(it.next());
+                }
+            }
+            reloadSnapshot();
+        }
+        int imported = reader.getCount();
         reader = null;
         return imported;
     }
 
+    /**
+     * Counts again the segments of languages changed without tracking
+     * replacements, and commits the catalog.
+     */
+    private void recountLanguages(Set<String> langs) throws SQLException, IOException, URISyntaxException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM tuv WHERE lang=?")) {
+            Iterator<String> it = langs.iterator();
+            while (it.hasNext()) {
+                String lang = it.next();
+                stmt.setString(1, lang);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    rs.next();
+                    catalog.set(Catalog.LANGUAGE, lang, rs.getInt(1));
+                }
+            }
+        }
+        commit();
+    }
+
     @Override
     public void storeTu(Element tu) throws IOException, SQLException, URISyntaxException {
-        Set<String> tuLangs = Collections.synchronizedSortedSet(new TreeSet<>());
-        List<Element> tuvs = tu.getChildren("tuv");
         String tuid = tu.getAttributeValue("tuid");
         if (tuid.isEmpty()) {
             tuid = nextId();
             tu.setAttribute("tuid", tuid);
         }
-        Element oldTu = tuDb.getTu(tuid);
+        BulkImporter importer = bulkImporter;
+        if (importer != null) {
+            importer.add(tu);
+            return;
+        }
+        Set<String> tuLangs = Collections.synchronizedSortedSet(new TreeSet<>());
+        List<Element> tuvs = tu.getChildren("tuv");
+        Element oldTu = getTuDb().getTu(tuid);
+        prepareTu(tu, oldTu);
+
+        storeTUV.setString(1, tuid);
+
+        Iterator<Element> it = tuvs.iterator();
+        while (it.hasNext()) {
+            Element tuv = it.next();
+            String lang = LanguageUtils.normalizeCode(tuv.getAttributeValue("xml:lang"));
+            if (lang != null && !tuLangs.contains(lang)) {
+                String oldText = getPureText(tuid, lang);
+                if (oldText != null) {
+                    delete(tuid, lang);
+                    int[] ngrams = NGrams.getNGrams(oldText);
+                    fuzzyIndex.remove(lang, tuid, ngrams);
+                    invalidateMatches(lang, ngrams);
+                    tu.setAttribute("changedate", TMUtils.creationDate());
+                    tu.setAttribute("changeid", creationId);
+                }
+                Element seg = tuv.getChild("seg");
+                String puretext = TMUtils.extractText(seg);
+                if (puretext.isEmpty()) {
+                    continue;
+                }
+                storeTUV.setString(2, lang);
+                storeTUV.setString(3, seg.toString());
+                storeTUV.setString(4, puretext);
+                storeTUV.setInt(5, puretext.length());
+                storeTUV.setLong(6, textHash(puretext, true));
+                storeTUV.setLong(7, textHash(puretext, false));
+                storeTUV.execute();
+                catalog.add(Catalog.LANGUAGE, lang, 1);
+                tuLangs.add(lang);
+
+                getTuDb().store(tuid, tu);
+
+                int[] ngrams = NGrams.getNGrams(puretext);
+                fuzzyIndex.add(lang, tuid, puretext.trim().length(), ngrams);
+                invalidateMatches(lang, ngrams);
+                MemorySnapshot current = snapshot;
+                if (current != null) {
+                    current.put(lang, tuid, puretext, seg.toString());
+                }
+            }
+        }
+        if (!tuLangs.isEmpty()) {
+            catalog.replace(oldTu, tu);
+        }
+        // cached matches carry the targets and properties of the TU, so any change drops them
+        invalidateMatches(tuid);
+        // a new target can turn the TU into a match for searches in its other languages
+        Iterator<String> lt = tuLangs.iterator();
+        while (lt.hasNext()) {
+            Iterator<String> st = matchCache.getSourceLanguages(lt.next()).iterator();
+            while (st.hasNext()) {
+                String srcLang = st.next();
+                if (!tuLangs.contains(srcLang)) {
+                    String text = getPureText(tuid, srcLang);
+                    if (text != null) {
+                        invalidateMatches(srcLang, NGrams.getNGrams(text));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the creation data and the default properties of a TU before it is
+     * stored. Returns true if a TU with the same id was already stored.
+     */
+    boolean prepareTu(Element tu) throws IOException {
+        return prepareTu(tu, getTuDb().getTu(tu.getAttributeValue("tuid")));
+    }
+
+    private boolean prepareTu(Element tu, Element oldTu) {
         tu.setAttribute("creationdate",
                 oldTu.hasAttribute("creationdate") ? oldTu.getAttributeValue("creationdate") : TMUtils.creationDate());
         tu.setAttribute("creationid",
@@ -769,10 +1808,6 @@ public class SqliteDatabase implements ITmEngine {
             tu.setChildren(content);
             props.put(prop.getAttributeValue("type"), prop.getText());
         }
-        String sub = props.get("subject");
-        if (sub != null) {
-            tuDb.storeSubject(sub);
-        }
         if (currCustomer != null && !currCustomer.isEmpty() && !props.containsKey("customer")) {
             Element prop = new Element("prop");
             prop.setAttribute("type", "customer");
@@ -782,10 +1817,6 @@ public class SqliteDatabase implements ITmEngine {
             tu.setChildren(content);
             props.put(prop.getAttributeValue("type"), prop.getText());
         }
-        String cust = props.get("customer");
-        if (cust != null) {
-            tuDb.storeCustomer(cust);
-        }
         if (currProject != null && !currProject.isEmpty() && !props.containsKey("project")) {
             Element prop = new Element("prop");
             prop.setAttribute("type", "project");
@@ -795,47 +1826,7 @@ public class SqliteDatabase implements ITmEngine {
             tu.setChildren(content);
             props.put(prop.getAttributeValue("type"), prop.getText());
         }
-        String proj = props.get("project");
-        if (proj != null) {
-            tuDb.storeProject(proj);
-        }
-
-        storeTUV.setString(1, tuid);
-
-        Iterator<Element> it = tuvs.iterator();
-        while (it.hasNext()) {
-            Element tuv = it.next();
-            String lang = LanguageUtils.normalizeCode(tuv.getAttributeValue("xml:lang"));
-            if (lang != null && !tuLangs.contains(lang)) {
-                if (exists(tuid, lang)) {
-                    delete(tuid, lang);
-                    tu.setAttribute("changedate", TMUtils.creationDate());
-                    tu.setAttribute("changeid", creationId);
-                }
-                Element seg = tuv.getChild("seg");
-                String puretext = TMUtils.extractText(seg);
-                if (puretext.isEmpty()) {
-                    continue;
-                }
-                storeTUV.setString(2, lang);
-                storeTUV.setString(3, seg.toString());
-                storeTUV.setString(4, puretext);
-                storeTUV.setInt(5, puretext.length());
-                storeTUV.execute();
-                tuLangs.add(lang);
-
-                tuDb.store(tuid, tu);
-
-                int[] ngrams = NGrams.getNGrams(puretext);
-                NavigableSet<Fun.Tuple2<Integer, String>> index = fuzzyIndex.getIndex(lang);
-                for (int i = 0; i < ngrams.length; i++) {
-                    Tuple2<Integer, String> entry = Fun.t2(ngrams[i], tuid);
-                    if (!index.contains(entry)) {
-                        index.add(entry);
-                    }
-                }
-            }
-        }
+        return oldTu.hasAttribute("creationdate");
     }
 
     private String nextId() {
@@ -845,16 +1836,74 @@ public class SqliteDatabase implements ITmEngine {
         return "" + next++;
     }
 
-    private boolean exists(String tuid, String lang) throws SQLException {
+    private String getPureText(String tuid, String lang) throws SQLException {
         searchTUV.setString(1, tuid);
         searchTUV.setString(2, lang);
-        boolean found = false;
+        String puretext = null;
         try (ResultSet rs = searchTUV.executeQuery()) {
             while (rs.next()) {
-                found = true;
+                puretext = rs.getString(1);
+            }
+        }
+        return puretext;
+    }
+
+    /**
+     * Builds a new fuzzy index for a language from the stored texts and replaces
+     * the current one. Searches keep using the old index while the new one is
+     * written; changes made meanwhile are carried over before the swap.
+     */
+    public void rebuildIndex(String lang) throws IOException, SQLException, URISyntaxException {
+        FuzzyIndex.Builder builder = fuzzyIndex.startRebuild(lang);
+        rebuildCount = 0;
+        rebuildTotal = 0;
+        boolean finished = false;
+        Connection readConn = null;
+        try {
+            // anything stored before the rebuild started must be visible to the reader
+            commit();
+            readConn = acquireReadConnection();
+            try (PreparedStatement stmt = readConn.prepareStatement("SELECT COUNT(*) FROM tuv WHERE lang=?")) {
+                stmt.setString(1, lang);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        rebuildTotal = rs.getInt(1);
+                    }
+                }
+            }
+            try (PreparedStatement stmt = readConn.prepareStatement("SELECT tuid, puretext FROM tuv WHERE lang=?")) {
+                stmt.setString(1, lang);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        if (rebuildCancelled) {
+                            return;
+                        }
+                        String puretext = rs.getString(2);
+                        builder.add(rs.getString(1), puretext.trim().length(), NGrams.getNGrams(puretext));
+                        rebuildCount++;
+                    }
+                }
+            }
+            builder.finish();
+            finished = true;
+        } finally {
+            releaseReadConnection(readConn);
+            if (!finished) {
+                builder.cancel();
             }
         }
-        return found;
+    }
+
+    public int getRebuildCount() {
+        return rebuildCount;
+    }
+
+    public int getRebuildTotal() {
+        return rebuildTotal;
+    }
+
+    int getPoolLimit() {
+        return poolLimit;
     }
 
     public int getCount() {
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2007-2026 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+
+package com.maxprograms.swordfish.tm;
+
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Builds FTS5 queries for the trigram index of segment texts. A query lists
+ * the literal fragments, at least three characters long, that every text
+ * matching a LIKE, GLOB or regular expression pattern must contain. The index
+ * ignores case, so the query finds a superset of the matching texts and the
+ * pattern itself must still be checked. When no fragment can be found the
+ * result is null and the index is of no use.
+ */
+final class TrigramFilter {
+
+	private static final int MIN_LENGTH = 3;
+
+	private TrigramFilter() {
+		// private for security
+	}
+
+	static String forLike(String pattern) {
+		List<String> fragments = new Vector<>();
+		StringBuilder run = new StringBuilder();
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == '%' || c == '_') {
+				endRun(run, fragments);
+			} else {
+				run.append(c);
+			}
+		}
+		endRun(run, fragments);
+		return toQuery(fragments);
+	}
+
+	static String forGlob(String pattern) {
+		List<String> fragments = new Vector<>();
+		StringBuilder run = new StringBuilder();
+		int i = 0;
+		while (i < pattern.length()) {
+			char c = pattern.charAt(i);
+			if (c == '*' || c == '?') {
+				endRun(run, fragments);
+				i++;
+			} else if (c == '[') {
+				endRun(run, fragments);
+				i = RegExpFunction.skipClass(pattern, i);
+			} else {
+				run.append(c);
+				i++;
+			}
+		}
+		endRun(run, fragments);
+		return toQuery(fragments);
+	}
+
+	/**
+	 * Uses the literals found by {@link RegExpFunction#getLiterals(String)}.
+	 */
+	static String forRegex(String regex) {
+		List<String> literals = RegExpFunction.getLiterals(regex);
+		if (literals == null) {
+			return null;
+		}
+		List<String> fragments = new Vector<>();
+		for (int i = 0; i < literals.size(); i++) {
+			String literal = literals.get(i);
+			if (literal.codePointCount(0, literal.length()) >= MIN_LENGTH) {
+				fragments.add(literal);
+			}
+		}
+		return toQuery(fragments);
+	}
+
+	private static void endRun(StringBuilder run, List<String> fragments) {
+		if (run.codePointCount(0, run.length()) >= MIN_LENGTH) {
+			fragments.add(run.toString());
+		}
+		run.setLength(0);
+	}
+
+	private static String toQuery(List<String> fragments) {
+		if (fragments.isEmpty()) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < fragments.size(); i++) {
+			if (i > 0) {
+				sb.append(" AND ");
+			}
+			sb.append('"').append(fragments.get(i).replace("\"", "\"\"")).append('"');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright (c) 2007-2026 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+
+package com.maxprograms.swordfish.tm;
+
+import java.io.File;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+
+/**
+ * Converts the TU storage of existing memories ahead of time, so that the first
+ * use of a large memory does not have to wait for it. Each argument is either a
+ * memory folder or a folder that contains memory folders.
+ */
+public class TuDataMigration {
+
+	private static Logger logger = System.getLogger(TuDataMigration.class.getName());
+
+	private TuDataMigration() {
+		// private for security
+	}
+
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			logger.log(Level.INFO, "Usage: TuDataMigration <memory folder>...");
+			return;
+		}
+		for (int i = 0; i < args.length; i++) {
+			File folder = new File(args[i]);
+			if (new File(folder, "tudata").exists()) {
+				migrate(folder);
+				continue;
+			}
+			File[] children = folder.listFiles(File::isDirectory);
+			if (children != null) {
+				for (int j = 0; j < children.length; j++) {
+					if (new File(children[j], "tudata").exists()) {
+						migrate(children[j]);
+					}
+				}
+			}
+		}
+	}
+
+	private static void migrate(File folder) {
+		try {
+			TuDatabase tuDb = new TuDatabase(folder);
+			tuDb.close();
+		} catch (Exception e) {
+			logger.log(Level.ERROR, folder.getAbsolutePath() + ": " + e.getMessage(), e);
+		}
+	}
+}
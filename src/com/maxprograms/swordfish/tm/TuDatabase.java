@@ -12,30 +12,69 @@
 
 package com.maxprograms.swordfish.tm;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
+import com.maxprograms.xml.Attribute;
 import com.maxprograms.xml.Element;
+import com.maxprograms.xml.SAXBuilder;
 
+import org.mapdb.Atomic;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
 
+/**
+ * Stores the attributes, properties and notes of every TU, keyed by tuid. TUs
+ * are kept as compact binary records; element and attribute names and the
+ * types and values of properties are replaced by ids from a shared string
+ * dictionary. Stores written by older versions, where whole elements were kept
+ * under the hash code of their tuid, are converted when opened.
+ */
 public class TuDatabase {
 
+	private static Logger logger = System.getLogger(TuDatabase.class.getName());
+
+	private static final String OLD_MAP = "tuvmap";
+	private static final int MIGRATION_COMMIT = 10000;
+
+	// property values stop being added to the dictionary when it reaches this size
+	private static final int MAX_DICTIONARY = 65536;
+
+	private static final byte VERSION = 1;
+	private static final byte TEXT = 0;
+	private static final byte XML = 1;
+
+	private File file;
 	private DB mapdb;
-	private HTreeMap<Integer, Element> tumap;
-	private Set<String> projects;
-	private Set<String> subjects;
-	private Set<String> customers;
+	private HTreeMap<String, byte[]> records;
+	private HTreeMap<String, Integer> dictionary;
+	private HTreeMap<Integer, String> strings;
+	private Atomic.Integer nextString;
+	private Map<Integer, String> cache;
 
 	public TuDatabase(File folder) {
-		mapdb = DBMaker.newFileDB(new File(folder, "tudata")).closeOnJvmShutdown().make();
-		tumap = mapdb.getHashMap("tuvmap");
-		projects = mapdb.getHashSet("projects");
-		subjects = mapdb.getHashSet("subjects");
-		customers = mapdb.getHashSet("customers");
+		file = new File(folder, "tudata");
+		mapdb = DBMaker.newFileDB(file).closeOnJvmShutdown().make();
+		records = mapdb.createHashMap("records").keySerializer(Serializer.STRING)
+				.valueSerializer(Serializer.BYTE_ARRAY).makeOrGet();
+		dictionary = mapdb.getHashMap("dictionary");
+		strings = mapdb.getHashMap("strings");
+		nextString = mapdb.getAtomicInteger("nextString");
+		cache = new ConcurrentHashMap<>();
+		if (mapdb.exists(OLD_MAP)) {
+			migrate();
+		}
 	}
 
 	public synchronized void commit() {
@@ -50,56 +89,248 @@ public class TuDatabase {
 		mapdb.close();
 	}
 
+	/**
+	 * Stores everything in the TU except its tuv children.
+	 */
 	public synchronized void store(String tuid, Element tu) {
-		tu.removeChild("tuv");
-		if (tu.getChildren().isEmpty()) {
-			tu.setContent(new Vector<>());
-		}
-		tumap.put(tuid.hashCode(), tu);
+		records.put(tuid, encode(tu));
 	}
 
 	public Element getTu(String tuid) {
-		Element result = tumap.get(tuid.hashCode());
-		if (result == null) {
-			result = new Element("tu");
+		byte[] record = records.get(tuid);
+		if (record == null) {
+			Element result = new Element("tu");
 			result.setAttribute("id", tuid);
+			return result;
 		}
-		return result;
+		return decode(record);
 	}
 
 	public void rollback() {
 		mapdb.rollback();
 	}
 
-	public void storeSubject(String sub) {
-		subjects.add(sub);
+	public Set<String> getKeys() {
+		return records.keySet();
 	}
 
-	public void storeCustomer(String cust) {
-		customers.add(cust);
+	public void remove(String tuid) {
+		records.remove(tuid);
+	}
+
+	private void migrate() {
+		logger.log(Level.INFO, "Converting TU storage " + file.getAbsolutePath());
+		long start = System.currentTimeMillis();
+		HTreeMap<Integer, Element> old = mapdb.getHashMap(OLD_MAP);
+		int count = 0;
+		int skipped = 0;
+		Iterator<Element> it = old.values().iterator();
+		while (it.hasNext()) {
+			Element tu = it.next();
+			String tuid = tu.getAttributeValue("tuid");
+			if (tuid.isEmpty()) {
+				skipped++;
+				continue;
+			}
+			records.put(tuid, encode(tu));
+			if (++count % MIGRATION_COMMIT == 0) {
+				mapdb.commit();
+			}
+		}
+		mapdb.delete(OLD_MAP);
+		mapdb.commit();
+		mapdb.compact();
+		logger.log(Level.INFO, "Converted " + count + " TUs in " + (System.currentTimeMillis() - start) + " ms"
+				+ (skipped > 0 ? ", " + skipped + " without tuid skipped" : ""));
 	}
 
-	public void storeProject(String proj) {
-		projects.add(proj);
+	private byte[] encode(Element tu) {
+		Output out = new Output();
+		out.write(VERSION);
+		List<Attribute> attributes = tu.getAttributes();
+		out.writeVarint(attributes.size());
+		for (int i = 0; i < attributes.size(); i++) {
+			Attribute attribute = attributes.get(i);
+			writeName(out, attribute.getName());
+			writeString(out, attribute.getValue(), false);
+		}
+		List<Element> children = tu.getChildren();
+		int count = 0;
+		for (int i = 0; i < children.size(); i++) {
+			if (!"tuv".equals(children.get(i).getName())) {
+				count++;
+			}
+		}
+		out.writeVarint(count);
+		for (int i = 0; i < children.size(); i++) {
+			Element child = children.get(i);
+			if ("tuv".equals(child.getName())) {
+				continue;
+			}
+			if (!child.getChildren().isEmpty()) {
+				// not expected in TMX, kept as XML
+				out.write(XML);
+				writeString(out, child.toString(), false);
+				continue;
+			}
+			out.write(TEXT);
+			boolean isProp = "prop".equals(child.getName());
+			writeName(out, child.getName());
+			List<Attribute> childAttributes = child.getAttributes();
+			out.writeVarint(childAttributes.size());
+			for (int j = 0; j < childAttributes.size(); j++) {
+				Attribute attribute = childAttributes.get(j);
+				writeName(out, attribute.getName());
+				writeString(out, attribute.getValue(), isProp);
+			}
+			writeString(out, child.getText(), isProp);
+		}
+		return out.toByteArray();
 	}
 
-	public Set<String> getCustomers() {
-		return customers;
+	private Element decode(byte[] record) {
+		Input in = new Input(record);
+		in.read(); // version
+		Element tu = new Element("tu");
+		int attributes = in.readVarint();
+		for (int i = 0; i < attributes; i++) {
+			String name = readString(in);
+			tu.setAttribute(name, readString(in));
+		}
+		int children = in.readVarint();
+		for (int i = 0; i < children; i++) {
+			byte kind = in.read();
+			if (kind == XML) {
+				String xml = readString(in);
+				try {
+					tu.addContent(new SAXBuilder()
+							.build(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))).getRootElement());
+				} catch (Exception e) {
+					logger.log(Level.WARNING, e.getMessage(), e);
+				}
+				continue;
+			}
+			Element child = new Element(readString(in));
+			int childAttributes = in.readVarint();
+			for (int j = 0; j < childAttributes; j++) {
+				String name = readString(in);
+				child.setAttribute(name, readString(in));
+			}
+			String text = readString(in);
+			if (!text.isEmpty()) {
+				child.setText(text);
+			}
+			tu.addContent(child);
+		}
+		return tu;
 	}
 
-	public Set<String> getProjects() {
-		return projects;
+	private void writeName(Output out, String name) {
+		out.writeVarint(intern(name, true) + 1);
 	}
 
-	public Set<String> getSubjects() {
-		return subjects;
+	/**
+	 * Writes a dictionary reference when the string is shared and the dictionary
+	 * can hold it; otherwise a 0 followed by the string itself.
+	 */
+	private void writeString(Output out, String string, boolean shared) {
+		int id = shared ? intern(string, false) : -1;
+		if (id != -1) {
+			out.writeVarint(id + 1);
+			return;
+		}
+		out.writeVarint(0);
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		out.writeVarint(bytes.length);
+		out.write(bytes);
 	}
 
-	public Set<Integer> getKeys() {
-		return tumap.keySet();
+	private String readString(Input in) {
+		int ref = in.readVarint();
+		if (ref != 0) {
+			return cache.computeIfAbsent(ref - 1, strings::get);
+		}
+		int length = in.readVarint();
+		return in.readString(length);
 	}
 
-	public void remove(String tuid) {
-		tumap.remove(tuid.hashCode());
+	private synchronized int intern(String string, boolean always) {
+		Integer id = dictionary.get(string);
+		if (id != null) {
+			return id;
+		}
+		if (!always && nextString.get() >= MAX_DICTIONARY) {
+			return -1;
+		}
+		id = nextString.getAndIncrement();
+		strings.put(id, string);
+		dictionary.put(string, id);
+		return id;
+	}
+
+	private static class Output {
+		byte[] buffer = new byte[128];
+		int size;
+
+		void write(byte b) {
+			ensure(1);
+			buffer[size++] = b;
+		}
+
+		void write(byte[] bytes) {
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buffer, size, bytes.length);
+			size += bytes.length;
+		}
+
+		void writeVarint(int value) {
+			ensure(5);
+			while ((value & ~0x7F) != 0) {
+				buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[size++] = (byte) value;
+		}
+
+		private void ensure(int extra) {
+			if (size + extra > buffer.length) {
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+			}
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buffer, size);
+		}
+	}
+
+	private static class Input {
+		byte[] buffer;
+		int pos;
+
+		Input(byte[] buffer) {
+			this.buffer = buffer;
+		}
+
+		byte read() {
+			return buffer[pos++];
+		}
+
+		int readVarint() {
+			int result = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = buffer[pos++];
+				result |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return result;
+		}
+
+		String readString(int length) {
+			String result = new String(buffer, pos, length, StandardCharsets.UTF_8);
+			pos += length;
+			return result;
+		}
 	}
 }
@@ -25,7 +25,6 @@ import org.xml.sax.Attributes;
 import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
 
-import com.maxprograms.swordfish.tm.ITmEngine;
 import com.maxprograms.xml.Catalog;
 import com.maxprograms.xml.Document;
 import com.maxprograms.xml.Element;
@@ -39,9 +38,9 @@ class TMXContentHandler implements IContentHandler {
 	private Deque<Element> stack;
 	private boolean inCDATA = false;
 	private int count;
-	private ITmEngine db;
+	private TuSink db;
 
-	public TMXContentHandler(ITmEngine tmEngine) {
+	public TMXContentHandler(TuSink tmEngine) {
 		db = tmEngine;
 		stack = new ConcurrentLinkedDeque<>();
 	}
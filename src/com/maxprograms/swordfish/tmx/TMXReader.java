@@ -19,7 +19,6 @@ import javax.xml.parsers.ParserConfigurationException;
 
 import org.xml.sax.SAXException;
 
-import com.maxprograms.swordfish.tm.ITmEngine;
 import com.maxprograms.xml.SAXBuilder;
 
 public class TMXReader {
@@ -27,8 +26,8 @@ public class TMXReader {
 	private SAXBuilder builder;
 	private TMXContentHandler handler;
 
-	public TMXReader(ITmEngine database) {
-		handler = new TMXContentHandler(database);
+	public TMXReader(TuSink sink) {
+		handler = new TMXContentHandler(sink);
 		builder = new SAXBuilder();
 		builder.setEntityResolver(new TMXResolver());
 		builder.setContentHandler(handler);
@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * Copyright (c) 2007-2026 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+
+package com.maxprograms.swordfish.tmx;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.sql.SQLException;
+
+import com.maxprograms.xml.Element;
+
+/**
+ * Receives the TUs read by {@link TMXReader}. {@link #commit()} is called every
+ * 500 TUs.
+ */
+public interface TuSink {
+
+	public abstract void storeTu(Element tu) throws IOException, SQLException, URISyntaxException;
+
+	public abstract void commit() throws SQLException, IOException, URISyntaxException;
+}
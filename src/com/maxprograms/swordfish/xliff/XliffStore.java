@@ -58,7 +58,6 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.jsoup.Jsoup;
-import org.sqlite.Function;
 import org.xml.sax.SAXException;
 
 import com.maxprograms.converters.Join;
@@ -74,10 +73,12 @@ import com.maxprograms.swordfish.MemoriesHandler;
 import com.maxprograms.swordfish.TmsServer;
 import com.maxprograms.swordfish.am.MatchAssembler;
 import com.maxprograms.swordfish.am.Term;
+import com.maxprograms.swordfish.tm.FederatedEngine;
 import com.maxprograms.swordfish.tm.ITmEngine;
 import com.maxprograms.swordfish.tm.Match;
 import com.maxprograms.swordfish.tm.MatchQuality;
 import com.maxprograms.swordfish.tm.NGrams;
+import com.maxprograms.swordfish.tm.RegExpFunction;
 import com.maxprograms.swordfish.tm.TMUtils;
 import com.maxprograms.xliff2.FromXliff2;
 import com.maxprograms.xml.CatalogBuilder;
@@ -147,6 +148,7 @@ public class XliffStore {
 	private static boolean caseSensitiveMatches;
 	private static boolean autoConfirm;
 	private static int matchThreshold;
+	private static int maxMatches;
 
 	private int index;
 	private int nextId;
@@ -195,18 +197,7 @@ public class XliffStore {
 		conn = DriverManager
 				.getConnection("jdbc:sqlite:" + database.getAbsolutePath().replace('\\', '/') + "/database.db");
 		conn.setAutoCommit(false);
-		Function.create(conn, "REGEXP", new Function() {
-			@Override
-			protected void xFunc() throws SQLException {
-				String expression = value_text(0);
-				String value = value_text(1);
-				if (value == null) {
-					value = "";
-				}
-				Pattern pat = Pattern.compile(expression);
-				result(pat.matcher(value).find() ? 1 : 0);
-			}
-		});
+		RegExpFunction.register(conn);
 		if (needsLoading) {
 			createTables();
 		}
@@ -997,12 +988,10 @@ public class XliffStore {
 				} catch (PatternSyntaxException e) {
 					throw new IOException(Messages.getString("XliffStore.47"));
 				}
-				if ("source".equals(filterLanguage)) {
-					queryBuilder.append(" AND sourceText REGEXP '");
-				} else {
-					queryBuilder.append(" AND targetText REGEXP '");
-				}
-				queryBuilder.append(filterText);
+				String column = "source".equals(filterLanguage) ? "sourceText" : "targetText";
+				queryBuilder.append(RegExpFunction.getPrefilter(column, filterText));
+				queryBuilder.append(" AND " + column + " REGEXP '");
+				queryBuilder.append(filterText.replace("'", "''"));
 				queryBuilder.append("'");
 			} else {
 				if (caseSensitiveFilter) {
@@ -1494,6 +1483,8 @@ public class XliffStore {
 	}
 
 	public void close() throws SQLException {
+		// confirmed segments must reach the memory before the project is gone
+		MemoriesHandler.flushWrites();
 		getUnitData.close();
 		getSource.close();
 		getTargetStmt.close();
@@ -1542,6 +1533,11 @@ public class XliffStore {
 		} else {
 			matchThreshold = 60;
 		}
+		if (json.has("maxMatches")) {
+			maxMatches = json.getInt("maxMatches");
+		} else {
+			maxMatches = FederatedEngine.DEFAULT_MAX_MATCHES;
+		}
 	}
 
 	public synchronized JSONObject saveSegment(JSONObject json)
@@ -1635,26 +1631,17 @@ public class XliffStore {
 		result.put("target", addHtmlTags(target, originalData));
 
 		if (!memory.equals(Constants.NONE) && !pureTarget.isBlank() && confirm) {
-			new Thread(() -> {
-				try {
-					StringBuilder key = new StringBuilder();
-					key.append(xliffFile.hashCode());
-					key.append('-');
-					key.append(file);
-					key.append('-');
-					key.append(unit);
-					key.append('-');
-					key.append(segment);
-					String[] context = getSurroundingSegments(file, unit, segment);
-					MemoriesHandler.open(memory);
-					ITmEngine engine = MemoriesHandler.getEngine(memory);
-					engine.storeTu(XliffUtils.toTu(key.toString(), source, target, tags, srcLang, tgtLang, context));
-					engine.commit();
-					MemoriesHandler.close(memory);
-				} catch (IOException | SQLException | URISyntaxException e) {
-					logger.log(Level.ERROR, e);
-				}
-			}).start();
+			StringBuilder key = new StringBuilder();
+			key.append(xliffFile.hashCode());
+			key.append('-');
+			key.append(file);
+			key.append('-');
+			key.append(unit);
+			key.append('-');
+			key.append(segment);
+			String[] context = getSurroundingSegments(file, unit, segment);
+			MemoriesHandler.storeTu(memory,
+					XliffUtils.toTu(key.toString(), source, target, tags, srcLang, tgtLang, context));
 		}
 		return result;
 	}
@@ -3391,7 +3378,7 @@ public class XliffStore {
 		String file = json.getString("file");
 		String unit = json.getString("unit");
 		String segment = json.getString("segment");
-		String memory = json.getString("memory");
+		JSONArray memories = getMemories(json);
 
 		String src = "";
 		String pure = "";
@@ -3405,10 +3392,14 @@ public class XliffStore {
 			}
 		}
 		Element original = XliffUtils.buildElement(src);
-		String memoryName = MemoriesHandler.getName(memory);
-		MemoriesHandler.open(memory);
-		ITmEngine engine = MemoriesHandler.getEngine(memory);
-		List<Match> matches = engine.searchTranslation(pure, srcLang, tgtLang, matchThreshold, caseSensitiveMatches);
+		Map<String, String> names = new HashMap<>();
+		ITmEngine engine = openMemories(memories, names);
+		List<Match> matches;
+		try {
+			matches = engine.searchTranslation(pure, srcLang, tgtLang, matchThreshold, caseSensitiveMatches);
+		} finally {
+			closeMemories(memories, engine);
+		}
 		for (int i = 0; i < matches.size(); i++) {
 			Match m = matches.get(i);
 			XliffUtils.setTags(new JSONObject());
@@ -3419,20 +3410,40 @@ public class XliffStore {
 			JSONObject tags = new JSONObject();
 			tags.put("dataRef", XliffUtils.getTags());
 			int similarity = m.getSimilarity() - tagDifferences(original, matchSource);
-			insertMatch(m.getId(), file, unit, segment, memoryName, Constants.TM, similarity, matchSource, matchTarget,
-					tags);
+			insertMatch(m.getId(), file, unit, segment, getOrigin(m, names, engine), Constants.TM, similarity,
+					matchSource, matchTarget, tags);
 		}
 		// Commit once after all matches for this segment are inserted
 		conn.commit();
-		MemoriesHandler.close(memory);
 		return getTaggedtMatches(json);
 	}
 
 	public int tmTranslateAll(String memory, int penalization, Map<String, JSONObject> processes, String processId)
 			throws IOException, SQLException, SAXException, ParserConfigurationException, URISyntaxException {
-		String memoryName = MemoriesHandler.getName(memory);
-		MemoriesHandler.open(memory);
-		ITmEngine engine = MemoriesHandler.getEngine(memory);
+		JSONArray memories = new JSONArray();
+		memories.put(memory);
+		return tmTranslateAll(memories, penalization, processes, processId);
+	}
+
+	/**
+	 * Translates all segments with matches from the given memories, searched
+	 * together in a single pass.
+	 */
+	public int tmTranslateAll(JSONArray memories, int penalization, Map<String, JSONObject> processes,
+			String processId)
+			throws IOException, SQLException, SAXException, ParserConfigurationException, URISyntaxException {
+		Map<String, String> names = new HashMap<>();
+		ITmEngine engine = openMemories(memories, names);
+		try {
+			return translateAll(engine, names, penalization, processes, processId);
+		} finally {
+			closeMemories(memories, engine);
+		}
+	}
+
+	private int translateAll(ITmEngine engine, Map<String, String> names, int penalization,
+			Map<String, JSONObject> processes, String processId)
+			throws IOException, SQLException, SAXException, ParserConfigurationException, URISyntaxException {
 		String sql = "SELECT COUNT(*) FROM segments WHERE type = 'S' AND state <> 'final'";
 		int total = 0;
 		try (ResultSet rs = stmt.executeQuery(sql)) {
@@ -3445,21 +3456,154 @@ public class XliffStore {
 		}
 		int processed = 0;
 		int offset = 0;
-		do {
-			processed += translateBatch(offset, engine, memoryName, penalization);
-			int percentage = Math.round(offset * 100f / total);
-			if (percentage == 100) {
-				percentage = 99;
-			}
-			processes.get(processId).put("percentage", percentage);
-			offset += BATCHSIZE;
-		} while (offset < total);
-		MemoriesHandler.close(memory);
+		// the memory searches the next batch while the matches of the current one
+		// are stored
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			JSONObject batch = getBatch(offset);
+			Future<JSONArray> pending = executor.submit(() -> engine.batchTranslate(batch));
+			do {
+				JSONArray translations = getTranslations(pending);
+				int percentage = Math.round(offset * 100f / total);
+				offset += BATCHSIZE;
+				if (offset < total) {
+					JSONObject next = getBatch(offset);
+					pending = executor.submit(() -> engine.batchTranslate(next));
+				}
+				processed += storeMatches(translations, engine, names, penalization);
+				if (percentage == 100) {
+					percentage = 99;
+				}
+				processes.get(processId).put("percentage", percentage);
+			} while (offset < total);
+		}
 		return processed;
 	}
 
-	private synchronized int translateBatch(int offset, ITmEngine engine, String memoryName, int penalization)
+	private static JSONArray getTranslations(Future<JSONArray> pending)
 			throws IOException, SQLException, SAXException, ParserConfigurationException, URISyntaxException {
+		try {
+			return pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (java.util.concurrent.ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException ioe) {
+				throw ioe;
+			}
+			if (cause instanceof SQLException sqle) {
+				throw sqle;
+			}
+			if (cause instanceof SAXException saxe) {
+				throw saxe;
+			}
+			if (cause instanceof ParserConfigurationException pce) {
+				throw pce;
+			}
+			if (cause instanceof URISyntaxException use) {
+				throw use;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Returns the memory ids listed in the request: the items of its "memories"
+	 * array or its single "memory".
+	 */
+	private static JSONArray getMemories(JSONObject json) {
+		if (json.has("memories")) {
+			return json.getJSONArray("memories");
+		}
+		JSONArray memories = new JSONArray();
+		memories.put(json.getString("memory"));
+		return memories;
+	}
+
+	/**
+	 * Opens the memories and returns the engine to search. Items of the array
+	 * are memory ids or objects with "memory" and optional "penalization",
+	 * "timeout" and "batchTimeout" members; "batchTimeout" bounds each batch of
+	 * segments sent to the memory. A single memory id is searched directly;
+	 * otherwise the memories are searched together by a {@link FederatedEngine}.
+	 * The names of the memories are added to {@code names}, keyed by id.
+	 */
+	private static ITmEngine openMemories(JSONArray memories, Map<String, String> names)
+			throws IOException, SQLException, URISyntaxException {
+		if (memories.length() == 1 && memories.get(0) instanceof String memory) {
+			names.put(memory, MemoriesHandler.getName(memory));
+			MemoriesHandler.open(memory);
+			return MemoriesHandler.getEngine(memory);
+		}
+		FederatedEngine federated = null;
+		StringBuilder federatedName = new StringBuilder();
+		try {
+			for (int i = 0; i < memories.length(); i++) {
+				String memory = getMemoryId(memories, i);
+				String name = MemoriesHandler.getName(memory);
+				names.put(memory, name);
+				if (i > 0) {
+					federatedName.append(", ");
+				}
+				federatedName.append(name);
+			}
+			federated = new FederatedEngine(federatedName.toString(), maxMatches);
+			for (int i = 0; i < memories.length(); i++) {
+				String memory = getMemoryId(memories, i);
+				int penalization = 0;
+				long timeout = FederatedEngine.DEFAULT_TIMEOUT;
+				long batchTimeout = FederatedEngine.DEFAULT_BATCH_TIMEOUT;
+				if (memories.get(i) instanceof JSONObject json) {
+					penalization = json.optInt("penalization", 0);
+					timeout = json.optLong("timeout", FederatedEngine.DEFAULT_TIMEOUT);
+					batchTimeout = json.optLong("batchTimeout", FederatedEngine.DEFAULT_BATCH_TIMEOUT);
+				}
+				MemoriesHandler.open(memory);
+				federated.addEngine(MemoriesHandler.getEngine(memory), penalization, timeout, batchTimeout);
+			}
+		} catch (IOException | SQLException | URISyntaxException e) {
+			closeMemories(memories, federated);
+			throw e;
+		}
+		return federated;
+	}
+
+	private static void closeMemories(JSONArray memories, ITmEngine engine)
+			throws IOException, SQLException, URISyntaxException {
+		if (engine instanceof FederatedEngine) {
+			engine.close();
+			for (int i = 0; i < memories.length(); i++) {
+				MemoriesHandler.close(getMemoryId(memories, i));
+			}
+		} else {
+			MemoriesHandler.close(getMemoryId(memories, 0));
+		}
+	}
+
+	private static String getMemoryId(JSONArray memories, int index) {
+		if (memories.get(index) instanceof JSONObject json) {
+			return json.getString("memory");
+		}
+		return memories.getString(index);
+	}
+
+	/**
+	 * Name of the memory that provided the match, or the name of the engine
+	 * when the match does not tell.
+	 */
+	private static String getOrigin(Match match, Map<String, String> names, ITmEngine engine) {
+		String name = names.get(match.getOrigin());
+		if (name != null) {
+			return name;
+		}
+		return names.size() == 1 ? names.values().iterator().next() : engine.getName();
+	}
+
+	/**
+	 * Returns the batchTranslate parameters for the untranslated segments
+	 * starting at {@code offset}.
+	 */
+	private synchronized JSONObject getBatch(int offset) throws SQLException {
 		StringBuilder sb = new StringBuilder();
 		sb.append(
 				"SELECT file, unitId, segId, source, sourceText, target FROM segments WHERE type = 'S' AND state <> 'final' LIMIT ");
@@ -3491,11 +3635,10 @@ public class XliffStore {
 				params.put("segments", array);
 			}
 		}
-		JSONArray translations = engine.batchTranslate(params);
-		return storeMatches(translations, memoryName, penalization);
+		return params;
 	}
 
-	private int storeMatches(JSONArray translations, String memoryName, int penalization)
+	private synchronized int storeMatches(JSONArray translations, ITmEngine engine, Map<String, String> names, int penalization)
 			throws SAXException, IOException, ParserConfigurationException, SQLException {
 		int count = 0;
 		for (int i = 0; i < translations.length(); i++) {
@@ -3527,9 +3670,8 @@ public class XliffStore {
 							Element matchTarget = XliffUtils.toXliff(segment, j, "target", m.getTarget());
 							matchTarget.setAttribute("xml:lang", tgtLang);
 							int similarity = m.getSimilarity() - tagDifferences(original, matchSource) - penalization;
-							insertMatch(m.getId(), file, unit, segment, memoryName, Constants.TM, similarity,
-									matchSource,
-									matchTarget, XliffUtils.getTags());
+							insertMatch(m.getId(), file, unit, segment, getOrigin(m, names, engine), Constants.TM,
+									similarity, matchSource, matchTarget, XliffUtils.getTags());
 							if (similarity == 100 && originalTarget.getContent().isEmpty() && !updated) {
 								if (!matchTarget.getChildren().isEmpty()) {
 									matchTarget = fixTags(original, matchSource, matchTarget);
@@ -4422,17 +4564,19 @@ public class XliffStore {
 		boolean isRegExp = json.getBoolean("regExp");
 		boolean caseSensitive = json.getBoolean("caseSensitive");
 		StringBuilder queryBuilder = new StringBuilder();
-		queryBuilder.append("SELECT file, unitId, segId, target FROM segments WHERE type='S' AND ");
+		queryBuilder.append("SELECT file, unitId, segId, target FROM segments WHERE type='S'");
 		if (isRegExp) {
 			try {
 				Pattern.compile(searchText);
 			} catch (PatternSyntaxException e) {
 				throw new IOException(Messages.getString("XliffStore.47"));
 			}
-			queryBuilder.append(" targetText REGEXP '");
-			queryBuilder.append(searchText);
+			queryBuilder.append(RegExpFunction.getPrefilter("targetText", searchText));
+			queryBuilder.append(" AND targetText REGEXP '");
+			queryBuilder.append(searchText.replace("'", "''"));
 			queryBuilder.append("' ");
 		} else {
+			queryBuilder.append(" AND ");
 			queryBuilder.append(caseSensitive ? "targetText GLOB '*" : "targetText LIKE '%");
 			queryBuilder.append(caseSensitive ? escapeGlob(searchText) : escapeLike(searchText));
 			queryBuilder.append(caseSensitive ? "*'" : "%' ESCAPE '\\'");
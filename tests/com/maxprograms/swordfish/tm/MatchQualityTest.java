@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * Copyright (c) 2007-2026 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+
+package com.maxprograms.swordfish.tm;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares {@link MatchQuality#similarity(String, String)} with the string
+ * based implementation it replaced, on a random corpus built from a fixed
+ * seed: sentences and edited copies of them, unrelated texts, texts with
+ * surrounding or only white space, several scripts and texts longer than the
+ * cached workspace. The corpus is also scored from several threads at once,
+ * each thread with its own workspace. The time taken by both implementations
+ * is printed for reference. Run it with the "matchQualityTest" Gradle task;
+ * it exits with status 1 when a score differs.
+ */
+public class MatchQualityTest {
+
+	private static final long SEED = 20260101L;
+	private static final int PAIRS = 200000;
+	private static final int LONG_PAIRS = 3;
+	private static final int THREADS = 4;
+
+	private static final String[] WORDS = { "the", "a", "printer", "paper", "tray", "is", "open", "close", "error",
+			"message", "file", "save", "user", "manual", "chapter", "table", "select", "click", "button", "window",
+			"menu", "option", "network", "cable", "power", "supply", "Drücken", "Sie", "die", "Taste", "él", "año",
+			"ошибка", "файл", "打印机", "纸张", "ファイル", "保存", "%1", "{0}", "<b>", "5.2", "-", ",", "." };
+
+	public static void main(String[] args) {
+		try {
+			Random random = new Random(SEED);
+			List<String[]> corpus = getCorpus(random);
+			int[] expected = testSequential(corpus);
+			testConcurrent(corpus, expected);
+			testLongTexts(random);
+			System.out.println("MatchQualityTest: " + (corpus.size() + LONG_PAIRS) + " pairs, all scores match");
+		} catch (Throwable e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Scores the corpus with both implementations and returns the scores.
+	 */
+	private static int[] testSequential(List<String[]> corpus) {
+		int[] expected = new int[corpus.size()];
+		long start = System.nanoTime();
+		for (int i = 0; i < corpus.size(); i++) {
+			String[] pair = corpus.get(i);
+			expected[i] = Reference.similarity(pair[0], pair[1]);
+		}
+		long reference = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < corpus.size(); i++) {
+			String[] pair = corpus.get(i);
+			int score = MatchQuality.similarity(pair[0], pair[1]);
+			check(score == expected[i], "pair " + i + " scored " + score + " instead of " + expected[i] + ": \""
+					+ pair[0] + "\" / \"" + pair[1] + "\"");
+		}
+		long current = System.nanoTime() - start;
+		System.out.println("MatchQualityTest: previous " + reference / corpus.size() + " ns/pair, current "
+				+ current / corpus.size() + " ns/pair");
+		return expected;
+	}
+
+	private static void testConcurrent(List<String[]> corpus, int[] expected) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<String>> futures = new Vector<>();
+			for (int t = 0; t < THREADS; t++) {
+				int first = t;
+				futures.add(executor.submit(() -> {
+					for (int i = first; i < corpus.size(); i += THREADS) {
+						String[] pair = corpus.get(i);
+						if (MatchQuality.similarity(pair[0], pair[1]) != expected[i]) {
+							return "pair " + i + " scored differently on thread " + first;
+						}
+					}
+					return null;
+				}));
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				String failure = futures.get(i).get();
+				check(failure == null, failure);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void testLongTexts(Random random) {
+		for (int i = 0; i < LONG_PAIRS; i++) {
+			// longer than the cached workspace
+			String text = sentence(random, 1000 + random.nextInt(100));
+			String other = edit(random, text, 5);
+			int expected = Reference.similarity(text, other);
+			int score = MatchQuality.similarity(text, other);
+			check(score == expected, "long pair " + i + " scored " + score + " instead of " + expected);
+		}
+	}
+
+	private static List<String[]> getCorpus(Random random) {
+		List<String[]> corpus = new Vector<>();
+		corpus.add(new String[] { "", "" });
+		corpus.add(new String[] { "   ", "\t\n" });
+		corpus.add(new String[] { "", "text" });
+		corpus.add(new String[] { "  same text  ", "same text" });
+		corpus.add(new String[] { "a", "a" });
+		corpus.add(new String[] { "a", "b" });
+		corpus.add(new String[] { "a a a a", "a   a" });
+		while (corpus.size() < PAIRS) {
+			String text = sentence(random, 1 + random.nextInt(25));
+			String other;
+			switch (random.nextInt(5)) {
+				case 0:
+					other = sentence(random, 1 + random.nextInt(25));
+					break;
+				case 1:
+					other = random.nextBoolean() ? text.toLowerCase() : text.toUpperCase();
+					break;
+				case 2:
+					other = " ".repeat(random.nextInt(3)) + edit(random, text, 1 + random.nextInt(3))
+							+ "\t".repeat(random.nextInt(2));
+					break;
+				default:
+					other = edit(random, text, 1 + random.nextInt(1 + text.length() / 15));
+			}
+			if (random.nextBoolean()) {
+				corpus.add(new String[] { text, other });
+			} else {
+				corpus.add(new String[] { other, text });
+			}
+		}
+		return corpus;
+	}
+
+	private static String sentence(Random random, int words) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < words; i++) {
+			if (i > 0) {
+				builder.append(random.nextInt(20) == 0 ? "  " : " ");
+			}
+			builder.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Replaces, inserts or deletes words, or changes single characters.
+	 */
+	private static String edit(Random random, String text, int edits) {
+		List<String> words = new Vector<>(List.of(text.split(" ")));
+		for (int i = 0; i < edits; i++) {
+			int index = random.nextInt(words.size());
+			switch (random.nextInt(4)) {
+				case 0:
+					words.set(index, WORDS[random.nextInt(WORDS.length)]);
+					break;
+				case 1:
+					words.add(index, WORDS[random.nextInt(WORDS.length)]);
+					break;
+				case 2:
+					if (words.size() > 1) {
+						words.remove(index);
+					}
+					break;
+				default:
+					String word = words.get(index);
+					if (!word.isEmpty()) {
+						int at = random.nextInt(word.length());
+						words.set(index, word.substring(0, at) + (char) ('a' + random.nextInt(26))
+								+ word.substring(at + 1));
+					}
+			}
+		}
+		return String.join(" ", words);
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	/**
+	 * The implementation of {@link MatchQuality} before it worked on reusable
+	 * char arrays, kept as it was.
+	 */
+	private static class Reference {
+
+		static final int PENALTY = 2;
+
+		private static String lcs(String x, String y) {
+			int m = x.length();
+			int n = y.length();
+			int max = 0;
+			int mx = 0;
+
+			// opt[i][j] = length of LCS of x[i..M] and y[j..N]
+			int[][] opt = new int[m + 1][n + 1];
+
+			// fill the matrix
+			for (int i = 1; i <= m; i++) {
+				for (int j = 1; j <= n; j++) {
+					if (x.charAt(i - 1) == y.charAt(j - 1)) {
+						opt[i][j] = opt[i - 1][j - 1] + 1;
+						if (opt[i][j] > max) {
+							// remember where the maximum length is
+							max = opt[i][j];
+							mx = i;
+						}
+					} else {
+						opt[i][j] = 0;
+					}
+				}
+			}
+
+			// recover the LCS
+			StringBuilder result = new StringBuilder();
+			while (max > 0) {
+				result.insert(0, x.charAt(mx - 1));
+				max--;
+				mx--;
+			}
+			return result.toString();
+		}
+
+		static int similarity(String x, String y) {
+			int result = 0;
+			x = x.trim();
+			y = y.trim();
+			int longest = Math.max(x.length(), y.length());
+			if (longest == 0) {
+				return 0;
+			}
+			String a;
+			String b;
+			if (x.length() == longest) {
+				a = x;
+				b = y;
+			} else {
+				a = y;
+				b = x;
+			}
+			// a is the longest string
+			int count = -1;
+			int idx;
+			String lcs = lcs(a, b);
+			while (!lcs.trim().isEmpty() && lcs.length() > longest * PENALTY / 100) {
+				count++;
+				idx = a.indexOf(lcs);
+				a = a.substring(0, idx) + a.substring(idx + lcs.length());
+				idx = b.indexOf(lcs);
+				b = b.substring(0, idx) + b.substring(idx + lcs.length());
+				lcs = lcs(a, b);
+			}
+			result = 100 * (longest - a.length()) / longest - count * PENALTY;
+			if (result < 0) {
+				result = 0;
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Copyright (c) 2007-2026 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+
+package com.maxprograms.swordfish.tm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.maxprograms.swordfish.RemoteUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks the remote memory client against a stand-in server running on the
+ * loopback interface: responses compressed with gzip, searches sent without
+ * waiting for each other and one HTTP client shared by all logins. Run it with
+ * the "remoteTest" Gradle task; it exits with status 1 when a check fails.
+ */
+public class RemoteDatabaseTest {
+
+	private static final int SEARCHES = 3;
+
+	private HttpServer server;
+	private ExecutorService executor;
+	// client ports of all connections the server has seen
+	private Set<Integer> ports = ConcurrentHashMap.newKeySet();
+	private AtomicInteger logins = new AtomicInteger();
+	private AtomicInteger compressed = new AtomicInteger();
+	private AtomicInteger inFlight = new AtomicInteger();
+	private AtomicInteger maxInFlight = new AtomicInteger();
+	private CountDownLatch searches = new CountDownLatch(SEARCHES);
+
+	public static void main(String[] args) {
+		RemoteDatabaseTest test = new RemoteDatabaseTest();
+		try {
+			// keep the preferences and memories of the user out of the test
+			System.setProperty("user.home", Files.createTempDirectory("swordfish").toString());
+			test.start();
+			test.testGzipResponses();
+			test.testAsyncSearch();
+			test.testSharedClient();
+			System.out.println("RemoteDatabaseTest: all checks passed");
+		} catch (Throwable e) {
+			e.printStackTrace();
+			System.exit(1);
+		} finally {
+			test.stop();
+		}
+		System.exit(0);
+	}
+
+	private void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.createContext("/remote", exchange -> {
+			logins.incrementAndGet();
+			ports.add(exchange.getRemoteAddress().getPort());
+			exchange.getRequestBody().readAllBytes();
+			// sent without compression, the client must handle both
+			reply(exchange, new JSONObject().put("status", "OK").put("ticket", "ticket"), false);
+		});
+		server.createContext("/memories", exchange -> {
+			ports.add(exchange.getRemoteAddress().getPort());
+			int count = inFlight.incrementAndGet();
+			maxInFlight.accumulateAndGet(count, Math::max);
+			try {
+				JSONObject request = new JSONObject(
+						new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+				JSONObject response = new JSONObject().put("status", "OK");
+				if (request.getString("command").equals("searchTranslation")) {
+					// answer only when all searches have arrived, which they can
+					// only do if the client does not wait for each response
+					searches.countDown();
+					searches.await(10, TimeUnit.SECONDS);
+					response.put("matches", new JSONArray().put(getMatch(request.getString("searchStr"))));
+				}
+				String encoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+				reply(exchange, response, encoding != null && encoding.contains("gzip"));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				exchange.sendResponseHeaders(500, -1);
+				exchange.close();
+			} finally {
+				inFlight.decrementAndGet();
+			}
+		});
+		server.start();
+	}
+
+	private void stop() {
+		if (server != null) {
+			server.stop(0);
+			executor.shutdownNow();
+		}
+	}
+
+	private String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	private void reply(HttpExchange exchange, JSONObject json, boolean gzip) throws IOException {
+		byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+		if (gzip) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try (GZIPOutputStream zip = new GZIPOutputStream(out)) {
+				zip.write(bytes);
+			}
+			bytes = out.toByteArray();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+			compressed.incrementAndGet();
+		}
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private static JSONObject getMatch(String text) {
+		JSONObject match = new JSONObject();
+		match.put("id", "tu" + Math.abs(text.hashCode()));
+		match.put("source", "<tuv xml:lang=\"en\"><seg>" + text + "</seg></tuv>");
+		match.put("target", "<tuv xml:lang=\"es\"><seg>ES " + text + " ñ</seg></tuv>");
+		match.put("similarity", 100);
+		match.put("origin", "remote");
+		return match;
+	}
+
+	private void testGzipResponses() throws Exception {
+		RemoteDatabase database = new RemoteDatabase(getUrl(), "user", "password", "memory");
+		try {
+			searches = new CountDownLatch(1);
+			int before = compressed.get();
+			List<Match> matches = database.searchTranslation("gzip text", "en", "es", 60, false);
+			check(compressed.get() > before, "search response was not compressed");
+			check(matches.size() == 1, "expected 1 match, got " + matches.size());
+			String target = matches.get(0).getTarget().getChild("seg").getText();
+			check(target.equals("ES gzip text ñ"), "wrong target after decompression: " + target);
+		} finally {
+			database.close();
+		}
+	}
+
+	private void testAsyncSearch() throws Exception {
+		RemoteDatabase database = new RemoteDatabase(getUrl(), "user", "password", "memory");
+		try {
+			searches = new CountDownLatch(SEARCHES);
+			maxInFlight.set(0);
+			List<CompletableFuture<List<Match>>> futures = new Vector<>();
+			for (int i = 0; i < SEARCHES; i++) {
+				futures.add(database.searchTranslationAsync("async text " + i, "en", "es", 60, false));
+			}
+			check(!futures.get(0).isDone(), "search returned before the server answered");
+			for (int i = 0; i < SEARCHES; i++) {
+				List<Match> matches = futures.get(i).get(10, TimeUnit.SECONDS);
+				check(matches.size() == 1, "expected 1 match, got " + matches.size());
+				String source = matches.get(0).getSource().getChild("seg").getText();
+				check(source.equals("async text " + i), "matches returned for the wrong search: " + source);
+			}
+			check(maxInFlight.get() == SEARCHES,
+					"expected " + SEARCHES + " searches in flight, got " + maxInFlight.get());
+		} finally {
+			database.close();
+		}
+	}
+
+	private void testSharedClient() throws Exception {
+		HttpClient client = RemoteUtils.getClient();
+		int before = logins.get();
+		Set<Integer> known = new HashSet<>(ports);
+		for (int i = 0; i < 3; i++) {
+			check(RemoteUtils.getTicket(getUrl(), "user" + i, "password").equals("ticket"), "wrong ticket");
+		}
+		RemoteDatabase database = new RemoteDatabase(getUrl(), "user", "password", "memory");
+		database.close();
+		check(logins.get() - before == 4, "expected 4 logins, got " + (logins.get() - before));
+		check(RemoteUtils.getClient() == client, "logins created a new HTTP client");
+		// pooled connections are reused, at most one is opened if none was open
+		Set<Integer> opened = new HashSet<>(ports);
+		opened.removeAll(known);
+		check(opened.size() <= 1, "logins opened " + opened.size() + " connections");
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+}